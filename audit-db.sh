@@ -7,7 +7,7 @@ echo ""
 
 violations=0
 
-res="$(sqlite3 test.db "select * from file_events where event_type not in ('create', 'update', 'delete');")"
+res="$(sqlite3 test.db "select * from file_events where event_type not in ('create', 'update', 'delete', 'move');")"
 [ -n "$res" ] && {
   echo -e " *** Here are the rows with an invalid 'event_type':\n$res"
   violations=$((violations + 1))
@@ -2,14 +2,141 @@
 --
 -- Usage:
 --   sqlite3 test.db < create-schema.sql
+--
+-- The same schema is in CatalogSchema and CatalogStorage, for upgrading catalogs in place. Change both together;
+-- CatalogSchemaTest checks that they match.
+
+-- Every directory that has files in the catalog, so that events can refer to it by id instead of repeating its path.
+-- A path has the separator on the end, so the directory's path plus a file's name is the file's path. Files at the top
+-- are in the directory with an empty path. See CatalogStorage.
+create table directories (
+    id integer primary key,
+    path text not null unique
+);
+
+-- The storage locations events were recorded for, like 'Desk archive', so that events can refer to them by id.
+create table locations (
+    id integer primary key,
+    name text not null unique
+);
 
--- Creates an events table to store discrete file events, like "create", "update", and "delete". Rows should be treated
--- as immutable because they just represent discrete events at a point in time.
-create table file_events (
-    file_path text not null,
+-- Discrete file events, like "create", "update", "delete" and "move". Rows should be treated as immutable because they
+-- just represent discrete events at a point in time. Insert them through the file_events view below, which fills in
+-- the ids.
+create table events (
+    directory_id integer not null,
+    file_name text not null,
     time integer not null,
     event_type text not null,
-    storage_location text not null,
-    sha1 text not null, -- might not know sha1 on delete, but we can look it up from most recent event
-    primary key (file_path, time)
+    location_id integer not null,
+    sha1 blob, -- 20 bytes; null while the checksum is pending, after a metadata-only scan; a delete has the last one
+    size integer, -- size in bytes when the event was recorded; null for deletes and for events from before it was tracked
+    mtime integer, -- last modified time in millis when the event was recorded; null same as size
+    content_sha1 blob, -- checksum of only the image or video content, without metadata; null until it's needed
+    fingerprint text, -- size and a fast hash of a few samples, a cheap filter in front of sha1; see Fingerprint
+    moved_to text, -- for a move, where the file went; the new path has a create of its own
+    primary key (directory_id, file_name, time)
+) without rowid;
+
+-- The latest event of every file, by its full path. This is only a cache: the trigger below updates it with every
+-- event, and it can always be thrown away and rebuilt from events with MainRebuildCurrentState. It's here so that
+-- "what's the state of this file?" is a primary key lookup.
+create table file_state (
+    file_path text primary key,
+    time integer not null,
+    event_type text not null,
+    location_id integer not null,
+    sha1 blob,
+    size integer,
+    mtime integer,
+    content_sha1 blob,
+    fingerprint text,
+    moved_to text
+) without rowid;
+
+-- The files whose checksums are still pending, most recently changed first, for ChecksumBackfiller.
+create index file_state_pending on file_state(mtime desc, file_path)
+    where sha1 is null and event_type != 'delete';
+
+-- A count of changes to the catalog, which the trigger below adds one to for every event, so a path filter can tell
+-- whether it's up to date. Anything that changes file_state some other way has to add to it too.
+create table catalog_changes (
+    id integer primary key check (id = 0),
+    generation integer not null
 );
+
+-- A Bloom filter over every path in file_state, as of a generation, so that files a catalog has never had don't need
+-- looking up. CatalogWriter keeps it up to date, and builds it again when it's out of date. See PathFilter.
+create table path_filter (
+    id integer primary key check (id = 0),
+    generation integer not null,
+    capacity integer not null,
+    entries integer not null,
+    hash_count integer not null,
+    bits blob not null
+);
+
+-- Events the way they look to people and scripts: full paths, location names and hex checksums. Checksums that were
+-- inserted as text are shown as they are.
+create view file_events as
+    select d.path || e.file_name as file_path, e.time, e.event_type, l.name as storage_location,
+        case typeof(e.sha1) when 'blob' then lower(hex(e.sha1)) else e.sha1 end as sha1, e.size, e.mtime,
+        case typeof(e.content_sha1) when 'blob' then lower(hex(e.content_sha1)) else e.content_sha1 end as content_sha1,
+        e.fingerprint, e.moved_to
+    from events e join directories d on d.id = e.directory_id join locations l on l.id = e.location_id;
+
+-- The latest event of every file, the same way.
+create view current_state as
+    select s.file_path, s.time, s.event_type, l.name as storage_location,
+        case typeof(s.sha1) when 'blob' then lower(hex(s.sha1)) else s.sha1 end as sha1, s.size, s.mtime,
+        case typeof(s.content_sha1) when 'blob' then lower(hex(s.content_sha1)) else s.content_sha1 end as content_sha1,
+        s.fingerprint, s.moved_to
+    from file_state s join locations l on l.id = s.location_id;
+
+-- Records an event inserted into file_events: adds its directory and location if they're new, inserts it into events,
+-- and makes it the file's current state unless that's newer, and counts the change. The directory is the path with
+-- everything after the last separator trimmed off.
+create trigger file_events_insert instead of insert on file_events begin
+    insert or ignore into directories(path)
+        values(rtrim(new.file_path, replace(replace(new.file_path, '/', ''), '\', '')));
+    insert or ignore into locations(name) values(new.storage_location);
+    insert into events(directory_id, file_name, time, event_type, location_id, sha1, size, mtime, content_sha1,
+            fingerprint, moved_to)
+        values((select id from directories
+                where path = rtrim(new.file_path, replace(replace(new.file_path, '/', ''), '\', ''))),
+            substr(new.file_path, length(rtrim(new.file_path, replace(replace(new.file_path, '/', ''), '\', ''))) + 1),
+            new.time, new.event_type, (select id from locations where name = new.storage_location), new.sha1,
+            new.size, new.mtime, new.content_sha1, new.fingerprint, new.moved_to);
+    insert into file_state(file_path, time, event_type, location_id, sha1, size, mtime, content_sha1, fingerprint,
+            moved_to)
+        values(new.file_path, new.time, new.event_type, (select id from locations where name = new.storage_location),
+            new.sha1, new.size, new.mtime, new.content_sha1, new.fingerprint, new.moved_to)
+        on conflict(file_path) do update set event_type = excluded.event_type, time = excluded.time,
+            location_id = excluded.location_id, sha1 = excluded.sha1, size = excluded.size, mtime = excluded.mtime,
+            content_sha1 = excluded.content_sha1, fingerprint = excluded.fingerprint, moved_to = excluded.moved_to
+        where excluded.time >= file_state.time;
+    insert into catalog_changes(id, generation) values(0, 1)
+        on conflict(id) do update set generation = generation + 1;
+end;
+
+-- How far a scan has gotten, so one that dies partway can be resumed. See ScanCheckpoint. A scan deletes its rows when
+-- it finishes.
+create table scan_checkpoints (
+    scan_id text primary key,
+    started integer not null,
+    last_directory text, -- every directory up to this one in walk order is done; null until one is
+    walk_complete integer not null, -- 1 once every directory is done, and only deletes are left
+    updated integer not null
+);
+
+-- The names of the files in each directory a checkpoint covers, since deletes are worked out from every path a scan
+-- saw. Each name is its length, a colon and the name, since a name can have a newline in it.
+create table scan_checkpoint_files (
+    scan_id text not null,
+    directory text not null,
+    file_names text not null,
+    primary key (scan_id, directory)
+);
+
+-- Tracks which of the upgrades in CatalogSchema have been applied. Bump this along with CatalogSchema.CURRENT_VERSION.
+pragma user_version = 9;
@@ -1,5 +1,19 @@
 #!/bin/bash
 
+# Prints the sql that records an event. file_events is a view, and inserting into it records the event and updates
+# current_state, the latest event of each file, in the same statement, so the two can't disagree.
+record_event_stmt() {
+  [ "$#" -eq 4 ] || {
+    echo "record_event_stmt() requires four args."
+    echo "- event_type: create, update, or delete"
+    echo "- path: db-safe relative path of the file"
+    echo "- time: the time at which this scan is running; format is seconds since epoch"
+    echo "- sha1: checksum of the file"
+    exit 1
+  }
+  echo "insert into file_events(event_type, file_path, time, storage_location, sha1) values('$1', '$2', $3, 'Amazon', '$4');"
+}
+
 analyze_existing_actual_file() {
   [ "$#" -eq 2 ] || {
     echo "analyze_existing_actual_file() requires two args."
@@ -17,7 +31,7 @@ analyze_existing_actual_file() {
   path="${1//\'/\'\'}"
   debug "db-safe path: $path"
   # Does this file exist yet?
-  find_current_stmt="select event_type, sha1 from file_events where file_path = '$path' order by time desc limit 1;"
+  find_current_stmt="select event_type, sha1 from current_state where file_path = '$path';"
   current="$(sqlite3 test.db "$find_current_stmt")"
   IFS='|' read -r -a current_fields <<<"$current"
   debug "current state: ${current_fields[*]}"
@@ -27,21 +41,19 @@ analyze_existing_actual_file() {
     debug "event_type: $event_type"
     last_sha1="${current_fields[1]}"
     debug "sha1: $last_sha1"
-    if [ "$event_type" = "delete" ]; then
+    # A move records that the file went somewhere else, so one that's here again is re-created, like after a delete.
+    if [ "$event_type" = "delete" ] || [ "$event_type" = "move" ]; then
       debug "action: mark file (re-)created: $file_path"
-      stmt="insert into file_events(event_type, file_path, time, storage_location, sha1) "
-      stmt+="values('create', '$path', $time, 'Amazon', '$sha1');"
+      stmt="$(record_event_stmt create "$path" "$time" "$sha1")"
     # Make sure not to mark a newly re-created file as an update if it was just marked a create! A new file is a new file,
     # even if it happens to be named the same as a previously deleted one.
     elif [ ! "$last_sha1" = "$sha1" ]; then
       debug "action: mark file updated: $file_path"
-      stmt="insert into file_events(event_type, file_path, time, storage_location, sha1) "
-      stmt+="values('update', '$path', $time, 'Amazon', '$sha1');"
+      stmt="$(record_event_stmt update "$path" "$time" "$sha1")"
     fi
   else
     debug "action: mark file created: $file_path"
-    stmt="insert into file_events(event_type, file_path, time, storage_location, sha1) "
-    stmt+="values('create', '$path', $time, 'Amazon', '$sha1');"
+    stmt="$(record_event_stmt create "$path" "$time" "$sha1")"
   fi
   if [ -n "$stmt" ]; then
     db_execute_until_success "test.db" "$stmt"
@@ -64,14 +76,14 @@ analyze_existing_db_file() {
     debug "state: file still exists"
   else
     debug "action: mark file deleted: $file_path"
-    find_current_stmt="select sha1 from file_events where file_path = '$path' order by time desc limit 1;"
+    find_current_stmt="select sha1 from current_state where file_path = '$path';"
     current="$(sqlite3 test.db "$find_current_stmt")"
     debug "last sha1: $current"
-    stmt="insert into file_events(event_type, file_path, time, storage_location, sha1) "
-    stmt+="values('delete', '$path', $time, 'Amazon', '$current');"
+    stmt="$(record_event_stmt delete "$path" "$time" "$current")"
     db_execute_until_success "test.db" "$stmt"
   fi
 }
 
+export -f record_event_stmt
 export -f analyze_existing_actual_file
 export -f analyze_existing_db_file
@@ -17,7 +17,8 @@ debug "time: $now"
 AMAZON_DIR=/mnt/d/amazon-drive/Amazon\ Drive/
 find "$AMAZON_DIR" -type f -print0 | xargs -0 -I {} bash -c "analyze_existing_actual_file '{}' $now"
 
-# For all files that should exist according to the db, check if they still exist.
+# For all files that should exist according to the db, check if they still exist. A file that was moved away is gone
+# from its old path the same as a deleted one.
 while read -r line; do
   analyze_existing_db_file "$line" "$now"
-done < <(sqlite3 test.db "select distinct file_path from file_events where file_path not in (select file_path from file_events where event_type = 'delete');")
+done < <(sqlite3 test.db "select file_path from current_state where event_type not in ('delete', 'move');")
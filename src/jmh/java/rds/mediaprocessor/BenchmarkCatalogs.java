@@ -0,0 +1,104 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static rds.mediaprocessor.DbNames.*;
+
+/**
+ * Makes throwaway catalogs full of made-up files for the benchmarks to work on. Everything's generated from the file's
+ * number, so the same arguments always give the same catalog.
+ */
+class BenchmarkCatalogs {
+    /**
+     * Two catalogs made with these variants agree on most files. Every 100th file is only in variant 0, the one after
+     * it is only in variant 1, and every 10,000th has different content in each.
+     */
+    static final int LEFT = 0;
+    static final int RIGHT = 1;
+
+    private BenchmarkCatalogs() {
+    }
+
+    /**
+     * Creates an empty catalog from create-schema.sql, which is why benchmarks have to run from the project root.
+     */
+    static Path create(Path directory, String name) throws IOException, SQLException {
+        Files.createDirectories(directory);
+        Path catalog = directory.resolve(name);
+        Files.deleteIfExists(catalog);
+        String initSql = FileUtils.readFileToString(new File("create-schema.sql"), "UTF-8");
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + catalog)) {
+            connection.createStatement().execute(initSql);
+            // The driver only runs the first statement of the script, and upgrading fills in the rest.
+            CatalogSchema.upgrade(connection);
+        }
+        return catalog;
+    }
+
+    static String pathOf(int file) {
+        return String.format("%04d/IMG_%07d.jpg", file / 1000, file);
+    }
+
+    /**
+     * The create event for a made-up file, as a scan would emit it.
+     */
+    static MainBuildCatalog.FileEvent createEvent(int file, int variant) {
+        String sha1 = DigestUtils.sha1Hex(variant == RIGHT && file % 10_000 == 2 ? "changed " + file : "file " + file);
+        return new MainBuildCatalog.FileEvent(EventTypes.create,
+                new MainBuildCatalog.FileInfo(pathOf(file), sha1, 1_000_000L + file, 1_600_000_000_000L + file));
+    }
+
+    static List<MainBuildCatalog.FileEvent> createEvents(int files, int variant) {
+        List<MainBuildCatalog.FileEvent> events = new ArrayList<>(files);
+        for (int file = 0; file < files; file++) {
+            if ((variant == LEFT && file % 100 == 1) || (variant == RIGHT && file % 100 == 0)) {
+                continue;
+            }
+            events.add(createEvent(file, variant));
+        }
+        return events;
+    }
+
+    /**
+     * Creates a catalog holding a create event for each of the given number of files, written straight to the db in
+     * one transaction, since how fast it gets there isn't what's being measured.
+     */
+    static Path createFilled(Path directory, String name, int files, int variant) throws IOException, SQLException {
+        Path catalog = create(directory, name);
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + catalog)) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "insert into file_events(event_type, file_path, time, storage_location, sha1, size, mtime, " +
+                            "content_sha1, fingerprint, moved_to) values(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+                for (MainBuildCatalog.FileEvent event : createEvents(files, variant)) {
+                    insert.setString(1, event.eventType);
+                    insert.setString(2, event.relPath);
+                    insert.setLong(3, 1L);
+                    insert.setString(4, "benchmark");
+                    insert.setObject(5, CatalogStorage.toColumn(event.sha1Hex));
+                    insert.setObject(6, event.size);
+                    insert.setObject(7, event.mtime);
+                    insert.setObject(8, CatalogStorage.toColumn(event.contentSha1Hex));
+                    insert.setString(9, event.fingerprint);
+                    insert.setString(10, event.movedTo);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+            connection.commit();
+        }
+        return catalog;
+    }
+}
@@ -0,0 +1,78 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a scan's worth of events into an empty catalog, in time per event. The "batch-N" writers are a
+ * {@link CatalogWriter} held to a fixed batch size, "adaptive" is one left to pick its own, and "bulk" is the
+ * {@link BulkCatalogLoader}, including its copy into file_events and its integrity check at the end.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CatalogWriterBenchmark {
+    private static final int EVENTS = 20_000;
+
+    @Param({"batch-50", "batch-200", "batch-2000", "batch-20000", "adaptive", "bulk"})
+    public String writer;
+
+    private Path directory;
+    private List<MainBuildCatalog.FileEvent> events;
+    private Path catalog;
+    private CatalogDatabase database;
+
+    @Setup(Level.Trial)
+    public void createEvents() throws Exception {
+        directory = Files.createTempDirectory("writer-benchmark-");
+        events = BenchmarkCatalogs.createEvents(EVENTS, BenchmarkCatalogs.LEFT);
+    }
+
+    @Setup(Level.Invocation)
+    public void createCatalog() throws Exception {
+        catalog = BenchmarkCatalogs.create(directory, "catalog.db");
+        database = CatalogDatabase.open(catalog, Map.of());
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeCatalog() throws Exception {
+        database.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDirectory() throws Exception {
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void writeEvents() throws Exception {
+        if ("bulk".equals(writer)) {
+            try (BulkCatalogLoader loader = new BulkCatalogLoader(catalog, 1L, new ScanMetrics(), Map.of())) {
+                events.forEach(loader::addToBatch);
+                loader.finish();
+            }
+            return;
+        }
+        Map<String, String> settings = new HashMap<>();
+        if (writer.startsWith("batch-")) {
+            String batchSize = writer.substring("batch-".length());
+            settings.put("CatalogWriter.initialBatchSize", batchSize);
+            settings.put("CatalogWriter.minBatchSize", batchSize);
+            settings.put("CatalogWriter.maxBatchSize", batchSize);
+        }
+        try (CatalogWriter catalogWriter = new CatalogWriter(database.writer(), 1L, new ScanMetrics(), settings)) {
+            events.forEach(catalogWriter::addToBatch);
+        }
+    }
+}
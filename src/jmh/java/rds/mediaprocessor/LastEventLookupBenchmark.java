@@ -0,0 +1,118 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the last event of one file, which a scan does for every file it finds. "fileEventsQuery" is the query scans
+ * used to run against the events before file_state existed, "currentStateQuery" is the query lookup mode, and
+ * "preloadedIndex" is the default preload mode once it's loaded. "loadIndex" is what it costs to load. "newFileQuery"
+ * and "newFileFiltered" look up files the catalog doesn't have, like a scan of a new folder does, with and without the
+ * {@link PathFilter} in front of the query.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LastEventLookupBenchmark {
+    @Param({"10000", "100000"})
+    public int files;
+
+    private Path directory;
+    private Connection connection;
+    private LastEventLookup currentStateQuery;
+    private PreparedStatement fileEventsQuery;
+    private LastEventIndex index;
+    private PathFilter pathFilter;
+    private String[] paths;
+    private String[] newPaths;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void createCatalog() throws Exception {
+        directory = Files.createTempDirectory("lookup-benchmark-");
+        Path catalog = BenchmarkCatalogs.createFilled(directory, "catalog.db", files, BenchmarkCatalogs.LEFT);
+        connection = DriverManager.getConnection("jdbc:sqlite:" + catalog);
+        currentStateQuery = new LastEventLookup.Query(DriverManager.getConnection("jdbc:sqlite:" + catalog));
+        fileEventsQuery = connection.prepareStatement(
+                "select event_type, sha1, size, mtime from events where directory_id = " +
+                        "(select id from directories where path = ?) and file_name = ? order by time desc limit 1");
+        index = LastEventIndex.load(connection);
+        pathFilter = PathFilter.build(connection);
+        // Look files up in a scattered order, the way a walk of a big tree does relative to the primary key.
+        paths = new String[4096];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = BenchmarkCatalogs.pathOf((int) ((i * 2654435761L) % files));
+        }
+        newPaths = new String[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            newPaths[i] = "new/" + paths[i];
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteCatalog() throws Exception {
+        currentStateQuery.close();
+        fileEventsQuery.close();
+        connection.close();
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    private String nextPath() {
+        next = (next + 1) & (paths.length - 1);
+        return paths[next];
+    }
+
+    @Benchmark
+    public Object fileEventsQuery() throws SQLException {
+        String path = nextPath();
+        fileEventsQuery.setString(1, CatalogStorage.directoryOf(path));
+        fileEventsQuery.setString(2, CatalogStorage.fileNameOf(path));
+        try (ResultSet resultSet = fileEventsQuery.executeQuery()) {
+            return resultSet.next() ? CatalogStorage.fromColumn(resultSet.getObject(2)) : null;
+        }
+    }
+
+    @Benchmark
+    public Object currentStateQuery() throws SQLException {
+        return currentStateQuery.find(nextPath());
+    }
+
+    @Benchmark
+    public Object newFileQuery() throws SQLException {
+        next = (next + 1) & (newPaths.length - 1);
+        return currentStateQuery.find(newPaths[next]);
+    }
+
+    @Benchmark
+    public Object newFileFiltered() throws SQLException {
+        next = (next + 1) & (newPaths.length - 1);
+        String path = newPaths[next];
+        return pathFilter.mightContain(path) ? currentStateQuery.find(path) : null;
+    }
+
+    @Benchmark
+    public Object preloadedIndex() {
+        return index.find(nextPath());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public Object loadIndex() throws SQLException {
+        return LastEventIndex.load(connection);
+    }
+}
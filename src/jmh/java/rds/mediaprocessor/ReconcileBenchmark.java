@@ -0,0 +1,74 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reconciling two generated catalogs that mostly agree. See {@link BenchmarkCatalogs} for how they differ.
+ * "twoWay" is {@link MainReconcileThings#reconcileCatalogs} and "nWay" is a {@link MultiCatalogReconciler} over the
+ * same two catalogs with a partition per core. "twoWaySnapshots" is {@link MainReconcileThings#reconcileSnapshots} over
+ * snapshots of them, taken once up front.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReconcileBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int files;
+
+    private Path directory;
+    private Path left;
+    private Path right;
+    private Path leftSnapshot;
+    private Path rightSnapshot;
+
+    @Setup(Level.Trial)
+    public void createCatalogs() throws Exception {
+        directory = Files.createTempDirectory("reconcile-benchmark-");
+        left = BenchmarkCatalogs.createFilled(directory, "left.db", files, BenchmarkCatalogs.LEFT);
+        right = BenchmarkCatalogs.createFilled(directory, "right.db", files, BenchmarkCatalogs.RIGHT);
+        leftSnapshot = directory.resolve("left.snapshot");
+        rightSnapshot = directory.resolve("right.snapshot");
+        CatalogSnapshot.write(location("left", left), leftSnapshot);
+        CatalogSnapshot.write(location("right", right), rightSnapshot);
+    }
+
+    private static Location location(String name, Path catalog) {
+        return new Location(name, catalog, null, false, false);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteCatalogs() throws Exception {
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Benchmark
+    public Object twoWay() throws Exception {
+        return MainReconcileThings.reconcileCatalogs(left, right);
+    }
+
+    @Benchmark
+    public Object twoWaySnapshots() throws Exception {
+        return MainReconcileThings.reconcileSnapshots(location("left", left), leftSnapshot,
+                location("right", right), rightSnapshot);
+    }
+
+    @Benchmark
+    public Object nWay() throws Exception {
+        List<Location> locations = List.of(
+                new Location("left", left, null, true, true),
+                new Location("right", right, null, false, false));
+        // The same fetch size two-way reconciling uses.
+        return new MultiCatalogReconciler(locations, Runtime.getRuntime().availableProcessors(), 1000)
+                .reconcile(verdict -> {
+                });
+    }
+}
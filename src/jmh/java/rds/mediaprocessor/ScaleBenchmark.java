@@ -0,0 +1,235 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Runs the whole thing end to end against a {@link SyntheticMediaTree}: an initial build of an empty catalog, a rescan
+ * after the tree's been mutated, and a reconcile of the catalog from before the mutations against the one from after.
+ * Each phase records how long it took, files/s, MB/s, peak heap and, for builds, commit time percentiles, and it all
+ * goes into a JSON report.
+ * <p>
+ * If there's a thresholds file, every "phase.metric.min" or "phase.metric.max" in it is checked against the results.
+ * Anything out of bounds is listed in the report as a regression, and the exit status is 1.
+ * <p>
+ * Arguments are settings as key=value, which are passed on to the tree and the build, so "SyntheticMediaTree.files"
+ * and "FileSystemScanner.hashThreads" go here too. Its own settings are:
+ * <ul>
+ *     <li>ScaleBenchmark.workDir: where the tree and catalogs go; a new temp dir by default, deleted at the end</li>
+ *     <li>ScaleBenchmark.report: where the report goes (scale-report.json)</li>
+ *     <li>ScaleBenchmark.thresholds: a properties file of thresholds to check</li>
+ *     <li>ScaleBenchmark.editFraction, deleteFraction, renameFraction: how much to mutate before the rescan
+ *     (0.01, 0.005, 0.005)</li>
+ * </ul>
+ * Run it from the project root with the jmh profile's jar:
+ * <pre>
+ *   java -cp target/benchmarks.jar rds.mediaprocessor.ScaleBenchmark SyntheticMediaTree.files=200000 \
+ *       ScaleBenchmark.thresholds=src/jmh/scale-thresholds.properties
+ * </pre>
+ */
+public class ScaleBenchmark {
+    public static void main(String[] args) throws Exception {
+        Map<String, String> settings = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals == -1) {
+                throw new IllegalArgumentException("Arguments are key=value settings, not " + arg);
+            }
+            settings.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        List<String> regressions = new ScaleBenchmark().run(settings);
+        System.exit(regressions.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * @return the regressions found, which is empty if there weren't any or there weren't any thresholds to check
+     */
+    public List<String> run(Map<String, String> settings) throws Exception {
+        String workDirSetting = settings.get("ScaleBenchmark.workDir");
+        Path workDir = workDirSetting == null
+                ? Files.createTempDirectory("scale-benchmark-") : Files.createDirectories(Paths.get(workDirSetting));
+        Path tree = workDir.resolve("tree");
+        Path catalog = workDir.resolve("catalog.db");
+        Path catalogBefore = workDir.resolve("catalog-before-mutations.db");
+        Map<String, Map<String, Double>> phases = new LinkedHashMap<>();
+        try {
+            long start = System.nanoTime();
+            SyntheticMediaTree.Summary summary = new SyntheticMediaTree(settings).generate(tree);
+            System.out.println("Generated " + summary.files + " files, " + summary.bytes + " bytes, in "
+                    + seconds(start) + " s");
+            BenchmarkCatalogs.create(workDir, catalog.getFileName().toString());
+
+            Phase initialBuild = new Phase();
+            ScanMetrics initialMetrics = MainBuildCatalog.buildCatalog(tree, catalog, settings);
+            phases.put("initialBuild", initialBuild.finish(summary.files, summary.bytes, initialMetrics));
+
+            Files.copy(catalog, catalogBefore, StandardCopyOption.REPLACE_EXISTING);
+            SyntheticMediaTree.Mutations mutations = SyntheticMediaTree.mutate(tree, 2,
+                    Double.parseDouble(settings.getOrDefault("ScaleBenchmark.editFraction", "0.01")),
+                    Double.parseDouble(settings.getOrDefault("ScaleBenchmark.deleteFraction", "0.005")),
+                    Double.parseDouble(settings.getOrDefault("ScaleBenchmark.renameFraction", "0.005")));
+            System.out.println("Mutated tree: " + mutations);
+
+            // A rescan's rates are for the whole tree, since it has to look at every file, even though it only reads
+            // the changed ones.
+            Phase rescan = new Phase();
+            ScanMetrics rescanMetrics = MainBuildCatalog.buildCatalog(tree, catalog, settings);
+            phases.put("rescan", rescan.finish(summary.files, summary.bytes, rescanMetrics));
+
+            Phase reconcile = new Phase();
+            int diffs = MainReconcileThings.reconcileCatalogs(catalogBefore, catalog).size();
+            Map<String, Double> reconcileResults = reconcile.finish(summary.files, 0, null);
+            // Each edit, delete and rename is one difference. A rename is recorded as a move, and the move's diff
+            // covers the new path too.
+            reconcileResults.put("differences", (double) diffs);
+            reconcileResults.put("expectedDifferences",
+                    (double) mutations.edited + mutations.deleted + mutations.renamed);
+            phases.put("reconcile", reconcileResults);
+
+            List<String> regressions = checkThresholds(settings.get("ScaleBenchmark.thresholds"), phases);
+            if (diffs != mutations.edited + mutations.deleted + mutations.renamed) {
+                regressions.add("reconcile found " + diffs + " differences but the mutations should have made "
+                        + (mutations.edited + mutations.deleted + mutations.renamed));
+            }
+            Path report = Paths.get(settings.getOrDefault("ScaleBenchmark.report", "scale-report.json"));
+            Files.writeString(report, toJson(settings, summary, phases, regressions));
+            System.out.println("Wrote report to " + report.toAbsolutePath());
+            for (String regression : regressions) {
+                System.out.println("REGRESSION: " + regression);
+            }
+            return regressions;
+        } finally {
+            if (workDirSetting == null) {
+                FileUtils.deleteDirectory(workDir.toFile());
+            }
+        }
+    }
+
+    /**
+     * Measures one phase: wall time, heap at its peak, and commit times from the build's metrics.
+     */
+    private static class Phase {
+        private final long start;
+
+        Phase() {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    pool.resetPeakUsage();
+                }
+            }
+            start = System.nanoTime();
+        }
+
+        /**
+         * @param metrics what the build measured, or null if the phase wasn't a build
+         */
+        Map<String, Double> finish(int files, long bytes, ScanMetrics metrics) {
+            double seconds = seconds(start);
+            long peakHeap = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peakHeap += pool.getPeakUsage().getUsed();
+                }
+            }
+            Map<String, Double> results = new LinkedHashMap<>();
+            results.put("seconds", seconds);
+            results.put("filesPerSecond", files / seconds);
+            if (bytes > 0) {
+                results.put("megabytesPerSecond", bytes / (1024.0 * 1024.0) / seconds);
+            }
+            if (metrics != null) {
+                Histogram.Snapshot commits = metrics.getCommitMicros();
+                results.put("commitMillisP50", commits.getP50() / 1000.0);
+                results.put("commitMillisP99", commits.getP99() / 1000.0);
+                results.put("commitMillisMax", commits.getMax() / 1000.0);
+                results.put("queueWaitMillisP99", metrics.getQueueWaitMicros().getP99() / 1000.0);
+            }
+            results.put("peakHeapMegabytes", peakHeap / (1024.0 * 1024.0));
+            return results;
+        }
+    }
+
+    private static double seconds(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    private static List<String> checkThresholds(String thresholdsFile, Map<String, Map<String, Double>> phases)
+            throws IOException {
+        List<String> regressions = new ArrayList<>();
+        if (thresholdsFile == null) {
+            return regressions;
+        }
+        Properties thresholds = new Properties();
+        try (Reader reader = Files.newBufferedReader(Paths.get(thresholdsFile))) {
+            thresholds.load(reader);
+        }
+        for (String key : new TreeMap<>(thresholds).keySet().stream().map(Object::toString).toList()) {
+            String[] parts = key.split("\\.");
+            if (parts.length != 3 || !(parts[2].equals("min") || parts[2].equals("max"))) {
+                throw new IllegalStateException("Thresholds are phase.metric.min or phase.metric.max, not " + key);
+            }
+            double limit = Double.parseDouble(thresholds.getProperty(key));
+            Double actual = phases.getOrDefault(parts[0], Map.of()).get(parts[1]);
+            if (actual == null) {
+                regressions.add(parts[0] + "." + parts[1] + " has a threshold but wasn't measured");
+            } else if (parts[2].equals("min") ? actual < limit : actual > limit) {
+                regressions.add(parts[0] + "." + parts[1] + " was " + actual + ", " + parts[2] + " is " + limit);
+            }
+        }
+        return regressions;
+    }
+
+    private static String toJson(Map<String, String> settings, SyntheticMediaTree.Summary summary,
+                                 Map<String, Map<String, Double>> phases, List<String> regressions) {
+        StringBuilder json = new StringBuilder("{\n  \"settings\": {");
+        String separator = "";
+        for (Map.Entry<String, String> setting : new TreeMap<>(settings).entrySet()) {
+            json.append(separator).append("\n    ").append(quote(setting.getKey())).append(": ")
+                    .append(quote(setting.getValue()));
+            separator = ",";
+        }
+        json.append("\n  },\n  \"tree\": {\"files\": ").append(summary.files)
+                .append(", \"bytes\": ").append(summary.bytes).append("},\n  \"phases\": {");
+        separator = "";
+        for (Map.Entry<String, Map<String, Double>> phase : phases.entrySet()) {
+            json.append(separator).append("\n    ").append(quote(phase.getKey())).append(": {");
+            String metricSeparator = "";
+            for (Map.Entry<String, Double> metric : phase.getValue().entrySet()) {
+                json.append(metricSeparator).append(quote(metric.getKey())).append(": ")
+                        .append(String.format(Locale.ROOT, "%.3f", metric.getValue()));
+                metricSeparator = ", ";
+            }
+            json.append("}");
+            separator = ",";
+        }
+        json.append("\n  },\n  \"regressions\": [");
+        separator = "";
+        for (String regression : regressions) {
+            json.append(separator).append("\n    ").append(quote(regression));
+            separator = ",";
+        }
+        json.append(regressions.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+        return json.toString();
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,78 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing one file with each way of reading it. The file is written once per trial, so after the first read it's in
+ * the page cache, and this measures the cost of getting bytes into the digest, not the disk. How fast the disk is gets
+ * measured end to end.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Sha1Benchmark {
+    @Param({"4096", "1048576", "67108864"})
+    public int fileSize;
+
+    /**
+     * "stream" is how files were hashed before {@link Sha1Hasher}, through an InputStream. The others are
+     * {@link Sha1Hasher} reading into a direct buffer of the given size, or memory-mapping the whole file.
+     */
+    @Param({"stream", "buffered-64k", "buffered-1m", "mapped"})
+    public String strategy;
+
+    private Path directory;
+    private Path file;
+    private Sha1Hasher hasher;
+    private final byte[] digest = new byte[Sha1Hasher.DIGEST_LENGTH];
+
+    @Setup(Level.Trial)
+    public void writeFile() throws IOException {
+        directory = Files.createTempDirectory("sha1-benchmark-");
+        file = directory.resolve("file");
+        Random random = new Random(fileSize);
+        byte[] chunk = new byte[64 * 1024];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int written = 0; written < fileSize; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, Math.min(chunk.length, fileSize - written));
+            }
+        }
+        if ("buffered-64k".equals(strategy)) {
+            hasher = new Sha1Hasher(64 * 1024, Long.MAX_VALUE);
+        } else if ("buffered-1m".equals(strategy)) {
+            hasher = new Sha1Hasher(1024 * 1024, Long.MAX_VALUE);
+        } else if ("mapped".equals(strategy)) {
+            hasher = new Sha1Hasher(Sha1Hasher.DEFAULT_BUFFER_SIZE, 0);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Benchmark
+    public byte[] sha1() throws IOException {
+        if (hasher == null) {
+            try (InputStream in = Files.newInputStream(file)) {
+                return DigestUtils.sha1(in);
+            }
+        }
+        hasher.hash(file, digest);
+        return digest;
+    }
+}
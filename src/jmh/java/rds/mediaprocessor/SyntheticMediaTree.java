@@ -0,0 +1,188 @@
+package rds.mediaprocessor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Generates a made-up media library that looks enough like the real one to exercise a scan at scale: lots of photos
+ * in nested directories, a few sidecar files, and a handful of huge videos. Everything comes from a seed, so the same
+ * settings always make the same tree, byte for byte.
+ * <p>
+ * Videos are sparse files. Only a little bit at the start is real data, so a multi-GB video costs next to nothing to
+ * create or keep on disk, but reading one still goes through every byte.
+ * <p>
+ * Settings, all prefixed with "SyntheticMediaTree.":
+ * <ul>
+ *     <li>seed: what everything's generated from (1)</li>
+ *     <li>files: how many files, videos included (10000)</li>
+ *     <li>videos: how many of them are videos (3)</li>
+ *     <li>maxDepth: how deep directories go (4)</li>
+ *     <li>fanout: how many subdirectories a directory can have (8)</li>
+ *     <li>minPhotoBytes, maxPhotoBytes: photo sizes are spread evenly on a log scale between these (16k, 512k)</li>
+ *     <li>videoBytes: the size of every video (2g)</li>
+ *     <li>sidecarFraction: the fraction of files that are small .xmp files (0.05)</li>
+ * </ul>
+ */
+public class SyntheticMediaTree {
+    private static final int VIDEO_HEADER_BYTES = 64 * 1024;
+
+    private final long seed;
+    private final int files;
+    private final int videos;
+    private final int maxDepth;
+    private final int fanout;
+    private final long minPhotoBytes;
+    private final long maxPhotoBytes;
+    private final long videoBytes;
+    private final double sidecarFraction;
+
+    /**
+     * What the tree holds, so a harness can work out rates.
+     */
+    public static class Summary {
+        public final int files;
+        public final long bytes;
+
+        public Summary(int files, long bytes) {
+            this.files = files;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * What a round of mutations did.
+     */
+    public static class Mutations {
+        public int edited;
+        public int deleted;
+        public int renamed;
+
+        @Override
+        public String toString() {
+            return edited + " edited, " + deleted + " deleted, " + renamed + " renamed";
+        }
+    }
+
+    public SyntheticMediaTree(Map<String, String> settings) {
+        seed = Long.parseLong(settings.getOrDefault("SyntheticMediaTree.seed", "1"));
+        files = Integer.parseInt(settings.getOrDefault("SyntheticMediaTree.files", "10000"));
+        videos = Integer.parseInt(settings.getOrDefault("SyntheticMediaTree.videos", "3"));
+        maxDepth = Integer.parseInt(settings.getOrDefault("SyntheticMediaTree.maxDepth", "4"));
+        fanout = Integer.parseInt(settings.getOrDefault("SyntheticMediaTree.fanout", "8"));
+        minPhotoBytes = parseBytes(settings.getOrDefault("SyntheticMediaTree.minPhotoBytes", "16k"));
+        maxPhotoBytes = parseBytes(settings.getOrDefault("SyntheticMediaTree.maxPhotoBytes", "512k"));
+        videoBytes = parseBytes(settings.getOrDefault("SyntheticMediaTree.videoBytes", "2g"));
+        sidecarFraction = Double.parseDouble(settings.getOrDefault("SyntheticMediaTree.sidecarFraction", "0.05"));
+    }
+
+    /**
+     * Parses a size like "512k", "64m" or "2g".
+     */
+    static long parseBytes(String size) {
+        String lower = size.trim().toLowerCase();
+        char unit = lower.charAt(lower.length() - 1);
+        long multiplier = unit == 'k' ? 1L << 10 : unit == 'm' ? 1L << 20 : unit == 'g' ? 1L << 30 : 1;
+        return Long.parseLong(multiplier == 1 ? lower : lower.substring(0, lower.length() - 1)) * multiplier;
+    }
+
+    /**
+     * Creates the tree under root, which has to be empty or not exist yet.
+     */
+    public Summary generate(Path root) throws IOException {
+        Files.createDirectories(root);
+        Random random = new Random(seed);
+        long bytes = 0;
+        // Spread the videos evenly through the tree, so they don't all land at the end of a scan.
+        int videoEvery = videos > 0 ? Math.max(1, files / videos) : Integer.MAX_VALUE;
+        for (int file = 0; file < files; file++) {
+            Path directory = root;
+            int depth = 1 + random.nextInt(maxDepth);
+            for (int level = 0; level < depth; level++) {
+                directory = directory.resolve(String.format("d%d-%02d", level, random.nextInt(fanout)));
+            }
+            Files.createDirectories(directory);
+            if (file % videoEvery == 0 && file / videoEvery < videos) {
+                writeSparse(directory.resolve(String.format("VID_%07d.mp4", file)), videoBytes, random);
+                bytes += videoBytes;
+            } else if (random.nextDouble() < sidecarFraction) {
+                bytes += writeRandom(directory.resolve(String.format("IMG_%07d.xmp", file)), 512, random);
+            } else {
+                double logSize = Math.log(minPhotoBytes)
+                        + random.nextDouble() * (Math.log(maxPhotoBytes) - Math.log(minPhotoBytes));
+                bytes += writeRandom(directory.resolve(String.format("IMG_%07d.jpg", file)),
+                        Math.round(Math.exp(logSize)), random);
+            }
+        }
+        return new Summary(files, bytes);
+    }
+
+    /**
+     * Changes the tree the way time does between scans. Which files get changed depends only on the seed and what's
+     * in the tree, so the same mutation of the same tree always does the same thing.
+     *
+     * @param mutationSeed  a different seed per round, so rounds don't keep changing the same files
+     * @param editFraction  the fraction of files to overwrite with new content of the same size
+     * @param deleteFraction the fraction of files to delete
+     * @param renameFraction the fraction of files to rename within their directory
+     */
+    public static Mutations mutate(Path root, long mutationSeed, double editFraction, double deleteFraction,
+                                   double renameFraction) throws IOException {
+        List<Path> all;
+        try (Stream<Path> stream = Files.walk(root)) {
+            all = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toCollection(ArrayList::new));
+        }
+        Random random = new Random(mutationSeed);
+        Mutations mutations = new Mutations();
+        for (Path path : all) {
+            double roll = random.nextDouble();
+            if (roll < editFraction) {
+                long size = Files.size(path);
+                // Only rewrite the start of the file, which is enough to change its checksum and keeps big files cheap.
+                byte[] bytes = new byte[(int) Math.min(size, VIDEO_HEADER_BYTES)];
+                random.nextBytes(bytes);
+                try (SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.WRITE)) {
+                    channel.write(ByteBuffer.wrap(bytes));
+                }
+                mutations.edited++;
+            } else if (roll < editFraction + deleteFraction) {
+                Files.delete(path);
+                mutations.deleted++;
+            } else if (roll < editFraction + deleteFraction + renameFraction) {
+                Files.move(path, path.resolveSibling("renamed-" + path.getFileName()));
+                mutations.renamed++;
+            }
+        }
+        return mutations;
+    }
+
+    private static long writeRandom(Path path, long size, Random random) throws IOException {
+        byte[] bytes = new byte[(int) size];
+        random.nextBytes(bytes);
+        Files.write(path, bytes);
+        return size;
+    }
+
+    private static void writeSparse(Path path, long size, Random random) throws IOException {
+        byte[] header = new byte[(int) Math.min(size, VIDEO_HEADER_BYTES)];
+        random.nextBytes(header);
+        try (SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE, StandardOpenOption.SPARSE)) {
+            channel.write(ByteBuffer.wrap(header));
+            if (size > header.length) {
+                // Writing the last byte sets the size and leaves a hole in between.
+                channel.position(size - 1);
+                channel.write(ByteBuffer.wrap(new byte[1]));
+            }
+        }
+    }
+}
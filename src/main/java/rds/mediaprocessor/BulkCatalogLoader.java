@@ -0,0 +1,331 @@
+package rds.mediaprocessor;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+
+/**
+ * Writes the first scan of a location into an empty catalog. An empty catalog has nothing to look up and nothing to
+ * compare against, so none of what makes {@link CatalogWriter} safe for incremental scans is worth paying for:
+ * <ul>
+ *     <li>Events go into a staging table with no primary key or index, in transactions of tens of thousands of rows,
+ *     with the journal in memory and no syncing to disk.</li>
+ *     <li>{@link #finish()} fills in the directories and locations the events need, and copies the events into the
+ *     events table in primary key order, so sqlite builds the primary key index in one sequential pass instead of a
+ *     random insert per file. sqlite can't drop a primary key and add it back later, so this is the nearest thing to
+ *     deferring it. file_state is filled in the same transaction. It all goes straight to the tables described in
+ *     {@link CatalogStorage}, with set-based inserts, instead of through the trigger a row at a time.</li>
+ *     <li>Then the whole catalog gets an integrity check, and file_state is checked against the events.</li>
+ * </ul>
+ * Turning syncing off means a crash in the middle can leave a broken catalog behind, which is fine for a catalog that
+ * had nothing in it. Build it again. The final copy runs with normal durability.
+ * <p>
+ * A catalog opened by {@link CatalogDatabase} is in WAL mode, though, and then only the OS going down can break it, not
+ * the JVM. So with a {@link ScanCheckpoint}, a bulk load that dies keeps what it staged, and picks up where it left off
+ * like any other scan. The checkpoint goes in the same transaction as the staged events it covers, and events staged
+ * after it, from directories the scan walks again when it resumes, are thrown away.
+ * <p>
+ * It uses a connection of its own, since the pragmas it sets shouldn't leak back into a pool.
+ */
+public class BulkCatalogLoader implements FileEventInserter, AutoCloseable {
+    private static final String STAGING_TABLE = "bulk_file_events";
+    private static final String COLUMNS =
+            "event_type, directory, file_name, time, storage_location, sha1, size, mtime, content_sha1, fingerprint";
+    private static final String STAGED_COLUMNS =
+            "s.time, s.event_type, l.id, s.sha1, s.size, s.mtime, s.content_sha1, s.fingerprint";
+    private static final String STAGED_JOINS =
+            " s join directories d on d.path = s.directory join locations l on l.name = s.storage_location";
+
+    private final Connection connection;
+    private final PreparedStatement insertStatement;
+    private final long insertTimestamp;
+    private final ScanMetrics metrics;
+    private final String storageLocation;
+    private final int transactionSize;
+    /**
+     * Whether the catalog is in WAL mode, which it's left in. See {@link CatalogDatabase}.
+     */
+    private final boolean wal;
+    private int pending;
+    private int staged;
+    private boolean finished;
+
+    /**
+     * @param insertTimestamp the time every event is recorded at
+     */
+    public BulkCatalogLoader(Path catalog, long insertTimestamp, ScanMetrics metrics, Map<String, String> settings)
+            throws SQLException {
+        this(catalog, insertTimestamp, metrics, settings, null);
+    }
+
+    /**
+     * @param checkpoint the scan's checkpoint, or null if it doesn't have one. If it's resuming one, whatever was staged
+     *                   for the directories it covers is kept.
+     */
+    public BulkCatalogLoader(Path catalog, long insertTimestamp, ScanMetrics metrics, Map<String, String> settings,
+                             ScanCheckpoint checkpoint) throws SQLException {
+        this.insertTimestamp = insertTimestamp;
+        this.metrics = metrics;
+        // It's the same thing the incremental writer records, so it comes from the same setting.
+        storageLocation = settings.getOrDefault("CatalogWriter.storageLocation", "UNUSED!!");
+        transactionSize = Integer.parseInt(settings.getOrDefault("BulkCatalogLoader.transactionSize", "50000"));
+        connection = DriverManager.getConnection("jdbc:sqlite:" + catalog);
+        try (Statement statement = connection.createStatement()) {
+            if (!isEmpty(connection)) {
+                throw new IllegalStateException("Can't bulk load into " + catalog + "; it already has events");
+            }
+            // A catalog in WAL mode stays in it, since it can't be switched while anything else has it open. Writing to
+            // the WAL without syncing is about as quick anyway.
+            wal = "wal".equalsIgnoreCase(journalMode(statement));
+            if (!wal) {
+                statement.execute("pragma journal_mode = memory");
+            }
+            statement.execute("pragma synchronous = off");
+            statement.execute("pragma cache_size = -262144");
+            if (checkpoint != null && checkpoint.isResuming()) {
+                resume(statement, checkpoint);
+            } else {
+                // Anything left over is from a bulk load that never finished, and it's starting over.
+                statement.execute("drop table if exists " + STAGING_TABLE);
+                statement.execute("create table " + STAGING_TABLE + " (" +
+                        "directory text, file_name text, time integer, event_type text, storage_location text, " +
+                        "sha1 blob, size integer, mtime integer, content_sha1 blob, fingerprint text)");
+            }
+            insertStatement = connection.prepareStatement(
+                    "insert into " + STAGING_TABLE + "(" + COLUMNS + ") values(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            connection.setAutoCommit(false);
+            metrics.watchQueue(this::getCurrentQueuedInserts, transactionSize);
+        } catch (SQLException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Keeps what was staged for the directories the checkpoint covers, and throws away the rest, since the scan walks
+     * those again.
+     */
+    private void resume(Statement statement, ScanCheckpoint checkpoint) throws SQLException {
+        if (!hasStagedEvents(connection)) {
+            throw new IllegalStateException("Can't resume a bulk load with nothing staged");
+        }
+        statement.execute("create temp table bulk_resumed_directories (directory text primary key)");
+        try (PreparedStatement insert = connection.prepareStatement(
+                "insert into bulk_resumed_directories(directory) values(?)")) {
+            for (String directory : checkpoint.resumedDirectories()) {
+                insert.setString(1, directory);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+        int dropped = statement.executeUpdate("delete from " + STAGING_TABLE +
+                " where directory not in (select directory from bulk_resumed_directories)");
+        statement.execute("drop table bulk_resumed_directories");
+        try (ResultSet resultSet = statement.executeQuery("select count(*) from " + STAGING_TABLE)) {
+            resultSet.next();
+            staged = resultSet.getInt(1);
+        }
+        System.out.println("Resuming bulk load with " + staged + " staged events, after dropping " + dropped);
+    }
+
+    /**
+     * @return whether a bulk load that never finished left events staged
+     */
+    public static boolean hasStagedEvents(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(
+                     "select exists (select 1 from sqlite_master where type = 'table' and name = '"
+                             + STAGING_TABLE + "')")) {
+            resultSet.next();
+            return resultSet.getBoolean(1);
+        }
+    }
+
+    private static String journalMode(Statement statement) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery("pragma journal_mode")) {
+            resultSet.next();
+            return resultSet.getString(1);
+        }
+    }
+
+    /**
+     * @return true if the catalog has never had an event recorded in it
+     */
+    public static boolean isEmpty(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select exists (select 1 from events)")) {
+            resultSet.next();
+            return !resultSet.getBoolean(1);
+        }
+    }
+
+    /**
+     * Stages an event. Hashing workers call this directly, so they take turns, but a row into a table with no index
+     * costs next to nothing next to hashing the file it's for.
+     */
+    @Override
+    public synchronized void addToBatch(MainBuildCatalog.FileEvent event) {
+        if (finished) {
+            throw new IllegalStateException("Bulk load already finished");
+        }
+        try {
+            insertStatement.setString(1, event.eventType);
+            insertStatement.setString(2, CatalogStorage.directoryOf(event.relPath));
+            insertStatement.setString(3, CatalogStorage.fileNameOf(event.relPath));
+            insertStatement.setLong(4, insertTimestamp);
+            insertStatement.setString(5, storageLocation);
+            insertStatement.setObject(6, CatalogStorage.toColumn(event.sha1Hex));
+            insertStatement.setObject(7, event.size);
+            insertStatement.setObject(8, event.mtime);
+            insertStatement.setObject(9, CatalogStorage.toColumn(event.contentSha1Hex));
+            insertStatement.setString(10, event.fingerprint);
+            insertStatement.addBatch();
+            metrics.eventsQueued.increment();
+            if (++pending >= transactionSize) {
+                commitPending();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to stage event for " + event.relPath, e);
+        }
+    }
+
+    @Override
+    public synchronized int getCurrentQueuedInserts() {
+        return pending;
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return transactionSize;
+    }
+
+    /**
+     * Commits whatever's staged so far. Nothing shows up in the catalog until {@link #finish()}.
+     */
+    @Override
+    public synchronized void flush() {
+        try {
+            commitPending();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to commit staged events", e);
+        }
+    }
+
+    /**
+     * Whatever a {@link ScanCheckpoint} writes along with the staged events.
+     */
+    interface Work {
+        void run(Connection connection) throws SQLException;
+    }
+
+    /**
+     * Commits whatever's staged so far, along with whatever the work writes, in the same transaction.
+     */
+    synchronized void commitWith(Work work) throws SQLException {
+        long start = System.nanoTime();
+        if (pending > 0) {
+            insertStatement.executeBatch();
+        }
+        work.run(connection);
+        connection.commit();
+        committed(start);
+    }
+
+    private void commitPending() throws SQLException {
+        if (pending == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        insertStatement.executeBatch();
+        connection.commit();
+        committed(start);
+    }
+
+    private void committed(long start) {
+        metrics.commitMicros.record((System.nanoTime() - start) / 1000);
+        if (pending > 0) {
+            metrics.batchSize.record(pending);
+            metrics.eventsCommitted.add(pending);
+        }
+        staged += pending;
+        pending = 0;
+    }
+
+    /**
+     * Moves the staged events into the catalog and checks the result.
+     *
+     * @return the number of events loaded
+     */
+    public synchronized int finish() {
+        flush();
+        finished = true;
+        long start = System.currentTimeMillis();
+        try (Statement statement = connection.createStatement()) {
+            // Done with speed over safety. The rest is the real catalog.
+            connection.setAutoCommit(true);
+            if (!wal) {
+                statement.execute("pragma journal_mode = delete");
+            }
+            statement.execute("pragma synchronous = full");
+            connection.setAutoCommit(false);
+            try {
+                statement.executeUpdate("insert or ignore into locations(name) " +
+                        "select distinct storage_location from " + STAGING_TABLE);
+                statement.executeUpdate("insert or ignore into directories(path) " +
+                        "select distinct directory from " + STAGING_TABLE + " order by directory");
+                statement.executeUpdate("insert into events(directory_id, file_name, time, event_type, location_id, " +
+                        "sha1, size, mtime, content_sha1, fingerprint) select d.id, s.file_name, " + STAGED_COLUMNS +
+                        " from " + STAGING_TABLE + STAGED_JOINS + " order by d.id, s.file_name, s.time");
+                // Each file has exactly one event, so it's also the current state. A second one for the same path would
+                // break the primary key and roll the whole thing back, which is what it should do.
+                statement.executeUpdate("insert into file_state(file_path, time, event_type, location_id, sha1, " +
+                        "size, mtime, content_sha1, fingerprint) select s.directory || s.file_name as file_path, " +
+                        STAGED_COLUMNS + " from " + STAGING_TABLE + STAGED_JOINS + " order by file_path");
+                statement.execute("drop table " + STAGING_TABLE);
+                // None of it went through the trigger, so it has to be counted here. The path filter gets built the
+                // next time a writer opens the catalog.
+                statement.execute(CatalogStorage.COUNT_CHANGE);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+            connection.setAutoCommit(true);
+            System.out.println("Moved " + staged + " staged events into the catalog in "
+                    + (System.currentTimeMillis() - start) + " ms");
+            verify(statement);
+            return staged;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to finish bulk load", e);
+        }
+    }
+
+    private void verify(Statement statement) throws SQLException {
+        long start = System.currentTimeMillis();
+        try (ResultSet resultSet = statement.executeQuery("pragma integrity_check")) {
+            resultSet.next();
+            String result = resultSet.getString(1);
+            if (!"ok".equals(result)) {
+                throw new IllegalStateException("Catalog failed its integrity check after bulk load: " + result);
+            }
+        }
+        int mismatches = CurrentState.verify(connection);
+        if (mismatches != 0) {
+            throw new IllegalStateException(
+                    "file_state disagrees with the events on " + mismatches + " rows after bulk load");
+        }
+        System.out.println("Verified catalog in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try (connection) {
+            insertStatement.close();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package rds.mediaprocessor;
+
+import org.sqlite.Function;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import static rds.mediaprocessor.DbNames.*;
+
+/**
+ * Streams the current state of every file in a catalog, sorted by normalized path, one row at a time. Two or more of
+ * these can be merge-joined to compare catalogs in a single sequential pass.
+ * <p>
+ * The path normalizer is registered with sqlite as a function, so sqlite does the sorting, spilling to temp files if it
+ * has to, and nothing here holds more than a fetch's worth of rows. Without a normalizer, the rows come straight off
+ * the primary key in order and nothing needs sorting at all.
+ * <p>
+ * Keys are in sqlite's binary order, which is the order of their UTF-8 bytes. Use {@link #compareKeys} to compare them,
+ * not String.compareTo, which disagrees for characters outside the basic multilingual plane.
+ * <p>
+ * Catalogs are opened read-only, and they aren't upgraded; see {@link CatalogSchema#requireCurrent}.
+ */
+public class CatalogCursor implements FileStateCursor {
+    private final Connection connection;
+    private final Statement statement;
+    private final ResultSet resultSet;
+    private final java.util.function.Function<String, String> normalizer;
+    private boolean exhausted;
+    private String key;
+
+    /**
+     * @param normalizer turns a path as it's stored in this catalog into the key it's compared by, or null to use the
+     *                   path as is
+     * @param fetchSize  how many rows to read from sqlite at a time
+     */
+    public CatalogCursor(Path catalog, java.util.function.Function<String, String> normalizer, int fetchSize)
+            throws SQLException {
+        this(catalog, normalizer, fetchSize, 0, 1);
+    }
+
+    /**
+     * Streams only the files whose keys fall in one partition of the key space, so that separate partitions can be
+     * merged in parallel. Every catalog puts a given key in the same partition; see {@link #partitionOf}.
+     *
+     * @param partition  which partition to stream, from 0 to partitions - 1
+     * @param partitions how many partitions the key space is split into
+     */
+    public CatalogCursor(Path catalog, java.util.function.Function<String, String> normalizer, int fetchSize,
+                         int partition, int partitions) throws SQLException {
+        this.normalizer = normalizer;
+        connection = openReadOnly(catalog);
+        try {
+            String key = FileEventTable.file_path;
+            if (normalizer != null) {
+                Function.create(connection, "normalize_path", new Function() {
+                    @Override
+                    protected void xFunc() throws SQLException {
+                        result(normalizer.apply(value_text(0)));
+                    }
+                });
+                key = "normalize_path(file_path)";
+            }
+            String where = "";
+            if (partitions > 1) {
+                Function.create(connection, "key_partition", new Function() {
+                    @Override
+                    protected void xFunc() throws SQLException {
+                        result(partitionOf(value_text(0), partitions));
+                    }
+                });
+                where = " where key_partition(" + key + ") = " + partition;
+            }
+            statement = connection.createStatement();
+            statement.setFetchSize(fetchSize);
+            resultSet = statement.executeQuery(
+                    "select file_path, event_type, sha1, size, mtime, content_sha1, fingerprint, moved_to " +
+                            "from file_state" + where + " order by " + key);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Which partition a key belongs to. It only depends on the key, so it's the same in every catalog.
+     */
+    public static int partitionOf(String key, int partitions) {
+        int hash = key.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), partitions);
+    }
+
+    @Override
+    public boolean next() throws SQLException {
+        if (!exhausted && resultSet.next()) {
+            String path = resultSet.getString(FileEventTable.file_path);
+            key = normalizer == null ? path : normalizer.apply(path);
+            return true;
+        }
+        exhausted = true;
+        key = null;
+        return false;
+    }
+
+    @Override
+    public String key() {
+        return key;
+    }
+
+    @Override
+    public String path() throws SQLException {
+        return resultSet.getString(FileEventTable.file_path);
+    }
+
+    @Override
+    public String eventType() throws SQLException {
+        return resultSet.getString(FileEventTable.event_type);
+    }
+
+    @Override
+    public String sha1() throws SQLException {
+        return CatalogStorage.fromColumn(resultSet.getObject(FileEventTable.sha1));
+    }
+
+    @Override
+    public Long size() throws SQLException {
+        long size = resultSet.getLong(FileEventTable.size);
+        return resultSet.wasNull() ? null : size;
+    }
+
+    @Override
+    public Long mtime() throws SQLException {
+        long mtime = resultSet.getLong(FileEventTable.mtime);
+        return resultSet.wasNull() ? null : mtime;
+    }
+
+    @Override
+    public String contentSha1() throws SQLException {
+        return CatalogStorage.fromColumn(resultSet.getObject(FileEventTable.content_sha1));
+    }
+
+    @Override
+    public String fingerprint() throws SQLException {
+        return resultSet.getString(FileEventTable.fingerprint);
+    }
+
+    @Override
+    public String movedTo() throws SQLException {
+        return resultSet.getString(FileEventTable.moved_to);
+    }
+
+    /**
+     * The keys of every file in a catalog that got where it is by a move. There's one per move, not per file, so it's
+     * small enough to hold while the catalogs are merged.
+     */
+    public static Set<String> moveTargets(Path catalog, java.util.function.Function<String, String> normalizer)
+            throws SQLException {
+        Set<String> targets = new HashSet<>();
+        try (Connection connection = openReadOnly(catalog);
+             Statement statement = connection.createStatement()) {
+            try (ResultSet resultSet = statement.executeQuery(
+                    "select moved_to from file_state where event_type = 'move'")) {
+                while (resultSet.next()) {
+                    String target = resultSet.getString(FileEventTable.moved_to);
+                    targets.add(normalizer == null ? target : normalizer.apply(target));
+                }
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Opens a catalog the way {@link CatalogDatabase}'s readers do, so that reading it can never change it.
+     */
+    static Connection openReadOnly(Path catalog) throws SQLException {
+        Properties properties = new Properties();
+        properties.setProperty("open_mode", "1");
+        properties.setProperty("busy_timeout", "10000");
+        return DriverManager.getConnection("jdbc:sqlite:" + catalog, properties);
+    }
+
+    /**
+     * Compares keys in the same order sqlite sorts them in, which is code point order.
+     */
+    public static int compareKeys(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int codePointA = a.codePointAt(i);
+            int codePointB = b.codePointAt(j);
+            if (codePointA != codePointB) {
+                return Integer.compare(codePointA, codePointB);
+            }
+            i += Character.charCount(codePointA);
+            j += Character.charCount(codePointB);
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try (connection; statement) {
+            resultSet.close();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.dbcp.BasicDataSource;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The connections to a catalog, split into the one that writes and the ones that read.
+ * <p>
+ * In sqlite's default rollback journal mode, a reader blocks the writer from committing, and a commit blocks every
+ * reader. That's what made batches take 10+ seconds while the db scan was reading, and what db.sh retries around. A
+ * catalog opened here is switched to WAL mode, which sticks to the file. In WAL mode, readers read a snapshot as of
+ * when they started, and they never wait on the writer or hold it up, so scanner lookups go on during a commit. The
+ * same is true for sqlite3 or audit-db.sh looking at a catalog while a build is running.
+ * <p>
+ * There's only ever one writer in sqlite anyway, so the writer pool is a single connection, and everything that writes
+ * takes turns with it instead of fighting over the lock. The readers are opened read-only, so they can't take the write
+ * lock by accident. Both cache their prepared statements, per connection.
+ * <p>
+ * Commits go to the WAL file, and a checkpoint copies them back into the db. Left to itself, sqlite checkpoints as part
+ * of whichever commit pushes the WAL over 1000 pages, and that commit pays for it. Here, the writer doesn't, and a
+ * checkpoint runs in the background on its own connection instead. It's a passive one, which copies what it can without
+ * waiting on anybody. When the catalog is closed, a last checkpoint empties the WAL, so the db file is complete on its
+ * own for copying around.
+ * <p>
+ * Settings:
+ * <ul>
+ *     <li>CatalogDatabase.readers: how many read connections there can be at once (10)</li>
+ *     <li>CatalogDatabase.checkpointSeconds: how often to checkpoint (10)</li>
+ * </ul>
+ */
+public class CatalogDatabase implements AutoCloseable {
+    private final Path dbLocation;
+    private final BasicDataSource writer;
+    private final BasicDataSource readers;
+    private final Connection checkpointConnection;
+    private final ScheduledExecutorService checkpointer;
+
+    private CatalogDatabase(Path dbLocation, BasicDataSource writer, BasicDataSource readers,
+                            Connection checkpointConnection, long checkpointSeconds) {
+        this.dbLocation = dbLocation;
+        this.writer = writer;
+        this.readers = readers;
+        this.checkpointConnection = checkpointConnection;
+        checkpointer = Executors.newSingleThreadScheduledExecutor(FileSystemScanner.namedThreads("catalog-checkpoint"));
+        checkpointer.scheduleWithFixedDelay(this::checkpoint, checkpointSeconds, checkpointSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Opens a catalog, switching it to WAL mode and bringing its schema up to date.
+     */
+    public static CatalogDatabase open(Path dbLocation, Map<String, String> settings) throws SQLException {
+        BasicDataSource writer = dataSource(dbLocation, 1, 60000);
+        // Checkpoints are up to the checkpointer. In WAL mode, a commit that's only in the WAL is as safe as one in
+        // the db, short of losing power, so it doesn't need to wait on the disk twice.
+        writer.setConnectionInitSqls(List.of("pragma busy_timeout=10000", "pragma wal_autocheckpoint=0",
+                "pragma synchronous=normal"));
+        BasicDataSource readers = dataSource(dbLocation,
+                Integer.parseInt(settings.getOrDefault("CatalogDatabase.readers", "10")), 5000);
+        readers.addConnectionProperty("open_mode", "1");
+        long checkpointSeconds = Long.parseLong(settings.getOrDefault("CatalogDatabase.checkpointSeconds", "10"));
+        Connection checkpointConnection = null;
+        try {
+            try (Connection connection = writer.getConnection()) {
+                try (Statement statement = connection.createStatement();
+                     ResultSet resultSet = statement.executeQuery("pragma journal_mode=wal")) {
+                    resultSet.next();
+                    if (!"wal".equals(resultSet.getString(1))) {
+                        throw new IllegalStateException("Couldn't switch " + dbLocation + " to WAL mode");
+                    }
+                }
+                CatalogSchema.upgrade(connection);
+            }
+            checkpointConnection = DriverManager.getConnection("jdbc:sqlite:" + dbLocation);
+            return new CatalogDatabase(dbLocation, writer, readers, checkpointConnection, checkpointSeconds);
+        } catch (SQLException | RuntimeException e) {
+            try (Connection ignored = checkpointConnection) {
+                writer.close();
+                readers.close();
+            } catch (SQLException | RuntimeException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * The one connection that writes, for anything that changes the catalog.
+     */
+    public BasicDataSource writer() {
+        return writer;
+    }
+
+    /**
+     * Read-only connections, for lookups and queries.
+     */
+    public BasicDataSource readers() {
+        return readers;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        checkpointer.shutdownNow();
+        try {
+            checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Unexpected interrupt", e);
+        }
+        try (Connection ignored = checkpointConnection) {
+            readers.close();
+            writer.close();
+            try (Statement statement = checkpointConnection.createStatement()) {
+                statement.execute("pragma wal_checkpoint(truncate)");
+            }
+        }
+    }
+
+    private void checkpoint() {
+        try (Statement statement = checkpointConnection.createStatement();
+             ResultSet resultSet = statement.executeQuery("pragma wal_checkpoint(passive)")) {
+            // It says whether it was blocked, how many pages the WAL has, and how many of them it copied.
+            resultSet.next();
+        } catch (SQLException e) {
+            System.out.println("Failed to checkpoint " + dbLocation + ": " + e);
+        }
+    }
+
+    private static BasicDataSource dataSource(Path dbLocation, int connections, long maxWaitMillis) {
+        final BasicDataSource dataSource = new BasicDataSource();
+        dataSource.setUrl("jdbc:sqlite:" + dbLocation);
+        dataSource.setMinIdle(1);
+        dataSource.setMaxIdle(connections);
+        dataSource.setMaxActive(connections);
+        dataSource.setMaxWait(maxWaitMillis);
+        dataSource.setValidationQuery("select 1");
+        dataSource.setConnectionInitSqls(List.of(
+                "pragma busy_timeout=10000"
+        ));
+        dataSource.setPoolPreparedStatements(true);
+        return dataSource;
+    }
+}
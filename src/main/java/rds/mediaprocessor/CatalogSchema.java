@@ -0,0 +1,197 @@
+package rds.mediaprocessor;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static rds.mediaprocessor.DbNames.*;
+
+/**
+ * Brings an existing catalog up to the schema that the code expects. A catalog created from create-schema.sql is
+ * already current, but catalogs built before a change to the schema need to be upgraded in place. The version is kept
+ * in sqlite's user_version pragma, and every upgrade step is written so that it's safe to run against a db that
+ * already has the change.
+ */
+public class CatalogSchema {
+    public static final int CURRENT_VERSION = 9;
+    /**
+     * Finds the files whose checksums still need to be filled in, most recently changed first, without going through
+     * all of file_state. It only covers pending rows, so it stays empty once the checksums are caught up.
+     */
+    static final String PENDING_INDEX = "create index if not exists file_state_pending " +
+            "on file_state(mtime desc, file_path) where sha1 is null and event_type != 'delete'";
+    /**
+     * The columns of the events table before {@link CatalogStorage}, in the order the file_events view takes them.
+     * Catalogs from before some of them existed are missing those, and they're null.
+     */
+    private static final List<String> LEGACY_COLUMNS = List.of(FileEventTable.event_type, FileEventTable.file_path,
+            FileEventTable.time, FileEventTable.storage_location, FileEventTable.sha1, FileEventTable.size,
+            FileEventTable.mtime, FileEventTable.content_sha1, FileEventTable.fingerprint, FileEventTable.moved_to);
+
+    /**
+     * Where a scan records how far it's gotten; see {@link ScanCheckpoint}.
+     */
+    private static final List<String> CHECKPOINT_TABLES = List.of(
+            "create table if not exists scan_checkpoints (" +
+                    "scan_id text primary key, " +
+                    "started integer not null, " +
+                    "last_directory text, " +
+                    "walk_complete integer not null, " +
+                    "updated integer not null)",
+            "create table if not exists scan_checkpoint_files (" +
+                    "scan_id text not null, " +
+                    "directory text not null, " +
+                    "file_names text not null, " +
+                    "primary key (scan_id, directory))");
+
+    private CatalogSchema() {
+    }
+
+    /**
+     * Runs whatever upgrades the catalog is missing, all in one transaction. Before version 8, events were kept as
+     * text in a file_events table, with current_state as a table next to it. Those catalogs are copied into the
+     * layout described in {@link CatalogStorage} in one go, whichever version they're at, since everything the earlier
+     * upgrades added to the old tables is in the new ones. It takes a while on a big catalog, and the file only shrinks
+     * once it's vacuumed, which is what {@link MainCompactCatalog} is for.
+     */
+    public static void upgrade(Connection connection) {
+        try (Statement statement = connection.createStatement()) {
+            int version = version(statement);
+            if (version >= CURRENT_VERSION) {
+                return;
+            }
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                if (version < 7) {
+                    for (String sql : CHECKPOINT_TABLES) {
+                        statement.execute(sql);
+                    }
+                }
+                if (version < 8) {
+                    upgradeStorage(connection, statement);
+                }
+                if (version < 9) {
+                    upgradeFilter(statement);
+                }
+                statement.execute("pragma user_version = " + CURRENT_VERSION);
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to upgrade catalog schema", e);
+        }
+    }
+
+    /**
+     * Checks that a catalog is up to date, without changing it, for what only reads catalogs. Reconciling shouldn't be
+     * what migrates a catalog, and it opens several connections to each one at once, which would all try to.
+     */
+    public static void requireCurrent(Path catalog) throws SQLException {
+        try (Connection connection = CatalogCursor.openReadOnly(catalog);
+             Statement statement = connection.createStatement()) {
+            int version = version(statement);
+            if (version < CURRENT_VERSION) {
+                throw new IllegalStateException(catalog + " is at schema version " + version + ", not "
+                        + CURRENT_VERSION + ". Build it, or run MainCompactCatalog on it, to upgrade it first.");
+            }
+        }
+    }
+
+    private static int version(Statement statement) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery("pragma user_version")) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+    }
+
+    private static void upgradeStorage(Connection connection, Statement statement) throws SQLException {
+        for (String sql : CatalogStorage.TABLES) {
+            statement.execute(sql);
+        }
+        boolean legacy = isTable(statement, FileEventTable.TABLE_NAME);
+        if (legacy) {
+            statement.execute("alter table file_events rename to legacy_file_events");
+            // It's only a cache of what's in file_events, and its index goes with it.
+            statement.execute("drop table if exists current_state");
+        }
+        for (String sql : CatalogStorage.VIEWS) {
+            statement.execute(sql);
+        }
+        statement.execute(PENDING_INDEX);
+        if (!legacy) {
+            return;
+        }
+        Set<String> existing = columnsOf(statement, "legacy_file_events");
+        String columns = String.join(", ", LEGACY_COLUMNS.stream()
+                .map(column -> existing.contains(column) ? column : "null")
+                .toList());
+        long start = System.currentTimeMillis();
+        int events = 0;
+        // In path order, so directories get their ids in about the order the walk finds them in.
+        try (Statement select = connection.createStatement();
+             ResultSet resultSet = select.executeQuery(
+                     "select " + columns + " from legacy_file_events order by file_path, time");
+             PreparedStatement insert = connection.prepareStatement(
+                     "insert into file_events(" + String.join(", ", LEGACY_COLUMNS) + ") " +
+                             "values(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+            while (resultSet.next()) {
+                for (int i = 1; i <= LEGACY_COLUMNS.size(); i++) {
+                    insert.setObject(i, resultSet.getObject(i));
+                }
+                insert.setObject(5, CatalogStorage.toColumn(resultSet.getString(5)));
+                insert.setObject(8, CatalogStorage.toColumn(resultSet.getString(8)));
+                insert.addBatch();
+                if (++events % 10000 == 0) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+        }
+        statement.execute("drop table legacy_file_events");
+        System.out.println("Moved " + events + " events into the compact catalog layout in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Version 9 counts changes for {@link PathFilter}, which takes a new table and a new version of the trigger. sqlite
+     * can't alter a trigger, so it's dropped and created again.
+     */
+    private static void upgradeFilter(Statement statement) throws SQLException {
+        for (String sql : CatalogStorage.TABLES) {
+            statement.execute(sql);
+        }
+        statement.execute(PathFilter.TABLE);
+        statement.execute("drop trigger if exists file_events_insert");
+        for (String sql : CatalogStorage.VIEWS) {
+            statement.execute(sql);
+        }
+    }
+
+    private static boolean isTable(Statement statement, String name) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery(
+                "select count(*) from sqlite_master where type = 'table' and name = '" + name + "'")) {
+            resultSet.next();
+            return resultSet.getInt(1) > 0;
+        }
+    }
+
+    private static Set<String> columnsOf(Statement statement, String table) throws SQLException {
+        Set<String> columns = new HashSet<>();
+        try (ResultSet resultSet = statement.executeQuery("pragma table_info(" + table + ")")) {
+            while (resultSet.next()) {
+                columns.add(resultSet.getString("name"));
+            }
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,445 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+/**
+ * The current state of every file in a catalog, exported to a file of its own that can be reconciled without sqlite.
+ * Reconciling straight from a catalog means a JDBC row and a String per column for every file, which for a catalog of a
+ * million files is seconds of decoding before anything gets compared. A snapshot is laid out so that it can be mapped
+ * into memory and read where it is: opening one costs about nothing, and a {@link Cursor} over two of them compares
+ * keys and checksums byte for byte, without allocating anything for a file both sides agree on. It's also the thing to
+ * copy to another machine to reconcile there, since it's a fraction of the catalog's size and never changes.
+ * <p>
+ * The file is:
+ * <ul>
+ *     <li>A header of {@link #HEADER_SIZE} bytes: a magic number, the format version, how many files there are, the
+ *     scan time, which is the time of the newest event in the catalog, and where the strings start.</li>
+ *     <li>A record of {@link #RECORD_SIZE} bytes per file, in order of key: where its key, path and moved_to are among
+ *     the strings, its size and mtime, its checksum and content checksum as 20 raw bytes each, its fingerprint as 16,
+ *     its event type as a code, and flags for which of those it has.</li>
+ *     <li>The strings, packed UTF-8 back to back. A path that's the same as its key is only stored once.</li>
+ * </ul>
+ * Keys are the location's normalized paths, made with the normalizer the snapshot was taken with, in the same byte
+ * order sqlite sorts them in, so a snapshot merges with another snapshot or with a {@link CatalogCursor} the way two
+ * cursors do. A checksum that isn't one, like the note the shell scripts record for a file they couldn't read, is kept
+ * among the strings instead. A fingerprint that isn't one is left out, the same as {@link LastEventIndex} does.
+ * <p>
+ * A snapshot is written to a temp file and moved into place, so one that's there is complete. The mapping stays around
+ * until it's garbage collected, even after it's closed, which on Windows means the file can't be replaced until then.
+ */
+public class CatalogSnapshot implements AutoCloseable {
+    private static final long MAGIC = 0x4d50534e41505331L; // "MPSNAPS1"
+    private static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 104;
+    private static final int FINGERPRINT_LENGTH = 16;
+    private static final long NO_VALUE = Long.MIN_VALUE;
+
+    // Where things are in the header.
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 8;
+    private static final int HEADER_COUNT = 12;
+    private static final int HEADER_SCAN_TIME = 16;
+    private static final int HEADER_STRINGS = 24;
+
+    // Where things are in a record. Strings are an int offset from the start of the strings and an int length.
+    private static final int KEY = 0;
+    private static final int PATH = 8;
+    private static final int MOVED_TO = 16;
+    private static final int SIZE = 24;
+    private static final int MTIME = 32;
+    private static final int SHA1 = 40;
+    private static final int CONTENT_SHA1 = 60;
+    private static final int FINGERPRINT = 80;
+    private static final int EVENT_TYPE = 96;
+    private static final int FLAGS = 97;
+
+    private static final int HAS_SHA1 = 1;
+    /**
+     * The checksum's field holds where its text is among the strings, instead of the checksum.
+     */
+    private static final int SHA1_IS_TEXT = 2;
+    private static final int HAS_CONTENT_SHA1 = 4;
+    private static final int CONTENT_SHA1_IS_TEXT = 8;
+    private static final int HAS_FINGERPRINT = 16;
+    private static final int HAS_MOVED_TO = 32;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final long scanTime;
+    private final int strings;
+
+    private CatalogSnapshot(Path file, FileChannel channel, MappedByteBuffer buffer) {
+        this.file = file;
+        this.channel = channel;
+        this.buffer = buffer;
+        count = buffer.getInt(HEADER_COUNT);
+        scanTime = buffer.getLong(HEADER_SCAN_TIME);
+        strings = (int) buffer.getLong(HEADER_STRINGS);
+    }
+
+    /**
+     * Maps a snapshot into memory. Nothing is read until it's used.
+     */
+    public static CatalogSnapshot open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Snapshot " + file + " is too big to map: " + length + " bytes");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (length < HEADER_SIZE || buffer.getLong(HEADER_MAGIC) != MAGIC) {
+                throw new IllegalStateException(file + " isn't a catalog snapshot");
+            }
+            if (buffer.getInt(HEADER_VERSION) != FORMAT_VERSION) {
+                throw new IllegalStateException("Snapshot " + file + " is format version "
+                        + buffer.getInt(HEADER_VERSION) + ", and only " + FORMAT_VERSION + " can be read");
+            }
+            long strings = buffer.getLong(HEADER_STRINGS);
+            if (HEADER_SIZE + (long) buffer.getInt(HEADER_COUNT) * RECORD_SIZE != strings || strings > length) {
+                throw new IllegalStateException("Snapshot " + file + " is truncated or corrupt");
+            }
+            return new CatalogSnapshot(file, channel, buffer);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a snapshot of a location's catalog, replacing any that's there.
+     *
+     * @return how many files are in it
+     */
+    public static int write(Location location, Path file) throws IOException, SQLException {
+        Path records = file.resolveSibling(file.getFileName() + ".tmp");
+        Path stringsFile = file.resolveSibling(file.getFileName() + ".strings.tmp");
+        CatalogSchema.requireCurrent(location.catalog);
+        int count = 0;
+        long scanTime;
+        try (CatalogCursor cursor = new CatalogCursor(location.catalog, location.normalizer, 1000);
+             OutputStream recordsOut = new BufferedOutputStream(Files.newOutputStream(records), 1 << 16);
+             OutputStream stringsOut = new BufferedOutputStream(Files.newOutputStream(stringsFile), 1 << 16)) {
+            scanTime = scanTime(location.catalog);
+            recordsOut.write(new byte[HEADER_SIZE]);
+            StringSection stringSection = new StringSection(stringsOut);
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            while (cursor.next()) {
+                Arrays.fill(record.array(), (byte) 0);
+                int flags = 0;
+                String key = cursor.key();
+                String path = cursor.path();
+                long keyString = stringSection.write(key);
+                record.putLong(KEY, keyString);
+                record.putLong(PATH, path.equals(key) ? keyString : stringSection.write(path));
+                String movedTo = cursor.movedTo();
+                if (movedTo != null) {
+                    record.putLong(MOVED_TO, stringSection.write(movedTo));
+                    flags |= HAS_MOVED_TO;
+                }
+                Long size = cursor.size();
+                Long mtime = cursor.mtime();
+                record.putLong(SIZE, size == null ? NO_VALUE : size);
+                record.putLong(MTIME, mtime == null ? NO_VALUE : mtime);
+                flags |= putDigest(record, SHA1, cursor.sha1(), stringSection, HAS_SHA1, SHA1_IS_TEXT);
+                flags |= putDigest(record, CONTENT_SHA1, cursor.contentSha1(), stringSection, HAS_CONTENT_SHA1,
+                        CONTENT_SHA1_IS_TEXT);
+                byte[] fingerprint = decode(cursor.fingerprint(), FINGERPRINT_LENGTH);
+                if (fingerprint != null) {
+                    record.put(FINGERPRINT, fingerprint);
+                    flags |= HAS_FINGERPRINT;
+                }
+                int eventType = LastEventIndex.EVENT_TYPES.indexOf(cursor.eventType());
+                if (eventType == -1) {
+                    throw new IllegalStateException("Unknown event type '" + cursor.eventType() + "' for " + path);
+                }
+                record.put(EVENT_TYPE, (byte) eventType);
+                record.put(FLAGS, (byte) flags);
+                recordsOut.write(record.array());
+                count++;
+            }
+            if (HEADER_SIZE + (long) count * RECORD_SIZE + stringSection.length > Integer.MAX_VALUE) {
+                throw new IllegalStateException("A snapshot of " + location.catalog + " would be too big to map");
+            }
+        }
+        // Not opened for appending, since that would put the header at the end too.
+        try (FileChannel out = FileChannel.open(records, StandardOpenOption.WRITE)) {
+            out.position(out.size());
+            try (FileChannel in = FileChannel.open(stringsFile, StandardOpenOption.READ)) {
+                long copied = 0;
+                while (copied < in.size()) {
+                    copied += in.transferTo(copied, in.size() - copied, out);
+                }
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(HEADER_MAGIC, MAGIC);
+            header.putInt(HEADER_VERSION, FORMAT_VERSION);
+            header.putInt(HEADER_COUNT, count);
+            header.putLong(HEADER_SCAN_TIME, scanTime);
+            header.putLong(HEADER_STRINGS, HEADER_SIZE + (long) count * RECORD_SIZE);
+            out.write(header, 0);
+            out.force(true);
+        } finally {
+            Files.deleteIfExists(stringsFile);
+        }
+        Files.move(records, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    private static long scanTime(Path catalog) throws SQLException {
+        try (Connection connection = CatalogCursor.openReadOnly(catalog);
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select coalesce(max(time), 0) from file_state")) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    private static int putDigest(ByteBuffer record, int field, String hex, StringSection stringSection, int present,
+                                 int text) throws IOException {
+        if (hex == null) {
+            return 0;
+        }
+        byte[] digest = decode(hex, Sha1Hasher.DIGEST_LENGTH);
+        if (digest != null) {
+            record.put(field, digest);
+            return present;
+        }
+        record.putLong(field, stringSection.write(hex));
+        return present | text;
+    }
+
+    private static byte[] decode(String hex, int length) {
+        if (hex == null || hex.length() != length * 2) {
+            return null;
+        }
+        try {
+            return Hex.decodeHex(hex);
+        } catch (DecoderException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Appends strings to the strings section and says where they went.
+     */
+    private static class StringSection {
+        private final OutputStream out;
+        private long length;
+
+        private StringSection(OutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * @return the string's offset and length, packed into a long the way a record holds them
+         */
+        long write(String string) throws IOException {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.write(bytes);
+            long offset = length;
+            length += bytes.length;
+            return offset << 32 | bytes.length;
+        }
+    }
+
+    /**
+     * @return how many files are in the snapshot
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the time of the newest event in the catalog when the snapshot was taken
+     */
+    public long scanTime() {
+        return scanTime;
+    }
+
+    /**
+     * A cursor over every file in the snapshot, in order of key. Any number of them can be open at once.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+
+    /**
+     * Reads a snapshot's records in place. Comparing keys and checksums with another one of these works on the mapped
+     * bytes, and only asking for a string makes one.
+     */
+    public class Cursor implements FileStateCursor {
+        private int index = -1;
+        private int record;
+
+        private Cursor() {
+        }
+
+        @Override
+        public boolean next() {
+            if (index < count) {
+                index++;
+            }
+            record = HEADER_SIZE + index * RECORD_SIZE;
+            return index < count;
+        }
+
+        @Override
+        public String key() {
+            return index < 0 || index >= count ? null : string(record + KEY);
+        }
+
+        @Override
+        public int compareKey(FileStateCursor other) {
+            if (!(other instanceof Cursor)) {
+                return FileStateCursor.super.compareKey(other);
+            }
+            Cursor that = (Cursor) other;
+            int offset = strings + buffer.getInt(record + KEY);
+            int length = buffer.getInt(record + KEY + 4);
+            int thatOffset = that.strings() + that.buffer().getInt(that.record + KEY);
+            int thatLength = that.buffer().getInt(that.record + KEY + 4);
+            // UTF-8 bytes compared as unsigned are in code point order, which is what sqlite sorted them in.
+            int common = Math.min(length, thatLength);
+            for (int i = 0; i < common; i++) {
+                int comparison = Integer.compare(buffer.get(offset + i) & 0xff,
+                        that.buffer().get(thatOffset + i) & 0xff);
+                if (comparison != 0) {
+                    return comparison;
+                }
+            }
+            return Integer.compare(length, thatLength);
+        }
+
+        @Override
+        public boolean sameStateAndSha1(FileStateCursor other) throws SQLException {
+            if (!(other instanceof Cursor)) {
+                return FileStateCursor.super.sameStateAndSha1(other);
+            }
+            Cursor that = (Cursor) other;
+            if ((flags() & (HAS_SHA1 | SHA1_IS_TEXT)) != HAS_SHA1
+                    || (that.flags() & (HAS_SHA1 | SHA1_IS_TEXT)) != HAS_SHA1) {
+                // No checksum, or one that's text, which is rare enough to compare the slow way.
+                return FileStateCursor.super.sameStateAndSha1(other);
+            }
+            if (buffer.get(record + EVENT_TYPE) != that.buffer().get(that.record + EVENT_TYPE)) {
+                return false;
+            }
+            for (int i = 0; i < Sha1Hasher.DIGEST_LENGTH; i++) {
+                if (buffer.get(record + SHA1 + i) != that.buffer().get(that.record + SHA1 + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String path() {
+            return string(record + PATH);
+        }
+
+        @Override
+        public String eventType() {
+            return LastEventIndex.EVENT_TYPES.get(buffer.get(record + EVENT_TYPE));
+        }
+
+        @Override
+        public String sha1() {
+            return digest(SHA1, HAS_SHA1, SHA1_IS_TEXT);
+        }
+
+        @Override
+        public Long size() {
+            long size = buffer.getLong(record + SIZE);
+            return size == NO_VALUE ? null : size;
+        }
+
+        @Override
+        public Long mtime() {
+            long mtime = buffer.getLong(record + MTIME);
+            return mtime == NO_VALUE ? null : mtime;
+        }
+
+        @Override
+        public String contentSha1() {
+            return digest(CONTENT_SHA1, HAS_CONTENT_SHA1, CONTENT_SHA1_IS_TEXT);
+        }
+
+        @Override
+        public String fingerprint() {
+            return (flags() & HAS_FINGERPRINT) == 0 ? null : hex(record + FINGERPRINT, FINGERPRINT_LENGTH);
+        }
+
+        @Override
+        public String movedTo() {
+            return (flags() & HAS_MOVED_TO) == 0 ? null : string(record + MOVED_TO);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private int strings() {
+            return strings;
+        }
+
+        private MappedByteBuffer buffer() {
+            return buffer;
+        }
+
+        private int flags() {
+            return buffer.get(record + FLAGS);
+        }
+
+        private String digest(int field, int present, int text) {
+            int flags = flags();
+            if ((flags & present) == 0) {
+                return null;
+            }
+            return (flags & text) != 0 ? string(record + field) : hex(record + field, Sha1Hasher.DIGEST_LENGTH);
+        }
+
+        private String string(int position) {
+            byte[] bytes = new byte[buffer.getInt(position + 4)];
+            buffer.get(strings + buffer.getInt(position), bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private String hex(int position, int length) {
+            byte[] bytes = new byte[length];
+            buffer.get(position, bytes);
+            return Hex.encodeHexString(bytes);
+        }
+    }
+}
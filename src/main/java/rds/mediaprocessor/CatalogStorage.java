@@ -0,0 +1,188 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import java.util.List;
+
+/**
+ * How a catalog keeps its events on disk, and the conversions between that and what the rest of the code works with.
+ * <p>
+ * A catalog used to keep every event as text: the full relative path, the storage location's name, and checksums as 40
+ * characters of hex. On a catalog that's rescanned often, that's the same path and the same location name over and
+ * over, and it's most of what makes a catalog several hundred MB. Now:
+ * <ul>
+ *     <li>Each directory's path is stored once, in directories, and an event has the directory's id and the file's
+ *     name. A directory's path includes the separator on the end, so that the directory plus the name is the file's
+ *     path, and files at the top are in the directory with an empty path.</li>
+ *     <li>Each storage location's name is stored once, in locations, and referred to by id.</li>
+ *     <li>Checksums are 20-byte blobs. Anything that doesn't look like a checksum, like the note the shell scripts
+ *     record for a file they couldn't read, is kept as text, so nothing is lost.</li>
+ * </ul>
+ * The events are in the events table, and the latest of each file in file_state, which keeps the full path as its key,
+ * since lookups by path and walks of the catalog in path order are what it's for.
+ * <p>
+ * file_events and current_state are still there, as views that put the paths, names and hex back together, so sqlite3
+ * and the scripts see what they always saw. Inserting into file_events works too: a trigger looks up or adds the
+ * directory and location, records the event, and brings file_state up to date, all in the statement that inserts it.
+ * That's how every writer records events, so there's only one place that knows how they're laid out. Writers pass
+ * checksums through {@link #toColumn}, since sqlite can't turn hex into a blob itself, and the scripts' hex is stored
+ * as it is until {@link MainCompactCatalog} comes along. The trigger also counts every event in catalog_changes, for
+ * {@link PathFilter}.
+ */
+public class CatalogStorage {
+    /**
+     * The directory part of a path, worked out in sql: trimming every character that isn't a separator off the end
+     * leaves everything up to and including the last separator, or nothing if there isn't one.
+     */
+    private static final String DIRECTORY_OF_NEW =
+            "rtrim(new.file_path, replace(replace(new.file_path, '/', ''), '\\', ''))";
+
+    static final List<String> TABLES = List.of(
+            "create table if not exists directories (" +
+                    "id integer primary key, " +
+                    "path text not null unique)",
+            "create table if not exists locations (" +
+                    "id integer primary key, " +
+                    "name text not null unique)",
+            "create table if not exists events (" +
+                    "directory_id integer not null, " +
+                    "file_name text not null, " +
+                    "time integer not null, " +
+                    "event_type text not null, " +
+                    "location_id integer not null, " +
+                    "sha1 blob, " +
+                    "size integer, " +
+                    "mtime integer, " +
+                    "content_sha1 blob, " +
+                    "fingerprint text, " +
+                    "moved_to text, " +
+                    "primary key (directory_id, file_name, time)) without rowid",
+            "create table if not exists file_state (" +
+                    "file_path text primary key, " +
+                    "time integer not null, " +
+                    "event_type text not null, " +
+                    "location_id integer not null, " +
+                    "sha1 blob, " +
+                    "size integer, " +
+                    "mtime integer, " +
+                    "content_sha1 blob, " +
+                    "fingerprint text, " +
+                    "moved_to text) without rowid",
+            "create table if not exists catalog_changes (" +
+                    "id integer primary key check (id = 0), " +
+                    "generation integer not null)");
+
+    /**
+     * Counts a change to the catalog, which is how a {@link PathFilter} knows whether it's up to date. The trigger does
+     * it for every event, and anything that changes file_state without the trigger has to do it too.
+     */
+    static final String COUNT_CHANGE = "insert into catalog_changes(id, generation) values(0, 1) " +
+            "on conflict(id) do update set generation = generation + 1";
+
+    static final List<String> VIEWS = List.of(
+            "create view if not exists file_events as " +
+                    "select d.path || e.file_name as file_path, e.time, e.event_type, l.name as storage_location, " +
+                    hex("e.sha1") + " as sha1, e.size, e.mtime, " + hex("e.content_sha1") + " as content_sha1, " +
+                    "e.fingerprint, e.moved_to " +
+                    "from events e join directories d on d.id = e.directory_id " +
+                    "join locations l on l.id = e.location_id",
+            "create view if not exists current_state as " +
+                    "select s.file_path, s.time, s.event_type, l.name as storage_location, " +
+                    hex("s.sha1") + " as sha1, s.size, s.mtime, " + hex("s.content_sha1") + " as content_sha1, " +
+                    "s.fingerprint, s.moved_to " +
+                    "from file_state s join locations l on l.id = s.location_id",
+            "create trigger if not exists file_events_insert instead of insert on file_events begin " +
+                    "insert or ignore into directories(path) values(" + DIRECTORY_OF_NEW + "); " +
+                    "insert or ignore into locations(name) values(new.storage_location); " +
+                    "insert into events(directory_id, file_name, time, event_type, location_id, sha1, size, mtime, " +
+                    "content_sha1, fingerprint, moved_to) values(" +
+                    "(select id from directories where path = " + DIRECTORY_OF_NEW + "), " +
+                    "substr(new.file_path, length(" + DIRECTORY_OF_NEW + ") + 1), new.time, new.event_type, " +
+                    "(select id from locations where name = new.storage_location), new.sha1, new.size, new.mtime, " +
+                    "new.content_sha1, new.fingerprint, new.moved_to); " +
+                    // An event older than the one already recorded is ignored, so applying events out of order can't
+                    // move a file back in time.
+                    "insert into file_state(file_path, time, event_type, location_id, sha1, size, mtime, " +
+                    "content_sha1, fingerprint, moved_to) values(new.file_path, new.time, new.event_type, " +
+                    "(select id from locations where name = new.storage_location), new.sha1, new.size, new.mtime, " +
+                    "new.content_sha1, new.fingerprint, new.moved_to) " +
+                    "on conflict(file_path) do update set event_type = excluded.event_type, time = excluded.time, " +
+                    "location_id = excluded.location_id, sha1 = excluded.sha1, size = excluded.size, " +
+                    "mtime = excluded.mtime, content_sha1 = excluded.content_sha1, " +
+                    "fingerprint = excluded.fingerprint, moved_to = excluded.moved_to " +
+                    "where excluded.time >= file_state.time; " +
+                    COUNT_CHANGE + "; " +
+                    "end");
+
+    /**
+     * Picks out one event in the events table by its file's path, split with {@link #directoryOf} and
+     * {@link #fileNameOf}, and its time.
+     */
+    static final String EVENT_KEY =
+            "directory_id = (select id from directories where path = ?) and file_name = ? and time = ?";
+
+    private CatalogStorage() {
+    }
+
+    private static String hex(String column) {
+        return "case typeof(" + column + ") when 'blob' then lower(hex(" + column + ")) else " + column + " end";
+    }
+
+    /**
+     * Whether it's really a checksum, and not something like the placeholder recorded for a file that couldn't be
+     * read, which is the same for every such file.
+     */
+    public static boolean isChecksum(String sha1Hex) {
+        if (sha1Hex == null || sha1Hex.length() != Sha1Hasher.DIGEST_LENGTH * 2) {
+            return false;
+        }
+        for (int i = 0; i < sha1Hex.length(); i++) {
+            if (Character.digit(sha1Hex.charAt(i), 16) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * What to store for a checksum: its 20 bytes, or the value itself if it isn't a checksum.
+     */
+    public static Object toColumn(String sha1Hex) {
+        if (!isChecksum(sha1Hex)) {
+            return sha1Hex;
+        }
+        try {
+            return Hex.decodeHex(sha1Hex);
+        } catch (DecoderException e) {
+            return sha1Hex;
+        }
+    }
+
+    /**
+     * A stored checksum as hex, the way everything outside the db deals with it.
+     */
+    public static String fromColumn(Object value) {
+        if (value instanceof byte[]) {
+            return Hex.encodeHexString((byte[]) value);
+        }
+        return (String) value;
+    }
+
+    /**
+     * The directory a relative path is in, with the separator on the end, the way it's stored in directories. A file
+     * at the top is in "".
+     */
+    public static String directoryOf(String relPath) {
+        return relPath.substring(0, nameStart(relPath));
+    }
+
+    public static String fileNameOf(String relPath) {
+        return relPath.substring(nameStart(relPath));
+    }
+
+    private static int nameStart(String relPath) {
+        // Either separator, same as the trigger, so a catalog built on Windows splits the same way everywhere.
+        return Math.max(relPath.lastIndexOf('/'), relPath.lastIndexOf('\\')) + 1;
+    }
+}
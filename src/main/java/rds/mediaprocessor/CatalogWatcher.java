@@ -0,0 +1,462 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.dbcp.BasicDataSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static rds.mediaprocessor.DbNames.*;
+
+/**
+ * Keeps a catalog up to date as files change, instead of leaving it to the next build to notice. Every directory under
+ * the root is registered with a WatchService, and the paths that events come in for are handled together once events
+ * have stopped for a while. Copying a video in makes a steady stream of events until the copy is done, and the file is
+ * only looked at after that, so it's hashed once, whole. Events that keep coming don't hold everything up forever,
+ * though: once a path has waited long enough, the paths that have been quiet on their own are handled anyway.
+ * <p>
+ * A path that's settled is handled like a build would handle it, but on its own: a file is looked up in file_state
+ * and hashed if its size or mtime changed, a directory that showed up is registered and everything in it is handled,
+ * and anything that's gone, including everything under a directory that's gone, is recorded as deleted. Paths that
+ * settle together go through a {@link RenameDetector}, so a file or a folder moved within the tree, which comes as a
+ * delete and a create in the same burst, is recorded as a move.
+ * <p>
+ * When events come in faster than they're taken, the WatchService drops them and says so with an OVERFLOW. There's no
+ * telling what was lost, so the directory it happened in is rescanned, with everything under it, and compared with
+ * what the catalog has there.
+ * <p>
+ * Events go to a {@link FileEventInserter}, which for a watch that runs for days is a {@link CatalogWriter} without a
+ * fixed timestamp, so they're recorded at the time they're committed. The writer is flushed after each batch of
+ * settled paths, so that the next batch looks up what this one recorded.
+ * <p>
+ * Nothing that happens while the watcher isn't running is noticed, so it's meant to start with a build to catch up;
+ * see {@link MainWatchCatalog}. Each directory is a watch, and on Linux a big tree might need
+ * fs.inotify.max_user_watches raised.
+ * <p>
+ * Settings:
+ * <ul>
+ *     <li>CatalogWatcher.debounceMillis: how long events have to stop before the paths they were for are handled
+ *     (2000)</li>
+ *     <li>CatalogWatcher.maxDelayMillis: how long a path can wait while events keep coming for others (30000)</li>
+ *     <li>CatalogWatcher.pollMillis: how often to check for settled paths while events are quiet (250)</li>
+ * </ul>
+ */
+public class CatalogWatcher implements AutoCloseable {
+    private final Path root;
+    private final BasicDataSource dataSource;
+    private final FileEventInserter writer;
+    private final ScanMetrics metrics;
+    private final Map<String, String> settings;
+    private final ScanLog log;
+    /**
+     * Only used for hashing files the way a build does.
+     */
+    private final FileSystemScanner scanner;
+    private final long debounceNanos;
+    private final long maxDelayNanos;
+    private final long pollMillis;
+    private final WatchService watchService;
+    /**
+     * The directory each watch is for. A directory that moves within the tree keeps its watch, so the path is updated
+     * when it's registered again at its new place.
+     */
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+    /**
+     * Paths that have had events and haven't been handled yet, with when the last event came in.
+     */
+    private final Map<Path, Long> touched = new HashMap<>();
+    /**
+     * The touched paths that had a create event. A directory only needs a look of its own when it's new, since its
+     * files have their own events once it's watched, and some platforms say a directory was modified whenever they do.
+     */
+    private final Set<Path> created = new HashSet<>();
+    /**
+     * Directories that lost events, to be rescanned whole, with when they last did.
+     */
+    private final Map<Path, Long> overflowed = new HashMap<>();
+    private long lastEventNanos;
+    /**
+     * When the oldest of the paths waiting to be handled came in.
+     */
+    private long pendingSinceNanos;
+    private volatile boolean closed;
+
+    /**
+     * @param dataSource where to look things up; the watcher only ever reads, and everything it records goes to the
+     *                   writer
+     */
+    public CatalogWatcher(Path root, BasicDataSource dataSource, FileEventInserter writer, ScanMetrics metrics,
+                          Map<String, String> settings) throws IOException {
+        this.root = root;
+        this.dataSource = dataSource;
+        this.writer = writer;
+        this.metrics = metrics;
+        this.settings = settings;
+        log = new ScanLog(settings);
+        scanner = new FileSystemScanner(dataSource, writer, metrics, settings);
+        debounceNanos = TimeUnit.MILLISECONDS.toNanos(
+                Long.parseLong(settings.getOrDefault("CatalogWatcher.debounceMillis", "2000")));
+        maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(
+                Long.parseLong(settings.getOrDefault("CatalogWatcher.maxDelayMillis", "30000")));
+        pollMillis = Long.parseLong(settings.getOrDefault("CatalogWatcher.pollMillis", "250"));
+        watchService = root.getFileSystem().newWatchService();
+        walkAndRegister(root);
+        System.out.println("Watching " + watchedDirectories.size() + " directories under " + root);
+    }
+
+    /**
+     * Handles events until the watcher is closed. Anything that hasn't settled by then is left for the next build.
+     */
+    public void run() {
+        try {
+            while (!closed) {
+                WatchKey key = watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    take(key);
+                    key = watchService.poll();
+                }
+                handleSettled();
+            }
+        } catch (ClosedWatchServiceException e) {
+            // It's been closed, which is how it's meant to stop.
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Unexpected interrupt", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        watchService.close();
+    }
+
+    private void take(WatchKey key) {
+        Path directory = watchedDirectories.get(key);
+        long now = System.nanoTime();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (directory == null) {
+                continue;
+            }
+            if (touched.isEmpty() && overflowed.isEmpty()) {
+                pendingSinceNanos = now;
+            }
+            lastEventNanos = now;
+            if (event.kind() == OVERFLOW) {
+                overflowed.put(directory, now);
+            } else {
+                Path path = directory.resolve((Path) event.context());
+                touched.put(path, now);
+                if (event.kind() == ENTRY_CREATE) {
+                    created.add(path);
+                }
+            }
+        }
+        if (!key.reset()) {
+            // The directory is gone. Its parent has an event for it, which is what gets it handled.
+            watchedDirectories.remove(key);
+        }
+    }
+
+    /**
+     * Handles the paths that are ready, as one batch. That's all of them once a burst of events is over, so that the
+     * delete and the create of a move are handled together.
+     */
+    private void handleSettled() {
+        long now = System.nanoTime();
+        if (touched.isEmpty() && overflowed.isEmpty()) {
+            return;
+        }
+        boolean burstOver = now - lastEventNanos >= debounceNanos;
+        if (!burstOver && now - pendingSinceNanos < maxDelayNanos) {
+            return;
+        }
+        List<Path> settled = removeSettled(touched, now, burstOver);
+        List<Path> rescans = removeSettled(overflowed, now, burstOver);
+        pendingSinceNanos = now;
+        if (settled.isEmpty() && rescans.isEmpty()) {
+            return;
+        }
+        Batch batch = new Batch();
+        try (LastEventLookup lastEvents = LastEventLookup.filtered(
+                new LastEventLookup.Query(dataSource.getConnection()), writer, metrics)) {
+            // Everything that's there goes first, so the rename detector has seen the creates by the time the deletes
+            // are worked out.
+            List<String> gone = new ArrayList<>();
+            for (Path path : settled) {
+                boolean isNew = created.remove(path);
+                BasicFileAttributes attributes = attributesOrNull(path);
+                if (attributes == null) {
+                    gone.add(relPath(path));
+                } else if (attributes.isDirectory()) {
+                    if (isNew && registerAll(path)) {
+                        rescans.add(path);
+                    }
+                } else {
+                    handleFile(path, attributes, lastEvents, batch);
+                }
+            }
+            for (Path directory : withoutNested(rescans)) {
+                try {
+                    rescan(directory, lastEvents, batch);
+                    gone.add(relPath(directory));
+                } catch (IOException e) {
+                    // It changed again while it was being looked at, most likely by going away, and that has its own
+                    // events coming. Until then, what wasn't seen isn't counted as gone.
+                    System.out.println("Failed to rescan " + directory + ": " + e);
+                }
+            }
+            for (String relPath : gone) {
+                recordMissing(relPath, batch);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to do db things", e);
+        }
+        writer.flush();
+        if (batch.events > 0) {
+            System.out.println("Watch recorded " + batch.events + " events (" + batch.deletes + " deleted, "
+                    + batch.moves + " moved)");
+        }
+    }
+
+    /**
+     * What's been handled in one batch of settled paths.
+     */
+    private class Batch {
+        final RenameDetector renameDetector = new RenameDetector(writer, settings);
+        /**
+         * Every file found to be there, so that a rescan doesn't also count it as gone.
+         */
+        final Set<String> present = new HashSet<>();
+        int events;
+        int deletes;
+        int moves;
+
+        void emit(MainBuildCatalog.FileEvent event) {
+            renameDetector.addToBatch(event);
+            events++;
+        }
+    }
+
+    private void handleFile(Path path, BasicFileAttributes attributes, LastEventLookup lastEvents, Batch batch)
+            throws SQLException {
+        String relPath = relPath(path);
+        if (!batch.present.add(relPath)) {
+            return;
+        }
+        LastEventLookup.LastEvent lastEvent = lastEvents.find(relPath);
+        if (lastEvent != null && !EventTypes.isPresent(lastEvent.eventType)) {
+            lastEvent = null;
+        }
+        long size = attributes.size();
+        long mtime = attributes.lastModifiedTime().toMillis();
+        if (lastEvent != null && Long.valueOf(size).equals(lastEvent.size)
+                && Long.valueOf(mtime).equals(lastEvent.mtime)) {
+            return;
+        }
+        MainBuildCatalog.FileEvent event = scanner.hash(path, relPath, size, mtime, lastEvent);
+        if (event != null) {
+            log.file("File was " + (lastEvent == null ? "created"
+                    : EventTypes.touch.equals(event.eventType) ? "touched" : "updated") + " - " + relPath);
+            batch.emit(event);
+        }
+    }
+
+    /**
+     * Handles every file under a directory, which is all there is to do for one that's new, and what has to be done
+     * for one that lost events. The directory's catalog entries that weren't found are worked out afterward.
+     */
+    private void rescan(Path directory, LastEventLookup lastEvents, Batch batch) throws IOException, SQLException {
+        List<Path> subdirectories = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attributes = attributesOrNull(entry);
+                if (attributes == null) {
+                    continue;
+                }
+                if (attributes.isDirectory()) {
+                    subdirectories.add(entry);
+                } else {
+                    handleFile(entry, attributes, lastEvents, batch);
+                }
+            }
+        }
+        for (Path subdirectory : subdirectories) {
+            rescan(subdirectory, lastEvents, batch);
+        }
+    }
+
+    /**
+     * Records whatever the catalog has at a path, or under it if it was a directory, that this batch didn't find, as
+     * moved if the rename detector has a match for it, and otherwise as deleted.
+     */
+    private void recordMissing(String relPath, Batch batch) throws SQLException {
+        List<MainBuildCatalog.FileEvent> missing = new ArrayList<>();
+        // Everything under a directory sorts between its path with a separator on the end and the character after the
+        // separator, which the primary key index finds without looking at the rest.
+        String under = relPath.isEmpty() ? "" : relPath + File.separatorChar;
+        String past = relPath.isEmpty() ? "\uffff" : relPath + (char) (File.separatorChar + 1);
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement select = connection.prepareStatement("select file_path, sha1, size, fingerprint " +
+                     "from file_state where event_type not in ('delete', 'move') " +
+                     "and (file_path = ? or (file_path >= ? and file_path < ?))")) {
+            select.setString(1, relPath);
+            select.setString(2, under);
+            select.setString(3, past);
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    String fileRelPath = resultSet.getString(FileEventTable.file_path);
+                    if (batch.present.contains(fileRelPath)) {
+                        continue;
+                    }
+                    String sha1 = CatalogStorage.fromColumn(resultSet.getObject(FileEventTable.sha1));
+                    String movedTo = batch.renameDetector.claim(fileRelPath, sha1,
+                            LastEventLookup.getNullableLong(resultSet, FileEventTable.size),
+                            resultSet.getString(FileEventTable.fingerprint));
+                    if (movedTo != null) {
+                        log.file("File was moved - " + fileRelPath + " to " + movedTo);
+                        missing.add(new MainBuildCatalog.FileEvent(EventTypes.move, fileRelPath, sha1, movedTo));
+                        batch.moves++;
+                    } else {
+                        log.file("File was deleted - " + fileRelPath);
+                        missing.add(new MainBuildCatalog.FileEvent(EventTypes.delete, fileRelPath, sha1));
+                        batch.deletes++;
+                    }
+                }
+            }
+        }
+        // Emitted after the read is done, for the same reason as in DatabaseScanner.
+        for (MainBuildCatalog.FileEvent event : missing) {
+            batch.emit(event);
+        }
+        if (!missing.isEmpty()) {
+            // A directory that moved out of the tree is still watched where it went, and there's nothing to hear from
+            // it anymore.
+            unregisterUnder(root.resolve(relPath));
+        }
+    }
+
+    /**
+     * Watches a directory and everything under it.
+     *
+     * @return whether it could be watched at all
+     */
+    private boolean registerAll(Path directory) {
+        try {
+            walkAndRegister(directory);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Can't watch " + directory + ": " + e);
+            return false;
+        }
+    }
+
+    private void walkAndRegister(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                watchedDirectories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                System.out.println("Can't watch " + file + ": " + e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void unregisterUnder(Path directory) {
+        for (Iterator<Map.Entry<WatchKey, Path>> i = watchedDirectories.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<WatchKey, Path> entry = i.next();
+            if (entry.getValue().startsWith(directory) && !Files.isDirectory(entry.getValue())) {
+                entry.getKey().cancel();
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * @param all whether to take every path, or only the ones that have been quiet for long enough on their own
+     */
+    private List<Path> removeSettled(Map<Path, Long> lastEvents, long now, boolean all) {
+        List<Path> settled = new ArrayList<>();
+        for (Iterator<Map.Entry<Path, Long>> i = lastEvents.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<Path, Long> entry = i.next();
+            if (all || now - entry.getValue() >= debounceNanos) {
+                settled.add(entry.getKey());
+                i.remove();
+            }
+        }
+        return settled;
+    }
+
+    private String relPath(Path path) {
+        return root.relativize(path).toString();
+    }
+
+    /**
+     * Leaves out directories that are inside another one in the list, since rescanning that one covers them. After a
+     * big overflow, that's most of them.
+     */
+    private List<Path> withoutNested(List<Path> directories) {
+        Set<Path> all = new HashSet<>(directories);
+        List<Path> outermost = new ArrayList<>();
+        for (Path directory : all) {
+            boolean nested = false;
+            for (Path parent = directory.getParent(); parent != null && parent.startsWith(root);
+                 parent = parent.getParent()) {
+                if (all.contains(parent)) {
+                    nested = true;
+                    break;
+                }
+            }
+            if (!nested) {
+                outermost.add(directory);
+            }
+        }
+        return outermost;
+    }
+
+    /**
+     * Follows a symlink to a file, like a build does, but not one to a directory.
+     *
+     * @return the attributes, or null if there's nothing there, or nothing a build would catalog
+     */
+    private static BasicFileAttributes attributesOrNull(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            if (attributes.isSymbolicLink()) {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                return attributes.isRegularFile() ? attributes : null;
+            }
+            return attributes.isDirectory() || attributes.isRegularFile() ? attributes : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
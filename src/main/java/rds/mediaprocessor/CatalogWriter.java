@@ -0,0 +1,495 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.sqlite.SQLiteErrorCode;
+import org.sqlite.SQLiteException;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * The one place file events get written to a catalog. Producers queue events with {@link #addToBatch}, and a single
+ * writer thread commits them in batches.
+ * <ul>
+ *     <li>The queue is bounded, and a producer that finds it full waits for room, however long that takes. A slow
+ *     commit slows the scan down instead of killing it.</li>
+ *     <li>The writer thread wakes up when an event arrives, not on a timer. It takes everything that's queued, up to
+ *     the batch size, and commits it in one transaction, so events that pile up during a slow commit all go in the next
+ *     one together.</li>
+ *     <li>The batch size adapts to how long commits take, growing while they're under the target time and shrinking
+ *     when they're over it.</li>
+ *     <li>{@link #flush()} is a barrier: it returns once every event queued before it is committed.</li>
+ * </ul>
+ * Each event is inserted into the file_events view, which records it and brings the file's current state up to date in
+ * the same statement; see {@link CatalogStorage}. A {@link DbNames.EventTypes#touch} is recorded as an update, with the
+ * new size and mtime and everything else carried over from the file's current state, since events are never changed
+ * once they're written.
+ * <p>
+ * An event is keyed by its file and its time, so a file can only have one event at a time. Without a fixed time, every
+ * batch gets a time of its own, and a second event for a file that's already in the batch waits for the next one. With
+ * a fixed time, waiting doesn't help, so the later event replaces the earlier one instead, which is what the file's
+ * current state would have been anyway. That's done by trying the batch again, replacing as it goes, if it fails on
+ * the primary key, and only then.
+ * <p>
+ * It also keeps the catalog's {@link PathFilter} up to date, once something asks for it, unless
+ * "CatalogWriter.pathFilter" is false. Only lookups by query use it, so a build that preloads its lookups, or doesn't
+ * look anything up, never pays for loading, building or saving it. The first {@link #pathFilter()} loads the filter, or
+ * builds it if it's missing or out of date, and closing the writer saves it. If something else writes to the catalog
+ * in the meantime, the next batch loads or builds it again before it's committed.
+ */
+public class CatalogWriter implements FileEventInserter, AutoCloseable {
+    private static final String INSERT =
+            "insert into file_events(event_type, file_path, time, storage_location, sha1, size, mtime, " +
+                    "content_sha1, fingerprint, moved_to) values(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_TOUCH =
+            "insert into file_events(event_type, file_path, time, storage_location, sha1, size, mtime, " +
+                    "content_sha1, fingerprint, moved_to) " +
+                    "select '" + DbNames.EventTypes.update + "', file_path, ?, ?, sha1, ?, ?, content_sha1, " +
+                    "coalesce(?, fingerprint), null from file_state where file_path = ?";
+    private static final String DELETE_EVENT = "delete from events where " + CatalogStorage.EVENT_KEY;
+
+    private final BasicDataSource dataSource;
+    private final ScanMetrics metrics;
+    /**
+     * The time every event is recorded at, or null to record each batch at the current time.
+     */
+    private final Long insertTimestamp;
+    private final String storageLocation;
+    private final int queueCapacity;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long targetCommitMillis;
+    private final BlockingQueue<Object> queue;
+    private final Thread writerThread;
+    private final boolean pathFilterEnabled;
+    /**
+     * Held by the writer thread for each batch, so the filter can't be opened partway through one, after the batch has
+     * been added to a filter that wasn't there yet and before it's committed.
+     */
+    private final Object pathFilterLock = new Object();
+    /**
+     * Null until it's asked for. Replaced by the writer thread when something else changes the catalog.
+     */
+    private volatile PathFilter pathFilter;
+    private volatile Throwable failure;
+    private volatile int batchSize;
+    private long lastBatchTime = Long.MIN_VALUE;
+
+    private static class QueuedEvent {
+        public final MainBuildCatalog.FileEvent fileEvent;
+        public final long queueNanos = System.nanoTime();
+
+        private QueuedEvent(MainBuildCatalog.FileEvent fileEvent) {
+            this.fileEvent = fileEvent;
+        }
+    }
+
+    /**
+     * Queued by {@link #flush()}. It's completed once everything ahead of it is committed.
+     */
+    private static class Barrier extends CompletableFuture<Void> {
+    }
+
+    /**
+     * Queued by {@link #close()} to tell the writer thread to stop.
+     */
+    private static final Object STOP = new Object();
+
+    /**
+     * @param insertTimestamp the time to record every event at, which is how a scan's events all end up with the time
+     *                        the scan started; or null for a long-lived writer that records each batch at the time
+     *                        it's committed
+     */
+    public CatalogWriter(BasicDataSource dataSource, Long insertTimestamp, ScanMetrics metrics,
+                         Map<String, String> settings) {
+        this.dataSource = dataSource;
+        this.metrics = metrics;
+        this.insertTimestamp = insertTimestamp;
+        storageLocation = settings.getOrDefault("CatalogWriter.storageLocation", "UNUSED!!");
+        queueCapacity = Integer.parseInt(settings.getOrDefault("CatalogWriter.queueCapacity", "10000"));
+        minBatchSize = Integer.parseInt(settings.getOrDefault("CatalogWriter.minBatchSize", "50"));
+        maxBatchSize = Integer.parseInt(settings.getOrDefault("CatalogWriter.maxBatchSize", "20000"));
+        targetCommitMillis = Long.parseLong(settings.getOrDefault("CatalogWriter.targetCommitMillis", "250"));
+        batchSize = Integer.parseInt(settings.getOrDefault("CatalogWriter.initialBatchSize", "200"));
+        pathFilterEnabled = Boolean.parseBoolean(settings.getOrDefault("CatalogWriter.pathFilter", "true"));
+        queue = new LinkedBlockingQueue<>(queueCapacity);
+        metrics.watchQueue(queue::size, queueCapacity);
+        writerThread = new Thread(this::run, "catalog-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public int getCurrentQueuedInserts() {
+        return queue.size();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Loads or builds the filter the first time it's asked for, which means waiting for the batch that's being
+     * committed, if there is one.
+     */
+    @Override
+    public PathFilter pathFilter() {
+        if (!pathFilterEnabled) {
+            return null;
+        }
+        PathFilter filter = pathFilter;
+        if (filter == null) {
+            synchronized (pathFilterLock) {
+                if (pathFilter == null) {
+                    pathFilter = PathFilter.open(dataSource);
+                }
+                filter = pathFilter;
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * @return how many events the writer currently puts in a transaction
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Queues an event, waiting as long as it takes for room on the queue.
+     *
+     * @throws IllegalStateException if the writer has failed, since nothing queued now would ever be written
+     */
+    @Override
+    public void addToBatch(MainBuildCatalog.FileEvent event) {
+        enqueue(new QueuedEvent(event));
+        metrics.eventsQueued.increment();
+    }
+
+    /**
+     * Waits until every event queued before this call is committed.
+     */
+    @Override
+    public void flush() {
+        Barrier barrier = new Barrier();
+        enqueue(barrier);
+        try {
+            barrier.get();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Unexpected interrupt", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Writer failed before flushing", e.getCause());
+        }
+    }
+
+    /**
+     * Commits everything that's queued, stops the writer thread, and saves the path filter.
+     *
+     * @throws IllegalStateException if the writer has failed, since some of what was queued was never written
+     */
+    @Override
+    public void close() {
+        if (!writerThread.isAlive()) {
+            checkFailure();
+            return;
+        }
+        flush();
+        enqueue(STOP);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Unexpected interrupt", e);
+        }
+        if (pathFilter != null) {
+            try (Connection connection = dataSource.getConnection()) {
+                pathFilter.save(connection);
+            } catch (SQLException e) {
+                throw new IllegalStateException("Failed to save path filter", e);
+            }
+        }
+    }
+
+    private void enqueue(Object item) {
+        try {
+            // Wait in slices so that a producer notices if the writer dies while it's waiting for room.
+            while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Unexpected interrupt", e);
+        }
+        checkFailure();
+    }
+
+    boolean hasFailed() {
+        return failure != null;
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("Catalog writer failed", failure);
+        }
+    }
+
+    private void run() {
+        try {
+            Batch batch = new Batch(insertTimestamp != null);
+            while (true) {
+                Object first = queue.take();
+                if (first == STOP) {
+                    break;
+                }
+                batch.clear();
+                batch.add(first);
+                // Group commit: everything that's already waiting goes in with the first event, up to the batch size.
+                while (batch.events < batchSize && !batch.endsWithBarrier()) {
+                    Object next = queue.peek();
+                    if (next == null || next == STOP || batch.wouldRepeatPath(next)) {
+                        break;
+                    }
+                    batch.add(queue.poll());
+                }
+                if (batch.events > 0) {
+                    // The connection is only held for the commit, so anything else that writes can have it in between.
+                    // The pool keeps the statements prepared.
+                    synchronized (pathFilterLock) {
+                        try (Connection connection = dataSource.getConnection();
+                             Statements statements = new Statements(connection)) {
+                            if (pathFilter != null) {
+                                pathFilter = pathFilter.refresh(connection);
+                            }
+                            connection.setAutoCommit(false);
+                            try {
+                                commit(connection, statements, batch);
+                            } finally {
+                                connection.setAutoCommit(true);
+                            }
+                        }
+                    }
+                }
+                for (Barrier barrier : batch.barriers) {
+                    barrier.complete(null);
+                }
+            }
+        } catch (Throwable t) {
+            failure = t;
+            System.out.println("Catalog writer failed; nothing else will be written");
+            t.printStackTrace();
+            // Anybody waiting on a flush would wait forever otherwise.
+            Object item;
+            while ((item = queue.poll()) != null) {
+                if (item instanceof Barrier) {
+                    ((Barrier) item).completeExceptionally(t);
+                }
+            }
+        }
+    }
+
+    private static class Statements implements AutoCloseable {
+        final PreparedStatement insert;
+        final PreparedStatement insertTouch;
+        final PreparedStatement deleteEvent;
+
+        Statements(Connection connection) throws SQLException {
+            insert = connection.prepareStatement(INSERT);
+            insertTouch = connection.prepareStatement(INSERT_TOUCH);
+            deleteEvent = connection.prepareStatement(DELETE_EVENT);
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try (insert; insertTouch; deleteEvent) {
+                // Just closing them all.
+            }
+        }
+    }
+
+    /**
+     * The events and barriers taken off the queue for one transaction.
+     */
+    private static class Batch {
+        final boolean fixedTime;
+        final List<QueuedEvent> queuedEvents = new ArrayList<>();
+        final List<Barrier> barriers = new ArrayList<>();
+        final Set<String> paths = new HashSet<>();
+        int events;
+        /**
+         * How many of the events are touches, which are inserted with a statement of their own.
+         */
+        int touches;
+
+        Batch(boolean fixedTime) {
+            this.fixedTime = fixedTime;
+        }
+
+        void clear() {
+            queuedEvents.clear();
+            barriers.clear();
+            paths.clear();
+            events = 0;
+            touches = 0;
+        }
+
+        void add(Object item) {
+            if (item instanceof Barrier) {
+                barriers.add((Barrier) item);
+            } else {
+                QueuedEvent queuedEvent = (QueuedEvent) item;
+                queuedEvents.add(queuedEvent);
+                paths.add(queuedEvent.fileEvent.relPath);
+                events++;
+                if (isTouch(queuedEvent.fileEvent)) {
+                    touches++;
+                }
+            }
+        }
+
+        boolean endsWithBarrier() {
+            return !barriers.isEmpty();
+        }
+
+        /**
+         * Without a fixed time, two events for the same file can't share a transaction, since they'd get the same time
+         * and collide on the primary key. The second one waits for the next batch, which gets a later time. With a
+         * fixed time, they'd collide in any batch, so they go together, and the later one replaces the earlier one.
+         */
+        boolean wouldRepeatPath(Object item) {
+            if (fixedTime || !(item instanceof QueuedEvent)) {
+                return false;
+            }
+            return paths.contains(((QueuedEvent) item).fileEvent.relPath);
+        }
+    }
+
+    private static boolean isTouch(MainBuildCatalog.FileEvent fileEvent) {
+        return DbNames.EventTypes.touch.equals(fileEvent.eventType);
+    }
+
+    private void commit(Connection connection, Statements statements, Batch batch) throws SQLException {
+        final long start = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        // Without a fixed time, batches get the current time, but never the same time as an earlier batch. The same
+        // file could have an event in each, and they'd collide on the primary key.
+        long time = insertTimestamp != null ? insertTimestamp : Math.max(start, lastBatchTime + 1);
+        for (QueuedEvent queuedEvent : batch.queuedEvents) {
+            metrics.queueWaitMicros.record((startNanos - queuedEvent.queueNanos) / 1000);
+        }
+        try {
+            write(connection, statements, batch, time, false);
+        } catch (SQLException e) {
+            connection.rollback();
+            // A file that already has an event at this time, from this batch or an earlier one. Anything else, like
+            // the catalog being locked or the disk being full, is a real failure, and nothing gets replaced.
+            if (insertTimestamp == null || !isPrimaryKeyCollision(e)) {
+                throw e;
+            }
+            try {
+                write(connection, statements, batch, time, true);
+            } catch (SQLException again) {
+                connection.rollback();
+                again.addSuppressed(e);
+                throw again;
+            }
+        }
+        lastBatchTime = time;
+        long elapsedMicros = (System.nanoTime() - startNanos) / 1000;
+        metrics.eventsCommitted.add(batch.events);
+        metrics.batchSize.record(batch.events);
+        metrics.commitMicros.record(elapsedMicros);
+        adaptBatchSize(batch.events, elapsedMicros / 1000);
+    }
+
+    private static boolean isPrimaryKeyCollision(SQLException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLiteException
+                    && ((SQLiteException) cause).getResultCode() == SQLiteErrorCode.SQLITE_CONSTRAINT_PRIMARYKEY) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes and commits a batch.
+     *
+     * @param replacing whether to delete any event a file already has at this time before inserting one, which means
+     *                  going one statement at a time, in order
+     */
+    private void write(Connection connection, Statements statements, Batch batch, long time, boolean replacing)
+            throws SQLException {
+        for (QueuedEvent queuedEvent : batch.queuedEvents) {
+            MainBuildCatalog.FileEvent fileEvent = queuedEvent.fileEvent;
+            PreparedStatement insertStatement;
+            if (isTouch(fileEvent)) {
+                insertStatement = statements.insertTouch;
+                insertStatement.setLong(1, time);
+                insertStatement.setString(2, storageLocation);
+                insertStatement.setObject(3, fileEvent.size);
+                insertStatement.setObject(4, fileEvent.mtime);
+                insertStatement.setString(5, fileEvent.fingerprint);
+                insertStatement.setString(6, fileEvent.relPath);
+            } else {
+                insertStatement = statements.insert;
+                insertStatement.setString(1, fileEvent.eventType);
+                insertStatement.setString(2, fileEvent.relPath);
+                insertStatement.setLong(3, time);
+                insertStatement.setString(4, storageLocation);
+                insertStatement.setObject(5, CatalogStorage.toColumn(fileEvent.sha1Hex));
+                insertStatement.setObject(6, fileEvent.size);
+                insertStatement.setObject(7, fileEvent.mtime);
+                insertStatement.setObject(8, CatalogStorage.toColumn(fileEvent.contentSha1Hex));
+                insertStatement.setString(9, fileEvent.fingerprint);
+                insertStatement.setString(10, fileEvent.movedTo);
+            }
+            if (replacing) {
+                statements.deleteEvent.setString(1, CatalogStorage.directoryOf(fileEvent.relPath));
+                statements.deleteEvent.setString(2, CatalogStorage.fileNameOf(fileEvent.relPath));
+                statements.deleteEvent.setLong(3, time);
+                statements.deleteEvent.executeUpdate();
+                insertStatement.executeUpdate();
+            } else {
+                insertStatement.addBatch();
+            }
+            if (pathFilter != null) {
+                // Before it's committed, so the catalog never has a path that the filter doesn't.
+                pathFilter.add(fileEvent.relPath);
+            }
+        }
+        if (!replacing) {
+            if (batch.touches < batch.events) {
+                statements.insert.executeBatch();
+            }
+            if (batch.touches > 0) {
+                statements.insertTouch.executeBatch();
+            }
+        }
+        if (pathFilter != null) {
+            pathFilter.written(PathFilter.generation(connection), batch.events);
+        }
+        connection.commit();
+    }
+
+    /**
+     * Steers the batch size toward one that commits in about the target time. Only a full batch says anything about
+     * whether a bigger one would be better; a small batch just means the producers were slower than the writer.
+     */
+    private void adaptBatchSize(int committed, long elapsedMillis) {
+        int current = batchSize;
+        if (elapsedMillis > targetCommitMillis) {
+            batchSize = Math.max(minBatchSize, (int) (current * targetCommitMillis / (double) elapsedMillis));
+        } else if (committed >= current) {
+            long ideal = elapsedMillis == 0 ? current * 2L : current * targetCommitMillis / Math.max(1, elapsedMillis);
+            // Grow by at most double per batch, so one fast commit doesn't send it somewhere unreasonable.
+            batchSize = (int) Math.min(maxBatchSize, Math.min(current * 2L, Math.max(current, ideal)));
+        }
+    }
+}
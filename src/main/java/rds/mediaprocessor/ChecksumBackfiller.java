@@ -0,0 +1,226 @@
+package rds.mediaprocessor;
+
+import java.io.IOException;
+import org.apache.commons.dbcp.BasicDataSource;
+
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fills in the checksums that a metadata-only scan left pending, which is the second half of building a catalog with
+ * "FileSystemScanner.checksums" set to "later". Files are done most recently changed first, since those are the ones
+ * most likely to still need syncing somewhere.
+ * <p>
+ * A file is only hashed if its size and mtime still match what was recorded. If they don't, it's changed since the
+ * scan, and the next scan will record that, with a new pending checksum. If it's gone, the next scan records the
+ * delete. Either way it's left alone here. The checksum is written to the event that recorded the file and to
+ * file_state together, and only where it's still null, so a scan can run at the same time.
+ * <p>
+ * Everything it needs to know is in the catalog, so stopping it partway loses at most one chunk of work, and running it
+ * again picks up where it left off.
+ * <p>
+ * It writes through the {@link CatalogDatabase}'s writer, which has already brought the schema up to date, and only
+ * holds the connection while it reads or writes a chunk, not while it's hashing, so anything else that writes can have
+ * it in between.
+ * <p>
+ * Settings:
+ * <ul>
+ *     <li>ChecksumBackfiller.chunkSize: how many files are hashed per transaction (500)</li>
+ *     <li>ChecksumBackfiller.maxBytesPerSecond: how fast to read, so it can run in the background without starving
+ *     everything else on the disk; 0 for no limit (0)</li>
+ * </ul>
+ */
+public class ChecksumBackfiller {
+    private static final String SELECT_PENDING = "select file_path, time, size, mtime from file_state " +
+            "where sha1 is null and event_type != 'delete' and (mtime < ? or (mtime = ? and file_path > ?)) " +
+            "order by mtime desc, file_path limit ?";
+
+    private final Path root;
+    private final BasicDataSource writer;
+    private final ScanMetrics metrics;
+    private final int chunkSize;
+    private final long maxBytesPerSecond;
+
+    private static class Pending {
+        private final String relPath;
+        private final long time;
+        private final Long size;
+        private final long mtime;
+        private String sha1Hex;
+
+        private Pending(String relPath, long time, Long size, long mtime) {
+            this.relPath = relPath;
+            this.time = time;
+            this.size = size;
+            this.mtime = mtime;
+        }
+    }
+
+    /**
+     * @param root the directory the catalog's paths are relative to
+     */
+    public ChecksumBackfiller(Path root, BasicDataSource writer, ScanMetrics metrics, Map<String, String> settings) {
+        this.root = root;
+        this.writer = writer;
+        this.metrics = metrics;
+        chunkSize = Integer.parseInt(settings.getOrDefault("ChecksumBackfiller.chunkSize", "500"));
+        maxBytesPerSecond = Long.parseLong(settings.getOrDefault("ChecksumBackfiller.maxBytesPerSecond", "0"));
+    }
+
+    /**
+     * @return how many files in the catalog have a pending checksum
+     */
+    public static int countPending(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(
+                     "select count(*) from file_state " +
+                             "where sha1 is null and event_type != 'delete' and mtime is not null")) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+
+    /**
+     * Hashes every file with a pending checksum that hasn't changed since it was recorded.
+     *
+     * @return the number of checksums filled in
+     */
+    public int backfill() throws SQLException {
+        long start = System.nanoTime();
+        long bytesRead = 0;
+        int filled = 0;
+        int skipped = 0;
+        // Paged by the sort key instead of an offset, since files that are skipped stay pending.
+        long lastMtime = Long.MAX_VALUE;
+        String lastPath = "";
+        while (true) {
+            List<Pending> chunk = nextChunk(lastMtime, lastPath);
+            if (chunk.isEmpty()) {
+                break;
+            }
+            Pending last = chunk.get(chunk.size() - 1);
+            lastMtime = last.mtime;
+            lastPath = last.relPath;
+            for (Pending pending : chunk) {
+                if (hash(pending)) {
+                    bytesRead += pending.size;
+                    throttle(start, bytesRead);
+                } else {
+                    skipped++;
+                }
+            }
+            filled += write(chunk);
+        }
+        System.out.println("Filled in " + filled + " checksums, skipped " + skipped + " changed or missing files, in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return filled;
+    }
+
+    private List<Pending> nextChunk(long lastMtime, String lastPath) throws SQLException {
+        List<Pending> chunk = new ArrayList<>();
+        try (Connection connection = writer.getConnection();
+             PreparedStatement select = connection.prepareStatement(SELECT_PENDING)) {
+            select.setLong(1, lastMtime);
+            select.setLong(2, lastMtime);
+            select.setString(3, lastPath);
+            select.setInt(4, chunkSize);
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    long size = resultSet.getLong(3);
+                    chunk.add(new Pending(resultSet.getString(1), resultSet.getLong(2),
+                            resultSet.wasNull() ? null : size, resultSet.getLong(4)));
+                }
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * @return whether the file was hashed, which it isn't if it's changed or gone since it was recorded
+     */
+    private boolean hash(Pending pending) {
+        Path path = root.resolve(pending.relPath);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (pending.size == null || attributes.size() != pending.size
+                    || attributes.lastModifiedTime().toMillis() != pending.mtime) {
+                return false;
+            }
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            System.out.println("Can't read attributes of " + path + ": " + e);
+            return false;
+        }
+        long hashStart = System.nanoTime();
+        pending.sha1Hex = FileSystemScanner.sha1(path);
+        metrics.hashMicros.record((System.nanoTime() - hashStart) / 1000);
+        metrics.filesHashed.increment();
+        metrics.bytesRead.add(pending.size);
+        return true;
+    }
+
+    /**
+     * Sleeps for as long as it takes to bring the read rate down to the limit.
+     */
+    private void throttle(long start, long bytesRead) {
+        if (maxBytesPerSecond <= 0) {
+            return;
+        }
+        long dueNanos = bytesRead * 1_000_000_000L / maxBytesPerSecond;
+        long aheadMillis = (dueNanos - (System.nanoTime() - start)) / 1_000_000;
+        if (aheadMillis > 0) {
+            try {
+                Thread.sleep(aheadMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while throttling", e);
+            }
+        }
+    }
+
+    private int write(List<Pending> chunk) throws SQLException {
+        int filled = 0;
+        try (Connection connection = writer.getConnection();
+             PreparedStatement updateEvent = connection.prepareStatement(
+                     "update events set sha1 = ? where " + CatalogStorage.EVENT_KEY + " and sha1 is null");
+             PreparedStatement updateCurrent = connection.prepareStatement(
+                     "update file_state set sha1 = ? where file_path = ? and time = ? and sha1 is null")) {
+            connection.setAutoCommit(false);
+            try {
+                for (Pending pending : chunk) {
+                    if (pending.sha1Hex == null) {
+                        continue;
+                    }
+                    Object sha1 = CatalogStorage.toColumn(pending.sha1Hex);
+                    updateEvent.setObject(1, sha1);
+                    updateEvent.setString(2, CatalogStorage.directoryOf(pending.relPath));
+                    updateEvent.setString(3, CatalogStorage.fileNameOf(pending.relPath));
+                    updateEvent.setLong(4, pending.time);
+                    updateEvent.executeUpdate();
+                    updateCurrent.setObject(1, sha1);
+                    updateCurrent.setString(2, pending.relPath);
+                    updateCurrent.setLong(3, pending.time);
+                    filled += updateCurrent.executeUpdate();
+                }
+                connection.commit();
+                return filled;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+}
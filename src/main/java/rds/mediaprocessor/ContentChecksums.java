@@ -0,0 +1,117 @@
+package rds.mediaprocessor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Finds content checksums for reconciling, when two locations disagree about a file's whole-file checksum. A checksum
+ * that's already in a catalog is used as is. Otherwise, if the location's files can be reached from here, it's worked
+ * out from the file, as long as the file's size and mtime still match the catalog, so it's of the same version of the
+ * file that the catalog knows about.
+ * <p>
+ * The ones that are worked out are saved to their catalogs by {@link #save()}, so they're only ever worked out once.
+ * That waits until reconciling is done, since the catalogs are being read the whole time until then. It's safe to use
+ * from several threads at once.
+ */
+public class ContentChecksums {
+    private final Map<Location, ConcurrentLinkedQueue<Found>> found = new ConcurrentHashMap<>();
+
+    private static class Found {
+        private final String path;
+        private final long size;
+        private final long mtime;
+        private final String contentSha1Hex;
+
+        private Found(String path, long size, long mtime, String contentSha1Hex) {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+            this.contentSha1Hex = contentSha1Hex;
+        }
+    }
+
+    /**
+     * @param storedPath the path as it's stored in the location's catalog
+     * @param size       the size the catalog has for the file
+     * @param mtime      the mtime the catalog has for the file
+     * @param stored     the content checksum the catalog has for the file, if any
+     * @return the file's content checksum, or null if it's unknown and can't be worked out
+     */
+    public String find(Location location, String storedPath, Long size, Long mtime, String stored) {
+        if (stored != null) {
+            return stored;
+        }
+        if (location.root == null || size == null || mtime == null || ContentHasher.forPath(storedPath) == null) {
+            return null;
+        }
+        Path path = location.root.resolve(storedPath);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attributes.size() != size || attributes.lastModifiedTime().toMillis() != mtime) {
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        String contentSha1Hex = ContentHasher.contentSha1(path);
+        if (contentSha1Hex != null) {
+            found.computeIfAbsent(location, ignored -> new ConcurrentLinkedQueue<>())
+                    .add(new Found(storedPath, size, mtime, contentSha1Hex));
+        }
+        return contentSha1Hex;
+    }
+
+    /**
+     * Writes every checksum that was worked out to the file's current state and the event it came from. A file that's
+     * been rescanned since then is left alone.
+     *
+     * @return how many files were updated
+     */
+    public int save() throws SQLException {
+        int saved = 0;
+        for (Map.Entry<Location, ConcurrentLinkedQueue<Found>> entry : found.entrySet()) {
+            try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + entry.getKey().catalog);
+                 PreparedStatement updateEvent = connection.prepareStatement("update events " +
+                         "set content_sha1 = ? where directory_id = (select id from directories where path = ?) " +
+                         "and file_name = ? and time = (select time from file_state where file_path = ?) " +
+                         "and size = ? and mtime = ? and content_sha1 is null");
+                 PreparedStatement updateCurrent = connection.prepareStatement("update file_state " +
+                         "set content_sha1 = ? where file_path = ? and size = ? and mtime = ? " +
+                         "and content_sha1 is null")) {
+                connection.setAutoCommit(false);
+                try {
+                    for (Found file : entry.getValue()) {
+                        Object contentSha1 = CatalogStorage.toColumn(file.contentSha1Hex);
+                        updateEvent.setObject(1, contentSha1);
+                        updateEvent.setString(2, CatalogStorage.directoryOf(file.path));
+                        updateEvent.setString(3, CatalogStorage.fileNameOf(file.path));
+                        updateEvent.setString(4, file.path);
+                        updateEvent.setLong(5, file.size);
+                        updateEvent.setLong(6, file.mtime);
+                        updateEvent.executeUpdate();
+                        updateCurrent.setObject(1, contentSha1);
+                        updateCurrent.setString(2, file.path);
+                        updateCurrent.setLong(3, file.size);
+                        updateCurrent.setLong(4, file.mtime);
+                        saved += updateCurrent.executeUpdate();
+                    }
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                }
+            }
+        }
+        found.clear();
+        return saved;
+    }
+}
@@ -0,0 +1,108 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/**
+ * Computes a checksum of just the image or video in a file, leaving out its metadata. Fixing a photo's timestamp in
+ * Amazon rewrites its EXIF, which changes the whole-file checksum, so it looks like an update and gets synced
+ * everywhere again, even though the picture is exactly the same. Two files with the same content checksum have the
+ * same pixels or frames, whatever their metadata says.
+ * <p>
+ * Parsing formats is slower than reading bytes, so content checksums aren't worked out for every file. The scanner only
+ * does it when a file's whole-file checksum changes, and reconciling only does it when two locations disagree.
+ * <p>
+ * Each format's hasher walks the file's structure and seeks straight past the parts it leaves out, so metadata is never
+ * even read.
+ */
+public abstract class ContentHasher {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final Map<String, ContentHasher> BY_EXTENSION;
+
+    static {
+        ContentHasher jpeg = new JpegContentHasher();
+        ContentHasher png = new PngContentHasher();
+        ContentHasher mp4 = new Mp4ContentHasher();
+        BY_EXTENSION = Map.of(
+                "jpg", jpeg, "jpeg", jpeg,
+                "png", png,
+                "mp4", mp4, "m4v", mp4, "mov", mp4, "3gp", mp4);
+    }
+
+    /**
+     * @return the hasher for the file's format, or null if there isn't one and only the whole-file checksum means
+     * anything
+     */
+    public static ContentHasher forPath(String path) {
+        return BY_EXTENSION.get(MediaKind.extensionOf(path));
+    }
+
+    /**
+     * Content checksum of a file, or null if it doesn't have a hasher, can't be read or isn't what its extension says
+     * it is. A null means "unknown", never "different".
+     */
+    public static String contentSha1(Path path) {
+        ContentHasher hasher = forPath(path.toString());
+        if (hasher == null) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            if (!hasher.digestContent(channel, digest, ByteBuffer.allocate(BUFFER_SIZE))) {
+                return null;
+            }
+            return Hex.encodeHexString(digest.digest());
+        } catch (IOException e) {
+            System.out.println("Can't get content checksum of " + path + ": " + e);
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM is supposed to have SHA-1", e);
+        }
+    }
+
+    /**
+     * Feeds the content parts of a file to the digest.
+     *
+     * @param buffer scratch space for reading
+     * @return false if the file isn't in this hasher's format, in which case whatever's in the digest is meaningless
+     */
+    protected abstract boolean digestContent(FileChannel channel, MessageDigest digest, ByteBuffer buffer)
+            throws IOException;
+
+    /**
+     * Reads exactly the given number of bytes at a position into the start of the buffer and flips it.
+     */
+    protected static ByteBuffer read(FileChannel channel, long position, int length, ByteBuffer buffer)
+            throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file at " + (position + buffer.position()));
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Feeds a range of the file to the digest, a buffer at a time.
+     */
+    protected static void digestRange(FileChannel channel, long position, long length, MessageDigest digest,
+                                      ByteBuffer buffer) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            int chunk = (int) Math.min(buffer.capacity(), end - position);
+            digest.update(read(channel, position, chunk, buffer));
+            position += chunk;
+        }
+    }
+}
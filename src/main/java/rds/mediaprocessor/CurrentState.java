@@ -0,0 +1,70 @@
+package rds.mediaprocessor;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Keeps the file_state table, which holds the latest event of every file, in line with the events table. The trigger
+ * on the file_events view updates it in the same statement as it records each event, so writers don't have to do
+ * anything about it; see {@link CatalogStorage}. Since it's just a cache, it can be rebuilt from scratch at any time.
+ * The current_state view shows it the way the file_events view shows events.
+ */
+public class CurrentState {
+    /**
+     * The latest event of each file, computed the slow way from the events table. This relies on sqlite's rule that
+     * bare columns in a query with max() come from the row that has the max. Grouping by the events table's primary
+     * key means it doesn't need a sort.
+     */
+    private static final String LATEST_EVENTS =
+            "select d.path || e.file_name as file_path, max(e.time) as time, e.event_type, e.location_id, e.sha1, " +
+                    "e.size, e.mtime, e.content_sha1, e.fingerprint, e.moved_to " +
+                    "from events e join directories d on d.id = e.directory_id group by e.directory_id, e.file_name";
+    private static final String COLUMNS =
+            "file_path, time, event_type, location_id, sha1, size, mtime, content_sha1, fingerprint, moved_to";
+
+    private CurrentState() {
+    }
+
+    /**
+     * Throws away file_state and rebuilds it from the events, in one transaction.
+     *
+     * @return the number of files in the rebuilt table
+     */
+    public static int rebuild(Connection connection) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("delete from file_state");
+            int rows = statement.executeUpdate(
+                    "insert into file_state(" + COLUMNS + ") select " + COLUMNS + " from (" + LATEST_EVENTS + ")");
+            // It might have put back paths that were missing, which a path filter built since wouldn't have.
+            statement.execute(CatalogStorage.COUNT_CHANGE);
+            connection.commit();
+            return rows;
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Compares file_state against what it would be if it were rebuilt from the events.
+     *
+     * @return the number of rows that are missing, extra or different; 0 means file_state is correct
+     */
+    public static int verify(Connection connection) throws SQLException {
+        String latest = "select " + COLUMNS + " from (" + LATEST_EVENTS + ")";
+        String current = "select " + COLUMNS + " from file_state";
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(
+                     "select (select count(*) from (" + latest + " except " + current + ")) + " +
+                             "(select count(*) from (" + current + " except " + latest + "))")) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+}
@@ -2,54 +2,83 @@ package rds.mediaprocessor;
 
 import org.apache.commons.dbcp.BasicDataSource;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.sql.*;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import static rds.mediaprocessor.DbNames.*;
 
+/**
+ * Finds files that the db thinks exist but that are gone from the file system, and records them as deleted. It works
+ * from the set of paths that a {@link FileSystemScanner} saw on its pass over the same directory, so it never has to go
+ * back to the file system. On a network mount, checking each file with Files.exists was a round trip apiece.
+ * <p>
+ * With a {@link RenameDetector}, a file that's gone but turned up somewhere else in the same scan is recorded as a move
+ * instead.
+ */
 public class DatabaseScanner {
     private final BasicDataSource dataSource;
     private final FileEventInserter fileEventInserter;
+    private final RenameDetector renameDetector;
+    private final ScanLog log;
 
-    public DatabaseScanner(BasicDataSource dataSource, FileEventInserter fileEventInserter) {
+    public DatabaseScanner(BasicDataSource dataSource, FileEventInserter fileEventInserter,
+                           Map<String, String> settings) {
+        this(dataSource, fileEventInserter, null, settings);
+    }
+
+    /**
+     * @param renameDetector what the file system scan's creates went through, or null to record every missing file as
+     *                       deleted
+     */
+    public DatabaseScanner(BasicDataSource dataSource, FileEventInserter fileEventInserter,
+                           RenameDetector renameDetector, Map<String, String> settings) {
         this.dataSource = dataSource;
         this.fileEventInserter = fileEventInserter;
+        this.renameDetector = renameDetector;
+        log = new ScanLog(settings);
     }
 
-    public void scan(Path directory) {
-        try (Connection connection = dataSource.getConnection()) {
-            // Can I tweak this query to only return the last event per file? Maybe an "order by time desc" on the outer
-            // query?
-            String stmt = "select distinct file_path from file_events where file_path not in " +
-                    "(select file_path from file_events where event_type = 'delete')";
-            ResultSet resultSet = connection.createStatement().executeQuery(stmt);
-            PreparedStatement findLastEvent = connection.prepareStatement(
-                    "select sha1 from file_events where file_path = ? order by time desc limit 1");
+    /**
+     * @param seenPaths every path found by a complete file system scan of the directory
+     */
+    public void scan(Path directory, Utf8KeyTable seenPaths) {
+        // Collect the deletes before emitting any of them, so the read isn't holding the db while the batcher is trying
+        // to write. That used to throw a huge number of events at the batcher too fast while tying up the db, and the
+        // batcher took 10+ seconds to persist a batch, by which time an offer here had timed out.
+        List<MainBuildCatalog.FileEvent> deletes = new ArrayList<>();
+        int moves = 0;
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select file_path, sha1, size, fingerprint " +
+                     "from file_state where event_type not in ('delete', 'move') order by file_path")) {
             while (resultSet.next()) {
                 String fileRelPath = resultSet.getString(FileEventTable.file_path);
-                Path filePath = directory.resolve(fileRelPath);
-                if (Files.exists(filePath)) {
-                    System.out.println("File still exists - " + filePath);
-                } else {
-                    // This threw a huge number of events at the batcher too fast while tying up disk io, or something.
-                    // The batcher took 10+ seconds to persist a batch, by which time an offer here had timed out.
-                    System.out.println("File was deleted - " + filePath);
-                    findLastEvent.setString(1, fileRelPath);
-                    ResultSet lastEventRs = findLastEvent.executeQuery();
-                    if (!lastEventRs.next()) {
-                        throw new IllegalStateException("Something went wrong. There should be a result here.");
+                if (seenPaths.find(fileRelPath) == -1) {
+                    String sha1 = CatalogStorage.fromColumn(resultSet.getObject(FileEventTable.sha1));
+                    String movedTo = renameDetector == null ? null : renameDetector.claim(fileRelPath, sha1,
+                            LastEventLookup.getNullableLong(resultSet, FileEventTable.size),
+                            resultSet.getString(FileEventTable.fingerprint));
+                    if (movedTo != null) {
+                        log.file("File was moved - " + directory.resolve(fileRelPath) + " to " + movedTo);
+                        deletes.add(new MainBuildCatalog.FileEvent(EventTypes.move, fileRelPath, sha1, movedTo));
+                        moves++;
+                    } else {
+                        log.file("File was deleted - " + directory.resolve(fileRelPath));
+                        deletes.add(new MainBuildCatalog.FileEvent(EventTypes.delete, fileRelPath, sha1));
                     }
-                    String sha1 = lastEventRs.getString(FileEventTable.sha1);
-                    MainBuildCatalog.FileEvent fileEvent = new MainBuildCatalog.FileEvent(EventTypes.delete, fileRelPath, sha1);
-                    fileEventInserter.addToBatch(fileEvent);
-                    MainBuildCatalog.Stats.insertsQueued.incrementAndGet();
                 }
             }
         } catch (SQLException e) {
             throw new IllegalStateException("Failed to do db things", e);
         }
+        for (MainBuildCatalog.FileEvent fileEvent : deletes) {
+            fileEventInserter.addToBatch(fileEvent);
+        }
+        if (!deletes.isEmpty()) {
+            System.out.println((deletes.size() - moves) + " files deleted, " + moves + " moved");
+        }
     }
 }
@@ -5,6 +5,24 @@ public class DbNames {
         public static final String delete = "delete";
         public static final String create = "create";
         public static final String update = "update";
+        /**
+         * Recorded at a file's old path when it's turned up somewhere else in the same scan. The new path is in
+         * moved_to, and has a create of its own.
+         */
+        public static final String move = "move";
+        /**
+         * Never recorded. It's what a scanner emits for a file whose mtime changed but whose content didn't, and the
+         * writer records it as an {@link #update} with the new size and mtime and the checksums the file already had,
+         * so that the next scan doesn't read the file again. The scripts and reconcile never see it.
+         */
+        public static final String touch = "touch";
+
+        /**
+         * Whether a file is there, as of an event of this type. After a delete or a move, it isn't.
+         */
+        public static boolean isPresent(String eventType) {
+            return !delete.equals(eventType) && !move.equals(eventType);
+        }
     }
     public static class FileEventTable {
         public static final String TABLE_NAME = "file_events";
@@ -13,5 +31,16 @@ public class DbNames {
         public static final String time = "time";
         public static final String storage_location = "storage_location";
         public static final String sha1 = "sha1";
+        public static final String size = "size";
+        public static final String mtime = "mtime";
+        public static final String content_sha1 = "content_sha1";
+        public static final String fingerprint = "fingerprint";
+        public static final String moved_to = "moved_to";
+    }
+    /**
+     * Has the same columns as {@link FileEventTable}, with one row per file.
+     */
+    public static class CurrentStateTable {
+        public static final String TABLE_NAME = "current_state";
     }
 }
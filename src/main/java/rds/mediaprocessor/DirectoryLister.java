@@ -0,0 +1,219 @@
+package rds.mediaprocessor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+/**
+ * Lists directories for the {@link FileSystemScanner}'s walker, ahead of when it gets to them. On a local disk, listing
+ * a directory and reading the attributes of what's in it is quick, but on a network or FUSE mount, every one of those
+ * is a round trip, and a walker that does them one at a time spends nearly all of its time waiting.
+ * <p>
+ * The lister keeps the directories it knows about that the walker hasn't got to yet in the order the walker is going to
+ * get to them: depth first, in order of name, so a directory's subdirectories go in right after it, ahead of whatever
+ * comes after it. The first however many of those are handed to a pool to be listed, so lots of round trips are in
+ * flight at once, and each listing that comes back puts its subdirectories in line, and so on. The pool only ever
+ * works on what the walker wants next, rather than getting way ahead on the top of the tree while the walker waits
+ * for something deep down. The walker still takes the listings one at a time, in its own order, so a scan sees the
+ * same files in the same order no matter how many threads there are.
+ * <p>
+ * Settings:
+ * <ul>
+ *     <li>DirectoryLister.threads: how many directories to list at once; 0 lists each one on the walker when it gets
+ *     there (8)</li>
+ *     <li>DirectoryLister.maxPrefetched: how many of the directories next in line for the walker get listed ahead
+ *     of it (1000)</li>
+ * </ul>
+ */
+public class DirectoryLister implements AutoCloseable {
+    /**
+     * What's in a directory, in order of name. Subdirectories that are symlinks aren't in it at all, but files that
+     * are symlinks are, with the attributes of what they link to.
+     */
+    public static class Listing {
+        public final SortedMap<String, BasicFileAttributes> files = new TreeMap<>();
+        public final SortedMap<String, Path> subdirectories = new TreeMap<>();
+    }
+
+    /**
+     * A directory that the walker hasn't got to yet, in line with the rest.
+     */
+    private static class Pending {
+        final Path directory;
+        /**
+         * Null until it's started.
+         */
+        Future<Listing> future;
+        /**
+         * Set once it's out of line, because the walker has taken it, or gone past it.
+         */
+        boolean gone;
+        boolean taken;
+        Pending previous;
+        Pending next;
+
+        Pending(Path directory) {
+            this.directory = directory;
+        }
+    }
+
+    private final ExecutorService pool;
+    private final int maxPrefetched;
+    /**
+     * Tells whether the walker is going to want a directory, so nothing is listed for subtrees it skips.
+     */
+    private final Predicate<Path> wanted;
+    /**
+     * The start and end of the line, which is never in it itself. Guarded by this, like the rest of the line.
+     */
+    private final Pending line = new Pending(null);
+    private final Map<Path, Pending> pending = new HashMap<>();
+
+    public DirectoryLister(Predicate<Path> wanted, Map<String, String> settings) {
+        this.wanted = wanted;
+        int threads = Integer.parseInt(settings.getOrDefault("DirectoryLister.threads", "8"));
+        pool = threads == 0
+                ? null : Executors.newFixedThreadPool(threads, FileSystemScanner.namedThreads("directory-lister"));
+        maxPrefetched = Integer.parseInt(settings.getOrDefault("DirectoryLister.maxPrefetched", "1000"));
+        line.previous = line;
+        line.next = line;
+    }
+
+    /**
+     * Lists a directory, waiting for it if it's already being listed. Anything that was in line ahead of it is dropped,
+     * since the walker has gone past it.
+     */
+    public Listing list(Path directory) throws IOException {
+        Future<Listing> future = null;
+        synchronized (this) {
+            Pending taken = pending.get(directory);
+            if (taken != null) {
+                while (line.next != taken) {
+                    drop(line.next);
+                }
+                drop(taken);
+                taken.taken = true;
+                future = taken.future;
+                startNext();
+            }
+        }
+        if (future == null) {
+            Listing listing = read(directory);
+            synchronized (this) {
+                putInLine(line, listing);
+                startNext();
+            }
+            return listing;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Unexpected interrupt", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IllegalStateException("Failed to list " + directory, e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Puts a listing's subdirectories in line, in order, right after the directory it's of. If the walker has taken
+     * that, it's waiting for this listing, so they go at the front.
+     */
+    private void putInLine(Pending after, Listing listing) {
+        if (after.taken) {
+            after = line;
+        }
+        for (Path subdirectory : listing.subdirectories.values()) {
+            if (!wanted.test(subdirectory)) {
+                continue;
+            }
+            Pending subdirectoryPending = new Pending(subdirectory);
+            subdirectoryPending.previous = after;
+            subdirectoryPending.next = after.next;
+            after.next.previous = subdirectoryPending;
+            after.next = subdirectoryPending;
+            pending.put(subdirectory, subdirectoryPending);
+            after = subdirectoryPending;
+        }
+    }
+
+    private void drop(Pending dropped) {
+        dropped.previous.next = dropped.next;
+        dropped.next.previous = dropped.previous;
+        dropped.gone = true;
+        pending.remove(dropped.directory);
+    }
+
+    /**
+     * Starts listing whatever's near enough the front of the line and hasn't been started. Everything a listing puts in
+     * line is put there before the listing is returned, which is before the walker can ask for any of it.
+     */
+    private void startNext() {
+        if (pool == null) {
+            return;
+        }
+        Pending next = line.next;
+        for (int i = 0; i < maxPrefetched && next != line; i++, next = next.next) {
+            if (next.future != null) {
+                continue;
+            }
+            Pending started = next;
+            started.future = pool.submit(() -> {
+                try {
+                    Listing listing = read(started.directory);
+                    synchronized (this) {
+                        // Unless the walker went past it, so it won't want anything under it either.
+                        if (!started.gone || started.taken) {
+                            putInLine(started, listing);
+                        }
+                        startNext();
+                    }
+                    return listing;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+
+    private static Listing read(Path directory) throws IOException {
+        Listing listing = new Listing();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+                String name = entry.getFileName().toString();
+                if (attributes.isDirectory()) {
+                    listing.subdirectories.put(name, entry);
+                } else if (attributes.isRegularFile()) {
+                    listing.files.put(name, attributes);
+                } else if (attributes.isSymbolicLink() && Files.isRegularFile(entry)) {
+                    listing.files.put(name, Files.readAttributes(entry, BasicFileAttributes.class));
+                }
+            }
+        }
+        return listing;
+    }
+}
@@ -8,4 +8,12 @@ public interface FileEventInserter {
     int getQueueCapacity();
 
     void flush();
+
+    /**
+     * @return the filter over every path the catalog being written to has, including what's been added here, or null
+     * if there isn't one
+     */
+    default PathFilter pathFilter() {
+        return null;
+    }
 }
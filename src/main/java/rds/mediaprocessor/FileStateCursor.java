@@ -0,0 +1,59 @@
+package rds.mediaprocessor;
+
+import java.sql.SQLException;
+
+/**
+ * The current state of every file in a catalog, one file at a time, in order of key. It's what reconciling merges, and
+ * it comes from either the catalog itself, with a {@link CatalogCursor}, or a {@link CatalogSnapshot} of it.
+ */
+public interface FileStateCursor extends AutoCloseable {
+    /**
+     * Moves to the next file.
+     *
+     * @return false when there are no more files
+     */
+    boolean next() throws SQLException;
+
+    /**
+     * @return the normalized path of the current file, or null once the cursor is exhausted
+     */
+    String key();
+
+    /**
+     * Compares the current file's key with another cursor's, in the order the files come in. Neither can be exhausted.
+     */
+    default int compareKey(FileStateCursor other) {
+        return CatalogCursor.compareKeys(key(), other.key());
+    }
+
+    /**
+     * Whether the other cursor's current file is in the same state with the same checksum, which is when reconciling
+     * has nothing to say about it, and is what it finds for nearly every file.
+     */
+    default boolean sameStateAndSha1(FileStateCursor other) throws SQLException {
+        String sha1 = sha1();
+        return sha1 != null && sha1.equals(other.sha1()) && eventType().equals(other.eventType());
+    }
+
+    /**
+     * @return the path of the current file as it's stored in its catalog
+     */
+    String path() throws SQLException;
+
+    String eventType() throws SQLException;
+
+    String sha1() throws SQLException;
+
+    Long size() throws SQLException;
+
+    Long mtime() throws SQLException;
+
+    String contentSha1() throws SQLException;
+
+    String fingerprint() throws SQLException;
+
+    String movedTo() throws SQLException;
+
+    @Override
+    void close() throws SQLException;
+}
@@ -1,89 +1,464 @@
 package rds.mediaprocessor;
 
-import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.dbcp.BasicDataSource;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.NullOutputStream;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.Stream;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Scans a directory and updates a database to reflect its current state.
+ * <p>
+ * A scan runs as a pipeline of three stages with bounded queues between them, so that walking the tree, waiting on the
+ * db and reading file content can all happen at the same time:
+ * <ol>
+ *     <li>the walker, on the calling thread, finds regular files and reads their size and mtime, with a
+ *     {@link DirectoryLister} listing directories ahead of it, many at once</li>
+ *     <li>the lookup stage, on a single thread, finds the last event for each file and drops the ones that are
+ *     unchanged</li>
+ *     <li>a pool of hashing workers reads the remaining files and emits events to the {@link FileEventInserter}</li>
+ * </ol>
+ * The number of hashing workers depends on what the files live on. An SSD or a NAS keeps up with lots of concurrent
+ * readers, but a spinning disk spends its time seeking if there are more than one or two. It's set with
+ * "FileSystemScanner.hashThreads", which can be overridden for a particular root with
+ * "FileSystemScanner.hashThreads.&lt;root path&gt;" or for a device with
+ * "FileSystemScanner.hashThreads.&lt;file store name&gt;".
+ * <p>
+ * Every new or changed file gets a {@link Fingerprint} along with its checksum. With "FileSystemScanner.checksums" set
+ * to "later", the workers only fingerprint files, which reads a couple of MB of each at most, and checksums are left
+ * for a {@link ChecksumBackfiller}. That's also when fingerprints save the most: a file whose fingerprint changed is an
+ * update for certain, and a full read is only needed when the fingerprint is the same as before, to tell whether the
+ * file was only touched.
  */
 public class FileSystemScanner {
     private final BasicDataSource dataSource;
     private final FileEventInserter fileEventInserter;
+    private final ScanMetrics metrics;
+    private final ScanLog log;
+    private final Map<String, String> settings;
+    /**
+     * In paranoid mode, every file is hashed on every scan. Otherwise, a file whose size and last modified time match
+     * its last recorded event is assumed to be unchanged, and it isn't read at all.
+     */
+    private final boolean paranoid;
+    private final int queueCapacity;
+    private final String lookupMode;
+    /**
+     * When checksums are deferred, nothing is read at all. New and changed files are recorded with a pending checksum.
+     */
+    private final boolean deferChecksums;
+    /**
+     * Every path the walker found on the last scan. Only the walker touches it while a scan is running.
+     */
+    private Utf8KeyTable seenPaths = new Utf8KeyTable();
+    private volatile boolean cancelled;
 
-    public FileSystemScanner(BasicDataSource dataSource, FileEventInserter fileEventInserter) {
+    public FileSystemScanner(BasicDataSource dataSource, FileEventInserter fileEventInserter, ScanMetrics metrics,
+                             Map<String, String> settings) {
         this.dataSource = dataSource;
         this.fileEventInserter = fileEventInserter;
+        this.metrics = metrics;
+        this.settings = settings;
+        log = new ScanLog(settings);
+        paranoid = Boolean.parseBoolean(settings.getOrDefault("FileSystemScanner.paranoid", "false"));
+        queueCapacity = Integer.parseInt(settings.getOrDefault("FileSystemScanner.queueCapacity", "1000"));
+        lookupMode = settings.getOrDefault("FileSystemScanner.lookupMode", "preload");
+        deferChecksums = "later".equals(settings.getOrDefault("FileSystemScanner.checksums", "now"));
+    }
+
+    /**
+     * A file found by the walker, waiting to be looked up in the db.
+     */
+    private static class Candidate {
+        /**
+         * Put on the lookup queue by the walker to say there's nothing more coming.
+         */
+        static final Candidate END = new Candidate(null, null, -1, -1, null);
+
+        final Path path;
+        final String relPath;
+        final long size;
+        final long mtime;
+        /**
+         * The directory the file is in, for a checkpoint to keep track of, or null when there's no checkpoint.
+         */
+        final ScanCheckpoint.Directory directory;
+
+        Candidate(Path path, String relPath, long size, long mtime, ScanCheckpoint.Directory directory) {
+            this.path = path;
+            this.relPath = relPath;
+            this.size = size;
+            this.mtime = mtime;
+            this.directory = directory;
+        }
+
+        /**
+         * Says the file's event has been emitted, or that it doesn't need one.
+         */
+        void done() {
+            if (directory != null) {
+                directory.fileDone();
+            }
+        }
     }
 
     public void scan(Path directory) throws Exception {
-        try (Stream<Path> stream = Files.walk(directory)) {
-            stream
-//                    .parallel()
-                    .filter(Files::isRegularFile)
-                    .map(path -> {
-                        Path relPath = directory.relativize(path);
-                        return new MainBuildCatalog.FileInfo(relPath.toString(), sha1(path));
-                    })
-                    .forEach(info -> {
-                        try (Connection connection = dataSource.getConnection();
-                             PreparedStatement findExistingStatement = connection.prepareStatement(
-                                     "select event_type, sha1 from file_events where file_path = ? order by time desc limit 1;")) {
-                            findExistingStatement.setString(1, info.relPath);
-                            ResultSet resultSet = findExistingStatement.executeQuery();
-                            MainBuildCatalog.FileEvent fileEvent = null;
-                            if (resultSet.next()) {
-                                String eventType = resultSet.getString(DbNames.FileEventTable.event_type);
-                                String sha1 = resultSet.getString(DbNames.FileEventTable.sha1);
-                                if (DbNames.EventTypes.delete.equals(eventType)) {
-                                    System.out.println("File was re-created - " + info.relPath);
-                                    fileEvent = new MainBuildCatalog.FileEvent(DbNames.EventTypes.create, info);
-                                } else if (!sha1.equals(info.sha1Hex)) {
-                                    System.out.println("File was updated - " + info.relPath);
-                                    fileEvent = new MainBuildCatalog.FileEvent(DbNames.EventTypes.update, info);
-                                } else {
-//                                    System.out.println(info.relPath + " is seen before and unchanged");
-                                }
-                            } else {
-//                                System.out.println(info.relPath + " is newly discovered");
-                                fileEvent = new MainBuildCatalog.FileEvent(DbNames.EventTypes.create, info);
-                            }
-                            resultSet.close();
-                            if (fileEvent != null) {
-                                fileEventInserter.addToBatch(fileEvent);
-                                MainBuildCatalog.Stats.insertsQueued.incrementAndGet();
-                            }
-                        } catch (SQLException e) {
-                            throw new IllegalStateException("SQL failure", e);
-                        }
-                    });
-        }
-    }
-
-    @Deprecated
-    // Build hashing functions that inspect only image and video content, ignoring metadata. An image is the same even
-    // if its timestamp changes, if the image data remains the same. Or... it might be good to know both.
+        scan(directory, null);
+    }
+
+    /**
+     * @param checkpoint where to record progress and what to resume from, or null to scan the whole tree without
+     *                   recording anything
+     */
+    public void scan(Path directory, ScanCheckpoint checkpoint) throws Exception {
+        seenPaths = new Utf8KeyTable();
+        if (checkpoint != null) {
+            checkpoint.addSeenPaths(seenPaths);
+        }
+        int hashThreads = hashThreadsFor(directory);
+        System.out.println("Scanning " + directory + " with " + hashThreads + " hashing threads");
+        AtomicReference<Throwable> hashFailure = new AtomicReference<>();
+        BlockingQueue<Candidate> lookupQueue = new ArrayBlockingQueue<>(queueCapacity);
+        ThreadPoolExecutor hashers = new ThreadPoolExecutor(hashThreads, hashThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), namedThreads("scanner-hasher"), (task, executor) -> {
+            // Block the lookup stage until a worker frees up room, rather than rejecting the file.
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("Unexpected interrupt", e);
+            }
+        });
+        ExecutorService lookupExecutor = Executors.newSingleThreadExecutor(namedThreads("scanner-lookup"));
+        Future<?> lookups = lookupExecutor.submit(() -> runLookups(lookupQueue, hashers, hashFailure));
+        // Subtrees that the checkpoint skips are never listed at all.
+        try (DirectoryLister lister = new DirectoryLister(subdirectory -> checkpoint == null
+                || !checkpoint.skipsSubtree(directory.relativize(subdirectory)), settings)) {
+            if (checkpoint == null || !checkpoint.isWalkComplete()) {
+                walk(directory, directory, lister, checkpoint, lookupQueue, lookups, hashFailure);
+            }
+            putWhileRunning(lookupQueue, Candidate.END, lookups, hashFailure);
+            try {
+                lookups.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Failed while looking up files", e.getCause());
+            }
+        } finally {
+            lookupExecutor.shutdownNow();
+            hashers.shutdown();
+        }
+        if (!hashers.awaitTermination(1, TimeUnit.DAYS)) {
+            throw new IllegalStateException("Hashing workers didn't finish");
+        }
+        if (hashFailure.get() != null) {
+            throw new IllegalStateException("Failed while hashing files", hashFailure.get());
+        }
+        if (checkpoint != null && !cancelled) {
+            checkpoint.walkComplete(fileEventInserter);
+        }
+    }
+
+    /**
+     * Stops a scan that's running, from any thread. The walker stops at the next file, the lookup stage at the next
+     * candidate, and the hashing workers finish the files they're reading and drop the rest, so the scan returns about
+     * as soon as the biggest file being read is done. Nothing that wasn't emitted is counted as done in a checkpoint, so
+     * a scan that resumes it picks up the rest. Files that a cancelled scan didn't get to aren't in
+     * {@link #getSeenPaths()}, so it's no use for working out deletes.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return whether the scan was cancelled before it finished
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * The walker. Goes through a directory and everything under it, depth first, with the files and subdirectories of
+     * each directory in order of name, and hands every regular file to the lookup stage. The order never changes, which
+     * is what lets a {@link ScanCheckpoint} say how far a scan got with just one directory. The directories are listed
+     * ahead of time by a {@link DirectoryLister}, many at once, which doesn't change the order.
+     */
+    private void walk(Path root, Path directory, DirectoryLister lister, ScanCheckpoint checkpoint,
+                      BlockingQueue<Candidate> lookupQueue, Future<?> lookups, AtomicReference<Throwable> hashFailure)
+            throws IOException, SQLException {
+        Path relDir = root.relativize(directory);
+        DirectoryLister.Listing listing = lister.list(directory);
+        if (checkpoint == null || !checkpoint.skipsFiles(relDir)) {
+            ScanCheckpoint.Directory progress = checkpoint == null ? null : checkpoint.directoryStarted(relDir);
+            for (Map.Entry<String, BasicFileAttributes> file : listing.files.entrySet()) {
+                if (cancelled) {
+                    // The directory isn't counted as walked, so a checkpoint never gets past it.
+                    return;
+                }
+                Path path = directory.resolve(file.getKey());
+                String relPath = root.relativize(path).toString();
+                seenPaths.add(relPath);
+                metrics.filesVisited.increment();
+                if (progress != null) {
+                    progress.fileFound(file.getKey());
+                }
+                Candidate candidate = new Candidate(path, relPath, file.getValue().size(),
+                        file.getValue().lastModifiedTime().toMillis(), progress);
+                putWhileRunning(lookupQueue, candidate, lookups, hashFailure);
+            }
+            if (progress != null) {
+                checkpoint.directoryWalked(progress, fileEventInserter);
+            }
+        }
+        for (Path subdirectory : listing.subdirectories.values()) {
+            if (cancelled) {
+                return;
+            }
+            if (checkpoint == null || !checkpoint.skipsSubtree(root.relativize(subdirectory))) {
+                walk(root, subdirectory, lister, checkpoint, lookupQueue, lookups, hashFailure);
+            }
+        }
+    }
+
+    /**
+     * @return the relative path of every regular file found by the last scan, for working out which files have been
+     * deleted; only meaningful after a scan completed successfully
+     */
+    public Utf8KeyTable getSeenPaths() {
+        return seenPaths;
+    }
+
+    /**
+     * The lookup stage. Takes candidates off the queue until the walker says it's done, and hands off any that need
+     * hashing to the workers.
+     */
+    private void runLookups(BlockingQueue<Candidate> lookupQueue, ExecutorService hashers,
+                            AtomicReference<Throwable> hashFailure) {
+        try (LastEventLookup lastEvents = openLastEventLookup()) {
+            while (hashFailure.get() == null && !cancelled) {
+                Candidate candidate = lookupQueue.take();
+                if (candidate == Candidate.END) {
+                    break;
+                }
+                long lookupStart = System.nanoTime();
+                LastEventLookup.LastEvent lastEvent = lastEvents.find(candidate.relPath);
+                metrics.lookupMicros.record((System.nanoTime() - lookupStart) / 1000);
+                if (lastEvent != null && !DbNames.EventTypes.isPresent(lastEvent.eventType)) {
+                    log.file("File was re-created - " + candidate.relPath);
+                    lastEvent = null;
+                }
+                if (lastEvent == null) {
+//                    System.out.println(candidate.relPath + " is newly discovered");
+                    emitOrHash(candidate, null, hashers, hashFailure);
+                } else if (!paranoid && Long.valueOf(candidate.size).equals(lastEvent.size)
+                        && Long.valueOf(candidate.mtime).equals(lastEvent.mtime)) {
+                    // Events from before size and mtime were tracked have nulls, which won't match, so those files get
+                    // hashed once more and then have metadata from then on.
+                    metrics.filesSkipped.increment();
+                    metrics.bytesSkipped.add(candidate.size);
+                    candidate.done();
+//                    System.out.println(candidate.relPath + " is seen before and metadata is unchanged");
+                } else {
+                    emitOrHash(candidate, lastEvent, hashers, hashFailure);
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("SQL failure", e);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Unexpected interrupt", e);
+        }
+    }
+
+    /**
+     * In "preload" mode, the default, the last event of every file is read into a {@link LastEventIndex} up front, and
+     * the scan doesn't touch the db again. In "query" mode, each file is looked up as it's found, which is only better
+     * when the catalog is much bigger than the part of the tree being scanned, and a file that the writer's
+     * {@link PathFilter} has never heard of isn't looked up at all. In "none" mode, nothing is looked up and
+     * every file is new, which is for filling an empty catalog.
+     */
+    private LastEventLookup openLastEventLookup() throws SQLException {
+        if ("none".equals(lookupMode)) {
+            return LastEventLookup.NONE;
+        }
+        Connection connection = dataSource.getConnection();
+        if ("query".equals(lookupMode)) {
+            return LastEventLookup.filtered(new LastEventLookup.Query(connection), fileEventInserter, metrics);
+        } else if ("preload".equals(lookupMode)) {
+            try (connection) {
+                long start = System.currentTimeMillis();
+                LastEventIndex index = LastEventIndex.load(connection);
+                System.out.println("Loaded last events of " + index.size() + " files in "
+                        + (System.currentTimeMillis() - start) + " ms");
+                return index;
+            }
+        } else {
+            connection.close();
+            throw new IllegalStateException("Unknown lookup mode: " + lookupMode);
+        }
+    }
+
+    /**
+     * Hands a file that's new or changed to the hashing workers.
+     *
+     * @param lastEvent the file's last event, or null if it doesn't currently exist in the db, either because it's
+     *                  never been seen or because it was deleted or moved away
+     */
+    private void emitOrHash(Candidate candidate, LastEventLookup.LastEvent lastEvent, ExecutorService hashers,
+                            AtomicReference<Throwable> hashFailure) {
+        hashers.execute(deferChecksums
+                ? fingerprintAndEmit(candidate, lastEvent, hashFailure)
+                : hashAndEmit(candidate, lastEvent, hashFailure));
+    }
+
+    /**
+     * Creates the work for a hashing worker when checksums are deferred. The file is fingerprinted, and its event is
+     * emitted with a pending checksum for a {@link ChecksumBackfiller} to fill in later. If the fingerprint is the same
+     * as last time, the file is probably the same too, so that's when it's worth reading the whole file to find out.
+     */
+    private Runnable fingerprintAndEmit(Candidate candidate, LastEventLookup.LastEvent lastEvent,
+                                        AtomicReference<Throwable> hashFailure) {
+        return () -> {
+            if (cancelled) {
+                return;
+            }
+            try {
+                String fingerprint = Fingerprint.ofQuietly(candidate.path);
+                metrics.bytesRead.add(Math.min(candidate.size, Fingerprint.MAX_BYTES_READ));
+                if (lastEvent != null && lastEvent.sha1Hex != null && fingerprint != null
+                        && fingerprint.equals(lastEvent.fingerprint)) {
+                    hashAndEmit(candidate, lastEvent, hashFailure).run();
+                    return;
+                }
+                String eventType = lastEvent == null ? DbNames.EventTypes.create : DbNames.EventTypes.update;
+                fileEventInserter.addToBatch(new MainBuildCatalog.FileEvent(eventType, new MainBuildCatalog.FileInfo(
+                        candidate.relPath, null, candidate.size, candidate.mtime, null, fingerprint)));
+                candidate.done();
+            } catch (Throwable t) {
+                hashFailure.compareAndSet(null, t);
+            }
+        };
+    }
+
+    /**
+     * Creates the work for a hashing worker. See {@link #hash}.
+     */
+    private Runnable hashAndEmit(Candidate candidate, LastEventLookup.LastEvent lastEvent,
+                                 AtomicReference<Throwable> hashFailure) {
+        return () -> {
+            if (cancelled) {
+                return;
+            }
+            try {
+                MainBuildCatalog.FileEvent fileEvent = hash(candidate.path, candidate.relPath, candidate.size,
+                        candidate.mtime, lastEvent);
+                if (fileEvent != null) {
+                    fileEventInserter.addToBatch(fileEvent);
+                }
+                candidate.done();
+            } catch (Throwable t) {
+                hashFailure.compareAndSet(null, t);
+            }
+        };
+    }
+
+    /**
+     * Hashes a file, and works out its event if it's new or its content changed. If its checksum was pending, there's
+     * nothing to compare against, and since its size or mtime changed, it's recorded as updated. A file that was only
+     * touched gets a {@link DbNames.EventTypes#touch}, so it isn't read again on every scan after this one.
+     *
+     * @param lastEvent the file's last event, or null if it doesn't currently exist in the db
+     * @return the event, or null if nothing about the file changed
+     */
+    MainBuildCatalog.FileEvent hash(Path path, String relPath, long size, long mtime,
+                                    LastEventLookup.LastEvent lastEvent) {
+        long hashStart = System.nanoTime();
+        // The fingerprint is picked out of the same read as the checksum, rather than reading the file again.
+        Fingerprint.Sampler sampler = new Fingerprint.Sampler();
+        String sha1Hex = sha1(path, sampler);
+        metrics.hashMicros.record((System.nanoTime() - hashStart) / 1000);
+        metrics.filesHashed.increment();
+        metrics.bytesRead.add(size);
+        if (lastEvent == null) {
+            return new MainBuildCatalog.FileEvent(DbNames.EventTypes.create, new MainBuildCatalog.FileInfo(
+                    relPath, sha1Hex, size, mtime, null, sampler.fingerprint()));
+        } else if (!sha1Hex.equals(lastEvent.sha1Hex)) {
+            log.file("File was updated - " + relPath);
+            // It might only be the metadata that changed. The content checksum is what tells the difference later,
+            // when this is compared with other locations.
+            String contentSha1Hex = ContentHasher.contentSha1(path);
+            return new MainBuildCatalog.FileEvent(DbNames.EventTypes.update, new MainBuildCatalog.FileInfo(
+                    relPath, sha1Hex, size, mtime, contentSha1Hex, sampler.fingerprint()));
+        } else if (!Long.valueOf(size).equals(lastEvent.size) || !Long.valueOf(mtime).equals(lastEvent.mtime)) {
+            return MainBuildCatalog.FileEvent.touched(relPath, size, mtime);
+        }
+        return null;
+    }
+
+    /**
+     * Puts something on a pipeline queue, giving up if the stages downstream have stopped, since otherwise the walker
+     * would wait forever on a full queue.
+     */
+    private static <T> void putWhileRunning(BlockingQueue<T> queue, T item, Future<?> consumer,
+                                            AtomicReference<Throwable> hashFailure) {
+        try {
+            while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                if (consumer.isDone() || hashFailure.get() != null) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Unexpected interrupt", e);
+        }
+        if (hashFailure.get() != null) {
+            throw new IllegalStateException("Failed while hashing files", hashFailure.get());
+        }
+        if (consumer.isDone()) {
+            try {
+                consumer.get();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("Unexpected interrupt", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Failed while looking up files", e.getCause());
+            }
+        }
+    }
+
+    private int hashThreadsFor(Path directory) throws IOException {
+        String defaultThreads = settings.getOrDefault("FileSystemScanner.hashThreads",
+                Integer.toString(Runtime.getRuntime().availableProcessors()));
+        String deviceThreads = settings.getOrDefault(
+                "FileSystemScanner.hashThreads." + Files.getFileStore(directory).name(), defaultThreads);
+        return Integer.parseInt(settings.getOrDefault("FileSystemScanner.hashThreads." + directory, deviceThreads));
+    }
+
+    static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * The whole-file checksum. For one that ignores metadata, see {@link ContentHasher}.
+     */
     public static String sha1(Path path) {
+        return sha1(path, null);
+    }
+
+    /**
+     * @param sampler shown the file as it's read, for its fingerprint, or null
+     */
+    static String sha1(Path path, Fingerprint.Sampler sampler) {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            DigestInputStream digester = new DigestInputStream(Files.newInputStream(path), md);
-            IOUtils.copy(digester, new NullOutputStream());
-            return Hex.encodeHexString(md.digest());
-        } catch (NoSuchAlgorithmException | IOException e) {
+            return Sha1Hasher.DEFAULT.hashHex(path, sampler);
+        } catch (IOException e) {
 //            throw new RuntimeException("Error while getting checksum for " + path, e);
             System.out.println("Error while getting checksum for " + path);
             e.printStackTrace();
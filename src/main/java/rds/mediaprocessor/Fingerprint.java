@@ -0,0 +1,189 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.codec.digest.MurmurHash3;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A cheap stand-in for a file's checksum: its size, plus a fast, non-cryptographic hash of its first and last MB and a
+ * few blocks in between. It takes a couple of MB of reading no matter how big the file is, where a SHA-1 of a 4 GB
+ * video reads all 4 GB.
+ * <p>
+ * Different fingerprints mean different files, for certain. The same fingerprint only means the files are very likely
+ * the same, since an edit could fall between the samples, so it's a filter in front of the SHA-1, not a replacement for
+ * it. Small files are read whole, so their fingerprints cover everything.
+ * <p>
+ * The sizes and positions of the samples are part of what a fingerprint means. Changing them makes every fingerprint
+ * already in a catalog useless for comparing against new ones.
+ */
+public class Fingerprint {
+    private static final int HEAD_SIZE = 1 << 20;
+    private static final int TAIL_SIZE = 1 << 20;
+    private static final int SAMPLES = 4;
+    private static final int SAMPLE_SIZE = 64 << 10;
+    private static final int SEED = 0x6D656469;
+    /**
+     * Room for the size and everything that's sampled. Files no bigger than this are read whole.
+     */
+    private static final int BUFFER_SIZE = Long.BYTES + HEAD_SIZE + TAIL_SIZE + SAMPLES * SAMPLE_SIZE;
+    private static final long READ_WHOLE_LIMIT = BUFFER_SIZE - Long.BYTES;
+    /**
+     * The most that's read of any one file.
+     */
+    public static final long MAX_BYTES_READ = READ_WHOLE_LIMIT;
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocate(BUFFER_SIZE));
+
+    private Fingerprint() {
+    }
+
+    /**
+     * @return the fingerprint as 32 hex characters
+     */
+    public static String of(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer buffer = BUFFERS.get().clear();
+            buffer.putLong(size);
+            long[] ranges = ranges(size);
+            for (int i = 0; i < ranges.length; i += 2) {
+                read(channel, ranges[i], (int) ranges[i + 1], buffer);
+            }
+            return hash(buffer.array(), buffer.position());
+        }
+    }
+
+    /**
+     * Picks out what's sampled from a file while something else reads the whole of it, such as its SHA-1, so getting
+     * the fingerprint as well doesn't read anything again. It gives the same fingerprint {@link #of} would.
+     * <p>
+     * It keeps what it picks out in the same per-thread buffer {@link #of} reads into, so a thread can only fingerprint
+     * one file at a time, whichever way it does it.
+     */
+    public static class Sampler {
+        private long size = -1;
+        private long[] ranges;
+        private long filled;
+
+        /**
+         * Starts again on a file, before any of it is read.
+         */
+        public void start(long size) {
+            this.size = size;
+            ranges = ranges(size);
+            filled = 0;
+            BUFFERS.get().clear();
+        }
+
+        /**
+         * Takes whatever's sampled out of the bytes from the buffer's position to its limit, without moving the
+         * position.
+         *
+         * @param position where in the file the buffer's position is
+         */
+        public void update(ByteBuffer bytes, long position) {
+            ByteBuffer buffer = BUFFERS.get();
+            long end = position + bytes.remaining();
+            int offset = Long.BYTES;
+            for (int i = 0; i < ranges.length; i += 2) {
+                long from = Math.max(ranges[i], position);
+                long to = Math.min(ranges[i] + ranges[i + 1], end);
+                if (from < to) {
+                    buffer.put(offset + (int) (from - ranges[i]), bytes, bytes.position() + (int) (from - position),
+                            (int) (to - from));
+                    filled += to - from;
+                }
+                offset += (int) ranges[i + 1];
+            }
+        }
+
+        /**
+         * @return the fingerprint of the file, or null if it hasn't seen everything it needed, because the file got
+         * shorter while it was being read, say
+         */
+        public String fingerprint() {
+            if (ranges == null) {
+                return null;
+            }
+            long needed = 0;
+            for (int i = 1; i < ranges.length; i += 2) {
+                needed += ranges[i];
+            }
+            if (filled != needed) {
+                return null;
+            }
+            ByteBuffer buffer = BUFFERS.get();
+            buffer.putLong(0, size);
+            return hash(buffer.array(), Long.BYTES + (int) needed);
+        }
+    }
+
+    /**
+     * @return the positions and lengths of the parts of a file of this size that are sampled, in the order they go
+     * into the hash
+     */
+    private static long[] ranges(long size) {
+        if (size <= READ_WHOLE_LIMIT) {
+            return new long[]{0, size};
+        }
+        long[] ranges = new long[2 * (SAMPLES + 2)];
+        ranges[1] = HEAD_SIZE;
+        // Samples are spread evenly over what's between the head and the tail.
+        long middle = size - HEAD_SIZE - TAIL_SIZE;
+        for (int sample = 1; sample <= SAMPLES; sample++) {
+            ranges[2 * sample] = HEAD_SIZE + middle * sample / (SAMPLES + 1) - SAMPLE_SIZE / 2;
+            ranges[2 * sample + 1] = SAMPLE_SIZE;
+        }
+        ranges[ranges.length - 2] = size - TAIL_SIZE;
+        ranges[ranges.length - 1] = TAIL_SIZE;
+        return ranges;
+    }
+
+    private static String hash(byte[] bytes, int length) {
+        long[] hash = MurmurHash3.hash128x64(bytes, 0, length, SEED);
+        return String.format("%016x%016x", hash[0], hash[1]);
+    }
+
+    /**
+     * Fingerprint of a file, or null if it can't be read. Nothing is decided from a missing fingerprint.
+     */
+    public static String ofQuietly(Path path) {
+        try {
+            return of(path);
+        } catch (IOException e) {
+            System.out.println("Can't fingerprint " + path + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Whether two files are known to be different, going by whatever's known about them. Files are only different if
+     * their sizes or fingerprints are known on both sides and don't match.
+     */
+    public static boolean differ(Long size1, String fingerprint1, Long size2, String fingerprint2) {
+        if (size1 != null && size2 != null && !size1.equals(size2)) {
+            return true;
+        }
+        return fingerprint1 != null && fingerprint2 != null && !fingerprint1.equals(fingerprint2);
+    }
+
+    private static void read(FileChannel channel, long position, int length, ByteBuffer buffer) throws IOException {
+        int end = buffer.position() + length;
+        while (buffer.position() < end) {
+            int remaining = end - buffer.position();
+            ByteBuffer slice = buffer.slice(buffer.position(), remaining);
+            int read = channel.read(slice, position);
+            if (read < 0) {
+                throw new EOFException("File got shorter while it was being fingerprinted");
+            }
+            buffer.position(buffer.position() + read);
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package rds.mediaprocessor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Hashes the image in a JPEG: the tables and frame header segments and the compressed scan data that follows the start
+ * of scan, but not the APPn segments, which hold EXIF, XMP, ICC profiles and thumbnails, or comments. Segments are
+ * walked by their lengths, so the ones that are left out are never read.
+ */
+class JpegContentHasher extends ContentHasher {
+    private static final int START_OF_IMAGE = 0xD8;
+    private static final int END_OF_IMAGE = 0xD9;
+    private static final int START_OF_SCAN = 0xDA;
+    private static final int FIRST_APP = 0xE0;
+    private static final int LAST_APP = 0xEF;
+    private static final int COMMENT = 0xFE;
+
+    @Override
+    protected boolean digestContent(FileChannel channel, MessageDigest digest, ByteBuffer buffer)
+            throws IOException {
+        long size = channel.size();
+        if (size < 4) {
+            return false;
+        }
+        ByteBuffer header = read(channel, 0, 2, buffer);
+        if ((header.get(0) & 0xFF) != 0xFF || (header.get(1) & 0xFF) != START_OF_IMAGE) {
+            return false;
+        }
+        long position = 2;
+        while (position + 2 <= size) {
+            header = read(channel, position, 2, buffer);
+            if ((header.get(0) & 0xFF) != 0xFF) {
+                return false;
+            }
+            int marker = header.get(1) & 0xFF;
+            if (marker == 0xFF) {
+                // Fill byte before a marker
+                position++;
+                continue;
+            }
+            if (marker == END_OF_IMAGE) {
+                return true;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // Markers with no segment after them
+                position += 2;
+                continue;
+            }
+            if (position + 4 > size) {
+                return false;
+            }
+            int length = read(channel, position + 2, 2, buffer).getShort() & 0xFFFF;
+            long segmentEnd = position + 2 + length;
+            if (length < 2 || segmentEnd > size) {
+                return false;
+            }
+            if (marker == START_OF_SCAN) {
+                // Everything from here on is compressed image data, with more tables and scans mixed in for a
+                // progressive JPEG, so there's nothing left to pick out.
+                digestRange(channel, position, size - position, digest, buffer);
+                return true;
+            }
+            if (!(marker >= FIRST_APP && marker <= LAST_APP) && marker != COMMENT) {
+                digestRange(channel, position, segmentEnd - position, digest, buffer);
+            }
+            position = segmentEnd;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,161 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static rds.mediaprocessor.DbNames.*;
+
+/**
+ * The last event of every file in a catalog, read in one pass and held in memory, so that a scan can decide what
+ * happened to each file it finds without asking the db. Paths live in a {@link Utf8KeyTable}, and values live in
+ * parallel primitive arrays indexed by the path's ordinal, with checksums stored as their 20 raw bytes instead of 40
+ * characters of hex, and fingerprints as their 16. That keeps a catalog of half a million files down to a few tens of
+ * megabytes.
+ * <p>
+ * Once loaded, it's read-only and safe to share between threads.
+ */
+public class LastEventIndex implements LastEventLookup {
+    /**
+     * The event types an event can have, in the order of the codes they're stored as.
+     */
+    static final List<String> EVENT_TYPES = List.of(EventTypes.create, EventTypes.update, EventTypes.delete,
+            EventTypes.move);
+    private static final long NO_VALUE = Long.MIN_VALUE;
+    private static final int FINGERPRINT_LENGTH = 16;
+
+    private final Utf8KeyTable paths = new Utf8KeyTable();
+    private byte[] eventTypes = new byte[1024];
+    private byte[] digests = new byte[1024 * Sha1Hasher.DIGEST_LENGTH];
+    private long[] sizes = new long[1024];
+    private long[] mtimes = new long[1024];
+    private byte[] fingerprints = new byte[1024 * FINGERPRINT_LENGTH];
+    /**
+     * Files that have a fingerprint, by ordinal. Anything that doesn't look like a fingerprint is treated as not having
+     * one, since a missing fingerprint never decides anything.
+     */
+    private final BitSet knownFingerprints = new BitSet();
+    /**
+     * The rare checksum that isn't a real checksum, like the placeholder recorded when a file couldn't be read. They're
+     * kept as is, by ordinal, so they compare the same way they would coming straight from the db.
+     */
+    private final Map<Integer, String> unparseableSha1s = new HashMap<>();
+    /**
+     * Files whose checksum is pending, by ordinal.
+     */
+    private final BitSet pendingSha1s = new BitSet();
+
+    /**
+     * Reads the last event of every file in the catalog, which is one sequential pass over file_state.
+     */
+    public static LastEventIndex load(Connection connection) throws SQLException {
+        LastEventIndex index = new LastEventIndex();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(
+                     "select file_path, event_type, sha1, size, mtime, fingerprint from file_state")) {
+            while (resultSet.next()) {
+                index.put(resultSet.getString(FileEventTable.file_path),
+                        resultSet.getString(FileEventTable.event_type),
+                        CatalogStorage.fromColumn(resultSet.getObject(FileEventTable.sha1)),
+                        LastEventLookup.getNullableLong(resultSet, FileEventTable.size),
+                        LastEventLookup.getNullableLong(resultSet, FileEventTable.mtime),
+                        resultSet.getString(FileEventTable.fingerprint));
+            }
+        }
+        return index;
+    }
+
+    public int size() {
+        return paths.size();
+    }
+
+    void put(String relPath, String eventType, String sha1Hex, Long size, Long mtime) {
+        put(relPath, eventType, sha1Hex, size, mtime, null);
+    }
+
+    void put(String relPath, String eventType, String sha1Hex, Long size, Long mtime, String fingerprint) {
+        int ordinal = paths.add(relPath);
+        if (ordinal == eventTypes.length) {
+            int newLength = eventTypes.length * 2;
+            eventTypes = Arrays.copyOf(eventTypes, newLength);
+            digests = Arrays.copyOf(digests, newLength * Sha1Hasher.DIGEST_LENGTH);
+            sizes = Arrays.copyOf(sizes, newLength);
+            mtimes = Arrays.copyOf(mtimes, newLength);
+            fingerprints = Arrays.copyOf(fingerprints, newLength * FINGERPRINT_LENGTH);
+        }
+        int eventTypeCode = EVENT_TYPES.indexOf(eventType);
+        if (eventTypeCode == -1) {
+            throw new IllegalStateException("Unknown event type '" + eventType + "' for " + relPath);
+        }
+        eventTypes[ordinal] = (byte) eventTypeCode;
+        sizes[ordinal] = size == null ? NO_VALUE : size;
+        mtimes[ordinal] = mtime == null ? NO_VALUE : mtime;
+        putFingerprint(ordinal, fingerprint);
+        unparseableSha1s.remove(ordinal);
+        pendingSha1s.set(ordinal, sha1Hex == null);
+        if (sha1Hex == null) {
+            return;
+        }
+        try {
+            byte[] digest = Hex.decodeHex(sha1Hex);
+            if (digest.length == Sha1Hasher.DIGEST_LENGTH) {
+                System.arraycopy(digest, 0, digests, ordinal * Sha1Hasher.DIGEST_LENGTH, Sha1Hasher.DIGEST_LENGTH);
+            } else {
+                unparseableSha1s.put(ordinal, sha1Hex);
+            }
+        } catch (DecoderException e) {
+            unparseableSha1s.put(ordinal, sha1Hex);
+        }
+    }
+
+    private void putFingerprint(int ordinal, String fingerprint) {
+        knownFingerprints.clear(ordinal);
+        if (fingerprint == null) {
+            return;
+        }
+        try {
+            byte[] bytes = Hex.decodeHex(fingerprint);
+            if (bytes.length == FINGERPRINT_LENGTH) {
+                System.arraycopy(bytes, 0, fingerprints, ordinal * FINGERPRINT_LENGTH, FINGERPRINT_LENGTH);
+                knownFingerprints.set(ordinal);
+            }
+        } catch (DecoderException e) {
+            // Not a fingerprint, so it's as good as none
+        }
+    }
+
+    @Override
+    public LastEvent find(String relPath) {
+        int ordinal = paths.find(relPath);
+        if (ordinal == -1) {
+            return null;
+        }
+        String sha1Hex = unparseableSha1s.get(ordinal);
+        if (sha1Hex == null && !pendingSha1s.get(ordinal)) {
+            int offset = ordinal * Sha1Hasher.DIGEST_LENGTH;
+            sha1Hex = Hex.encodeHexString(Arrays.copyOfRange(digests, offset, offset + Sha1Hasher.DIGEST_LENGTH));
+        }
+        String fingerprint = null;
+        if (knownFingerprints.get(ordinal)) {
+            int offset = ordinal * FINGERPRINT_LENGTH;
+            fingerprint = Hex.encodeHexString(Arrays.copyOfRange(fingerprints, offset, offset + FINGERPRINT_LENGTH));
+        }
+        return new LastEvent(EVENT_TYPES.get(eventTypes[ordinal]), sha1Hex,
+                sizes[ordinal] == NO_VALUE ? null : sizes[ordinal],
+                mtimes[ordinal] == NO_VALUE ? null : mtimes[ordinal],
+                fingerprint);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,135 @@
+package rds.mediaprocessor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static rds.mediaprocessor.DbNames.*;
+
+/**
+ * Finds the last recorded event for a file, which is what a scanner compares against to decide whether a file is new,
+ * changed or the same as before.
+ */
+public interface LastEventLookup extends AutoCloseable {
+    /**
+     * @return the last event for the path, or null if there's never been one
+     */
+    LastEvent find(String relPath) throws SQLException;
+
+    @Override
+    void close() throws SQLException;
+
+    /**
+     * Knows of no events at all, so every file looks new. That's only true of an empty catalog.
+     */
+    LastEventLookup NONE = new LastEventLookup() {
+        @Override
+        public LastEvent find(String relPath) {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    class LastEvent {
+        public final String eventType;
+        /**
+         * Null while the file's checksum is pending.
+         */
+        public final String sha1Hex;
+        /**
+         * Null for deletes and for events from before size and mtime were tracked.
+         */
+        public final Long size;
+        public final Long mtime;
+        /**
+         * Null if the file hasn't been fingerprinted since fingerprints started being recorded.
+         */
+        public final String fingerprint;
+
+        public LastEvent(String eventType, String sha1Hex, Long size, Long mtime) {
+            this(eventType, sha1Hex, size, mtime, null);
+        }
+
+        public LastEvent(String eventType, String sha1Hex, Long size, Long mtime, String fingerprint) {
+            this.eventType = eventType;
+            this.sha1Hex = sha1Hex;
+            this.size = size;
+            this.mtime = mtime;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * Looks up each file with its own primary key read of file_state. It's the cheapest to start, and it's the
+     * right choice when only a few files will be looked at, but it's a round trip to the db per file.
+     */
+    class Query implements LastEventLookup {
+        private final Connection connection;
+        private final PreparedStatement findLastEvent;
+
+        public Query(Connection connection) throws SQLException {
+            this.connection = connection;
+            findLastEvent = connection.prepareStatement(
+                    "select event_type, sha1, size, mtime, fingerprint from file_state where file_path = ?");
+        }
+
+        @Override
+        public LastEvent find(String relPath) throws SQLException {
+            findLastEvent.setString(1, relPath);
+            try (ResultSet resultSet = findLastEvent.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                return new LastEvent(
+                        resultSet.getString(FileEventTable.event_type),
+                        CatalogStorage.fromColumn(resultSet.getObject(FileEventTable.sha1)),
+                        getNullableLong(resultSet, FileEventTable.size),
+                        getNullableLong(resultSet, FileEventTable.mtime),
+                        resultSet.getString(FileEventTable.fingerprint));
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try (connection) {
+                findLastEvent.close();
+            }
+        }
+    }
+
+    /**
+     * Skips the lookup for any path that the writer's {@link PathFilter} says the catalog has never had, and counts it
+     * in the metrics. It asks the writer for the filter every time, since the writer replaces it if something else
+     * changes the catalog.
+     */
+    static LastEventLookup filtered(LastEventLookup lookup, FileEventInserter writer, ScanMetrics metrics) {
+        if (writer.pathFilter() == null) {
+            return lookup;
+        }
+        return new LastEventLookup() {
+            @Override
+            public LastEvent find(String relPath) throws SQLException {
+                PathFilter filter = writer.pathFilter();
+                if (filter != null && !filter.mightContain(relPath)) {
+                    metrics.lookupsFiltered.increment();
+                    return null;
+                }
+                return lookup.find(relPath);
+            }
+
+            @Override
+            public void close() throws SQLException {
+                lookup.close();
+            }
+        };
+    }
+
+    static Long getNullableLong(ResultSet resultSet, String column) throws SQLException {
+        long value = resultSet.getLong(column);
+        return resultSet.wasNull() ? null : value;
+    }
+}
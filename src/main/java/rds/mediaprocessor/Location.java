@@ -0,0 +1,147 @@
+package rds.mediaprocessor;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * A storage location with its own catalog, like Amazon or the desk archive. Besides where its catalog is, a location
+ * knows how to turn its stored paths into archive-relative paths that can be compared across locations, and which kinds
+ * of media it's authoritative for. If a file is deleted from a location that's authoritative for that kind of file, it
+ * should be deleted everywhere.
+ * <p>
+ * Locations are configured in a properties file, with a group of keys per location sharing an id prefix:
+ * <pre>
+ * amazon.name=Amazon
+ * amazon.catalog=/path/to/amazon.db
+ * amazon.stripPrefix=/mnt/d/amazon-drive/Amazon Drive/Backup/DESK/D/archive/pics/
+ * amazon.separator=/
+ * amazon.authoritativeFor=photos
+ * amazon.root=/mnt/d/amazon-drive
+ * </pre>
+ * Only catalog is required. The name defaults to the id, stripPrefix is removed from the front of stored paths, and
+ * separator is the path separator the paths were stored with, which is replaced with "/". authoritativeFor is a comma
+ * separated list of "photos" and "videos", and defaults to neither. root is the directory the catalog's stored paths
+ * are relative to, if its files can be read from here, which lets reconciling look at them when catalogs disagree.
+ */
+public class Location {
+    /**
+     * Where the known locations are read from, relative to the working directory.
+     */
+    public static final Path DEFAULT_CONFIG = Paths.get("locations.properties");
+
+    public final String name;
+    public final Path catalog;
+    /**
+     * Turns a stored path into an archive-relative path with "/" separators, or null if stored paths are already like
+     * that.
+     */
+    public final Function<String, String> normalizer;
+    public final boolean authoritativeForPhotos;
+    public final boolean authoritativeForVideos;
+    /**
+     * Where the files are, or null if they can't be reached from here.
+     */
+    public final Path root;
+
+    public Location(String name, Path catalog, Function<String, String> normalizer,
+                    boolean authoritativeForPhotos, boolean authoritativeForVideos) {
+        this(name, catalog, normalizer, authoritativeForPhotos, authoritativeForVideos, null);
+    }
+
+    public Location(String name, Path catalog, Function<String, String> normalizer,
+                    boolean authoritativeForPhotos, boolean authoritativeForVideos, Path root) {
+        this.name = name;
+        this.catalog = catalog;
+        this.normalizer = normalizer;
+        this.authoritativeForPhotos = authoritativeForPhotos;
+        this.authoritativeForVideos = authoritativeForVideos;
+        this.root = root;
+    }
+
+    public boolean isAuthoritativeFor(MediaKind kind) {
+        return kind == MediaKind.VIDEO ? authoritativeForVideos : authoritativeForPhotos;
+    }
+
+    /**
+     * @return the normalized path, which is the stored path itself if this location has no normalizer
+     */
+    public String normalize(String storedPath) {
+        return normalizer == null ? storedPath : normalizer.apply(storedPath);
+    }
+
+    /**
+     * Reads the locations in {@link #DEFAULT_CONFIG}, or none if it doesn't exist.
+     */
+    public static List<Location> loadKnown() {
+        if (!Files.exists(DEFAULT_CONFIG)) {
+            return List.of();
+        }
+        try {
+            return load(DEFAULT_CONFIG);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read locations from " + DEFAULT_CONFIG, e);
+        }
+    }
+
+    public static List<Location> load(Path config) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(config, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return fromProperties(properties);
+    }
+
+    public static List<Location> fromProperties(Properties properties) {
+        Set<String> ids = new TreeSet<>();
+        for (String key : properties.stringPropertyNames()) {
+            int dot = key.indexOf('.');
+            if (dot == -1) {
+                throw new IllegalArgumentException("Location setting should look like <id>.<setting>: " + key);
+            }
+            ids.add(key.substring(0, dot));
+        }
+        List<Location> locations = new ArrayList<>();
+        for (String id : ids) {
+            String catalog = properties.getProperty(id + ".catalog");
+            if (catalog == null) {
+                throw new IllegalArgumentException("No catalog for location " + id);
+            }
+            Set<String> authoritativeFor = new HashSet<>();
+            for (String kind : properties.getProperty(id + ".authoritativeFor", "").split(",")) {
+                authoritativeFor.add(kind.trim().toLowerCase(Locale.ROOT));
+            }
+            String root = properties.getProperty(id + ".root");
+            locations.add(new Location(
+                    properties.getProperty(id + ".name", id),
+                    Paths.get(catalog),
+                    normalizer(properties.getProperty(id + ".stripPrefix"), properties.getProperty(id + ".separator")),
+                    authoritativeFor.contains("photos"),
+                    authoritativeFor.contains("videos"),
+                    root == null ? null : Paths.get(root)));
+        }
+        return locations;
+    }
+
+    private static Function<String, String> normalizer(String stripPrefix, String separator) {
+        boolean strip = stripPrefix != null && !stripPrefix.isEmpty();
+        boolean replace = separator != null && !separator.isEmpty() && !separator.equals("/");
+        if (!strip && !replace) {
+            return null;
+        }
+        return path -> {
+            String normalized = strip && path.startsWith(stripPrefix) ? path.substring(stripPrefix.length()) : path;
+            return replace ? normalized.replace(separator, "/") : normalized;
+        };
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
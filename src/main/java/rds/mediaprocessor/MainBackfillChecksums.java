@@ -0,0 +1,32 @@
+package rds.mediaprocessor;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fills in the checksums left pending by a build with "FileSystemScanner.checksums" set to "later". It can be stopped
+ * and started again at any time. See {@link ChecksumBackfiller}.
+ * <p>
+ * Usage: MainBackfillChecksums &lt;root dir&gt; &lt;catalog db&gt; [max bytes per second]
+ */
+public class MainBackfillChecksums {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: MainBackfillChecksums <root dir> <catalog db> [max bytes per second]");
+            System.exit(1);
+        }
+        Path rootDir = Paths.get(args[0]);
+        Path dbLocation = Paths.get(args[1]);
+        Map<String, String> settings = new HashMap<>();
+        if (args.length > 2) {
+            settings.put("ChecksumBackfiller.maxBytesPerSecond", args[2]);
+        }
+        ScanMetrics metrics = new ScanMetrics();
+        try (CatalogDatabase database = CatalogDatabase.open(dbLocation, settings)) {
+            new ChecksumBackfiller(rootDir, database.writer(), metrics, settings).backfill();
+        }
+        System.out.println(metrics.summary());
+    }
+}
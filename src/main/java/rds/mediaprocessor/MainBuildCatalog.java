@@ -1,85 +1,92 @@
 package rds.mediaprocessor;
 
-import org.apache.commons.dbcp.BasicDataSource;
-
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
 public class MainBuildCatalog {
-    public static final int DB_BATCH_SIZE = 200;
-
-    static class Stats {
-        public static final AtomicInteger insertsCompleted = new AtomicInteger();
-        public static final AtomicInteger insertsQueued = new AtomicInteger();
-        private static final AtomicLong cumulativeQueueDelay = new AtomicLong();
-        private static final AtomicInteger queueDelayCount = new AtomicInteger();
-        private static final AtomicLong cumulativeBatchDelay = new AtomicLong();
-        private static final AtomicInteger batchDelayCount = new AtomicInteger();
-        private static final AtomicLong cumulativeBatchTime = new AtomicLong();
-        private static final AtomicInteger batchTimeCount = new AtomicInteger();
-
-        private Stats() {
-        }
-
-        public static void addQueueDelay(long queueDelay) {
-            queueDelayCount.incrementAndGet();
-            cumulativeQueueDelay.addAndGet(queueDelay);
-        }
-
-        public static double getAverageQueueDelay() {
-            return cumulativeQueueDelay.get() / (double) queueDelayCount.get();
-        }
-
-        public static void addBatchDelay(long timeBetweenBatches) {
-            batchDelayCount.incrementAndGet();
-            cumulativeBatchDelay.addAndGet(timeBetweenBatches);
-        }
-
-        public static double getAverageBatchDelay() {
-            return cumulativeBatchDelay.get() / (double) batchDelayCount.get();
-        }
-
-        public static void addBatchTime(long batchTime) {
-            batchTimeCount.incrementAndGet();
-            cumulativeBatchTime.addAndGet(batchTime);
-        }
-
-        public static double getAverageBatchTime() {
-            return cumulativeBatchTime.get() / (double) batchTimeCount.get();
-        }
-    }
 
     static class FileEvent {
         public final String eventType;
         public final String relPath;
         public final String sha1Hex;
+        /**
+         * Size and last modified millis of the file when the event happened. They're null for deletes, since there's
+         * nothing left to look at.
+         */
+        public final Long size;
+        public final Long mtime;
+        /**
+         * The checksum of just the image or video content, without metadata, if it's been worked out. See
+         * {@link ContentHasher}.
+         */
+        public final String contentSha1Hex;
+        /**
+         * See {@link Fingerprint}. Null for deletes, and for events from before fingerprints were recorded.
+         */
+        public final String fingerprint;
+        /**
+         * Where the file went, for a move. Null for everything else.
+         */
+        public final String movedTo;
 
         public FileEvent(String eventType, FileInfo info) {
             this.eventType = eventType;
             relPath = info.relPath;
             sha1Hex = info.sha1Hex;
+            size = info.size;
+            mtime = info.mtime;
+            contentSha1Hex = info.contentSha1Hex;
+            fingerprint = info.fingerprint;
+            movedTo = null;
+        }
+
+        /**
+         * See {@link DbNames.EventTypes#touch}.
+         */
+        public static FileEvent touched(String relPath, long size, long mtime) {
+            return new FileEvent(DbNames.EventTypes.touch, new FileInfo(relPath, null, size, mtime));
         }
 
         public FileEvent(String eventType, String relPath, String sha1Hex) {
+            this(eventType, relPath, sha1Hex, null);
+        }
+
+        public FileEvent(String eventType, String relPath, String sha1Hex, String movedTo) {
             this.eventType = eventType;
             this.relPath = relPath;
             this.sha1Hex = sha1Hex;
+            size = null;
+            mtime = null;
+            contentSha1Hex = null;
+            fingerprint = null;
+            this.movedTo = movedTo;
         }
     }
 
     static class FileInfo {
         public final String relPath;
         public final String sha1Hex;
+        public final long size;
+        public final long mtime;
+        public final String contentSha1Hex;
+        public final String fingerprint;
+
+        public FileInfo(String relPath, String sha1Hex, long size, long mtime) {
+            this(relPath, sha1Hex, size, mtime, null, null);
+        }
 
-        public FileInfo(String relPath, String sha1Hex) {
+        public FileInfo(String relPath, String sha1Hex, long size, long mtime, String contentSha1Hex,
+                        String fingerprint) {
             this.relPath = relPath;
             this.sha1Hex = sha1Hex;
+            this.size = size;
+            this.mtime = mtime;
+            this.contentSha1Hex = contentSha1Hex;
+            this.fingerprint = fingerprint;
         }
 
         @Override
@@ -87,6 +94,10 @@ public class MainBuildCatalog {
             return "FileInfo{" +
                     "relPath='" + relPath + '\'' +
                     ", sha1Hex='" + sha1Hex + '\'' +
+                    ", size=" + size +
+                    ", mtime=" + mtime +
+                    ", contentSha1Hex='" + contentSha1Hex + '\'' +
+                    ", fingerprint='" + fingerprint + '\'' +
                     '}';
         }
     }
@@ -101,73 +112,147 @@ public class MainBuildCatalog {
         buildCatalog(rootDir, dbLocation, new HashMap<>());
     }
 
-    public static void buildCatalog(Path rootDir, Path dbLocation, Map<String, String> settings) throws Exception {
+    /**
+     * @return what was measured while building; see {@link ScanMetrics}
+     */
+    public static ScanMetrics buildCatalog(Path rootDir, Path dbLocation, Map<String, String> settings)
+            throws Exception {
         final long now = System.currentTimeMillis();
-        final BasicDataSource dataSource = new BasicDataSource();
-        dataSource.setUrl("jdbc:sqlite:" + dbLocation);
-        dataSource.setMinIdle(1);
-        dataSource.setMaxIdle(2);
-        dataSource.setMaxActive(10);
-        dataSource.setMaxWait(5000);
-        dataSource.setValidationQuery("select 1");
-        dataSource.setConnectionInitSqls(List.of(
-                "pragma busy_timeout=10000"
-        ));
-        dataSource.setPoolPreparedStatements(true);
-        final FileEventBatcher fileEventBatcher = new FileEventBatcher(now, dataSource, settings);
-        // A single thread executor will ensure batches can't be sent concurrently.
-        ExecutorService batchSender = Executors.newSingleThreadExecutor();
-        ScheduledExecutorService batchScheduler = Executors.newSingleThreadScheduledExecutor();
-        final DifferentDbBatcher differentDbBatcher = new DifferentDbBatcher(dataSource, batchSender, batchScheduler);
-        // This feels a little wonky. I'm scheduling something on a fixed delay that itself polls for a set amount of
-        // time. I want the turnaround on it to be pretty short because currently, this is the amount of time I have to
-        // wait for the "idle" state later on. This mainly shows itself in tests, where each test has to do this
-        // multiple times.
-        batchScheduler.scheduleWithFixedDelay(
-                differentDbBatcher.getPeriodicBatchTrigger(50), 0, 50, TimeUnit.MILLISECONDS);
-        String whichInserter = "new";
-        FileEventInserter inserterToUse;
-        if ("old".equals(whichInserter)) {
-            inserterToUse = fileEventBatcher;
-            batchSender.submit(fileEventBatcher);
-        } else if ("new".equals(whichInserter)) {
-            inserterToUse = differentDbBatcher;
-        } else {
-            throw new IllegalStateException("can't pick a batcher");
-        }
-        ScheduledExecutorService statsReportingExecutor = Executors.newSingleThreadScheduledExecutor();
-        statsReportingExecutor.scheduleWithFixedDelay(() -> {
-            String report = " *** Stats update ***\n" +
-                    " ***\n" +
-                    " *** Inserts queued         : " + Stats.insertsQueued + "\n" +
-                    " *** Inserts completed      : " + Stats.insertsCompleted + "\n" +
-                    " *** Avg queued time        : " + Stats.getAverageQueueDelay() + "\n" +
-                    " *** Avg time btwn batches  : " + Stats.getAverageBatchDelay() + "\n" +
-                    " *** Avg time per batch ins : " + Stats.getAverageBatchTime() + "\n" +
-                    " *** Insert queue usage     : " + inserterToUse.getCurrentQueuedInserts() + "/" + inserterToUse.getQueueCapacity() + "\n" +
-                    " *** Active connections     : " + dataSource.getNumActive() + "\n" +
-                    " *** Idle connections       : " + dataSource.getNumIdle() + "\n" +
-                    " ***\n";
-            System.out.print(report);
-        }, 5, 5, TimeUnit.SECONDS);
-        new FileSystemScanner(dataSource, inserterToUse).scan(rootDir);
+        final ScanMetrics metrics = new ScanMetrics();
+        try (MetricsPublisher ignored = new MetricsPublisher(metrics, dbLocation.toAbsolutePath().toString(),
+                Paths.get(dbLocation + ".metrics.jsonl"), settings)) {
+            buildCatalog(rootDir, dbLocation, now, metrics, settings);
+        }
+        System.out.println(metrics.summary());
+        return metrics;
+    }
+
+    private static void buildCatalog(Path rootDir, Path dbLocation, long now, ScanMetrics metrics,
+                                     Map<String, String> settings) throws Exception {
+        try (CatalogDatabase database = CatalogDatabase.open(dbLocation, settings)) {
+            final boolean bulkIngest;
+            try (Connection connection = database.readers().getConnection()) {
+                bulkIngest = shouldBulkIngest(connection, settings);
+            }
+            if (bulkIngest) {
+                bulkIngest(rootDir, database, dbLocation, now, metrics, settings);
+                return;
+            }
+            // Every event from this scan is recorded at the time the scan started.
+            try (CatalogWriter writer = new CatalogWriter(database.writer(), now, metrics, settings)) {
+                // Remembers this scan's creates, so files that are gone can be matched to where they went.
+                RenameDetector renameDetector = new RenameDetector(writer, settings);
+                scan(rootDir, database, renameDetector,
+                        new FileSystemScanner(database.readers(), renameDetector, metrics, settings), now, metrics,
+                        settings);
+            }
+            backfillChecksums(rootDir, database, metrics, settings);
+        }
+    }
+
+    /**
+     * Scans the tree into a catalog that's open, and then records what's gone from it. A scan that died partway picks up
+     * where it left off, if it recorded a checkpoint, with the rename detector reminded of what it created before it
+     * died. It writes through whatever writer the rename detector wraps, which for a watch is the one that's already
+     * running, so there's still only ever one writer.
+     *
+     * @param scanner what to scan with, which whoever started the build can cancel from another thread
+     * @return false if the scan was cancelled before it finished, in which case nothing is recorded as deleted, since
+     * not all of the tree was seen, and the checkpoint is left for the next build to resume
+     */
+    static boolean scan(Path rootDir, CatalogDatabase database, RenameDetector renameDetector,
+                        FileSystemScanner scanner, long now, ScanMetrics metrics, Map<String, String> settings)
+            throws Exception {
+        ScanCheckpoint checkpoint = ScanCheckpoint.open(database.writer(), rootDir, now, settings);
+        if (checkpoint != null && checkpoint.isResuming()) {
+            try (Connection connection = database.readers().getConnection()) {
+                renameDetector.rememberCreatedSince(connection, checkpoint.started());
+            }
+        }
+        try (ProgressReporter ignored = ProgressReporter.start(rootDir, metrics, settings)) {
+            scanner.scan(rootDir, checkpoint);
+        }
+        if (scanner.isCancelled()) {
+            System.out.println("Scan of " + rootDir + " was cancelled");
+            return false;
+        }
         // Next up is scanning the db to see if it contains files that no longer exist. To do that, we need the db to be
-        // fully updated, meaning everything queued in the batcher needs to be sent to the database.
-        inserterToUse.flush();
-        new DatabaseScanner(dataSource, inserterToUse).scan(rootDir);
-        // Forcibly terminate the batch scheduler because we're going to clean up manually next.
-        batchScheduler.shutdownNow();
-        if ("old".equals(whichInserter)) {
-            fileEventBatcher.finishUp();
-        } else if ("new".equals(whichInserter)) {
-            differentDbBatcher.flushAllRemaining();
-        }
-        // Now we can shut down the other executors used, since all the work is done.
-        batchSender.shutdown();
-        statsReportingExecutor.shutdownNow();
-        if (!batchSender.awaitTermination(15, TimeUnit.SECONDS)) {
-            System.out.println("Batcher sender didn't shut down completely!");
-        }
-        dataSource.close();
+        // fully updated, meaning everything queued in the writer needs to be committed.
+        renameDetector.flush();
+        new DatabaseScanner(database.readers(), renameDetector, renameDetector, settings)
+                .scan(rootDir, scanner.getSeenPaths());
+        if (checkpoint != null) {
+            // The deletes go in before the checkpoint goes away.
+            renameDetector.flush();
+            checkpoint.finish();
+        }
+        return true;
+    }
+
+    /**
+     * A build with "FileSystemScanner.checksums" set to "later" only records what it sees of the tree, which makes the
+     * catalog usable right away, and leaves the checksums for {@link MainBackfillChecksums}. A normal build hashes as
+     * it goes, and then catches up on anything that an earlier metadata-only build left pending, so that when it's
+     * done, the catalog is complete.
+     */
+    private static void backfillChecksums(Path rootDir, CatalogDatabase database, ScanMetrics metrics,
+                                          Map<String, String> settings) throws SQLException {
+        if ("later".equals(settings.getOrDefault("FileSystemScanner.checksums", "now"))) {
+            return;
+        }
+        try (Connection connection = database.readers().getConnection()) {
+            if (ChecksumBackfiller.countPending(connection) == 0) {
+                return;
+            }
+        }
+        Map<String, String> backfillSettings = new HashMap<>(settings);
+        // It's part of the build, not in the background, so there's no reason to hold it back.
+        backfillSettings.put("ChecksumBackfiller.maxBytesPerSecond", "0");
+        new ChecksumBackfiller(rootDir, database.writer(), metrics, backfillSettings).backfill();
+    }
+
+    /**
+     * "MainBuildCatalog.bulkIngest" is "auto" by default, which bulk ingests whenever the catalog is empty. It can be
+     * set to "always", which fails if the catalog isn't empty, or "never".
+     */
+    private static boolean shouldBulkIngest(Connection connection, Map<String, String> settings) throws SQLException {
+        String bulkIngest = settings.getOrDefault("MainBuildCatalog.bulkIngest", "auto");
+        if ("auto".equals(bulkIngest)) {
+            return BulkCatalogLoader.isEmpty(connection);
+        } else if ("always".equals(bulkIngest)) {
+            return true;
+        } else if ("never".equals(bulkIngest)) {
+            return false;
+        }
+        throw new IllegalStateException("Unknown bulk ingest setting: " + bulkIngest);
+    }
+
+    /**
+     * The first scan into an empty catalog. Every file is new, so nothing is looked up, and there's nothing to delete,
+     * so there's no pass over the db afterward. See {@link BulkCatalogLoader} for how the events get written, and how a
+     * bulk load that died partway resumes from its checkpoint.
+     */
+    private static void bulkIngest(Path rootDir, CatalogDatabase database, Path dbLocation, long now,
+                                   ScanMetrics metrics, Map<String, String> settings) throws Exception {
+        System.out.println("Catalog is empty; bulk ingesting " + rootDir);
+        Map<String, String> scanSettings = new HashMap<>(settings);
+        scanSettings.put("FileSystemScanner.lookupMode", "none");
+        boolean staged;
+        try (Connection connection = database.readers().getConnection()) {
+            staged = BulkCatalogLoader.hasStagedEvents(connection);
+        }
+        // A checkpoint is no use without the events it says are done, which are staged in the same transaction.
+        ScanCheckpoint checkpoint = ScanCheckpoint.open(database.writer(), rootDir, now, staged, settings);
+        try (BulkCatalogLoader loader = new BulkCatalogLoader(dbLocation, now, metrics, settings, checkpoint)) {
+            try (ProgressReporter ignored = ProgressReporter.start(rootDir, metrics, settings)) {
+                // With no lookups, the scanner never needs a data source.
+                new FileSystemScanner(null, loader, metrics, scanSettings).scan(rootDir, checkpoint);
+            }
+            int loaded = loader.finish();
+            System.out.println("Bulk ingested " + loaded + " files");
+        }
+        if (checkpoint != null) {
+            checkpoint.finish();
+        }
     }
 }
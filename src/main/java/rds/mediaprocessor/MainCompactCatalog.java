@@ -0,0 +1,94 @@
+package rds.mediaprocessor;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves an existing catalog to the compact layout described in {@link CatalogStorage}, and shrinks the file to match.
+ * <p>
+ * Any tool that opens a catalog upgrades it in place, but sqlite only frees the space the old layout took for reuse
+ * inside the file, so the file stays as big as it was. This vacuums it afterward, which rewrites the whole thing, and
+ * turns checksums the shell scripts recorded as hex into blobs, since the trigger they insert through can't. Nothing
+ * else should have the catalog open while it runs, and it needs about as much free disk as the catalog takes.
+ * <p>
+ * Usage: MainCompactCatalog &lt;catalog db&gt;
+ */
+public class MainCompactCatalog {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: MainCompactCatalog <catalog db>");
+            System.exit(1);
+        }
+        Path dbLocation = Paths.get(args[0]);
+        long sizeBefore = Files.size(dbLocation);
+        long start = System.currentTimeMillis();
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbLocation);
+             Statement statement = connection.createStatement()) {
+            statement.execute("pragma busy_timeout = 10000");
+            CatalogSchema.upgrade(connection);
+            connection.setAutoCommit(false);
+            int converted = compactChecksums(connection, "events", "directory_id", "file_name", "time")
+                    + compactChecksums(connection, "file_state", "file_path");
+            connection.commit();
+            connection.setAutoCommit(true);
+            System.out.println("Converted hex checksums to binary in " + converted + " rows");
+            statement.execute("vacuum");
+            // A catalog in WAL mode has the vacuumed copy in its WAL until it's checkpointed.
+            statement.execute("pragma wal_checkpoint(truncate)");
+        }
+        System.out.println("Compacted " + dbLocation + " from " + sizeBefore / 1024 + " KB to "
+                + Files.size(dbLocation) / 1024 + " KB in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Stores every checksum in a table that's still hex as its 20 bytes instead.
+     *
+     * @return how many rows were changed
+     */
+    private static int compactChecksums(Connection connection, String table, String... keyColumns)
+            throws SQLException {
+        String key = String.join(", ", keyColumns);
+        // Read them all before changing any, so the update isn't changing what the select is still going through.
+        List<Object[]> rows = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select sha1, content_sha1, " + key + " from " + table +
+                     " where typeof(sha1) = 'text' or typeof(content_sha1) = 'text'")) {
+            while (resultSet.next()) {
+                Object sha1 = CatalogStorage.toColumn(CatalogStorage.fromColumn(resultSet.getObject(1)));
+                Object contentSha1 = CatalogStorage.toColumn(CatalogStorage.fromColumn(resultSet.getObject(2)));
+                if (!(sha1 instanceof byte[]) && !(contentSha1 instanceof byte[])) {
+                    // Not checksums, like the note recorded for a file that couldn't be read.
+                    continue;
+                }
+                Object[] row = new Object[2 + keyColumns.length];
+                row[0] = sha1;
+                row[1] = contentSha1;
+                for (int i = 0; i < keyColumns.length; i++) {
+                    row[2 + i] = resultSet.getObject(3 + i);
+                }
+                rows.add(row);
+            }
+        }
+        String where = String.join(" = ? and ", keyColumns) + " = ?";
+        try (PreparedStatement update = connection.prepareStatement(
+                "update " + table + " set sha1 = ?, content_sha1 = ? where " + where)) {
+            for (Object[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    update.setObject(i + 1, row[i]);
+                }
+                update.addBatch();
+            }
+            update.executeBatch();
+        }
+        return rows.size();
+    }
+}
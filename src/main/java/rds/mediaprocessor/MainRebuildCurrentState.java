@@ -0,0 +1,38 @@
+package rds.mediaprocessor;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+
+/**
+ * Rebuilds the current_state cache of a catalog from its file_events, or with "--verify", only checks whether it's
+ * correct.
+ * <p>
+ * Usage: MainRebuildCurrentState &lt;catalog db&gt; [--verify]
+ */
+public class MainRebuildCurrentState {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: MainRebuildCurrentState <catalog db> [--verify]");
+            System.exit(1);
+        }
+        Path dbLocation = Paths.get(args[0]);
+        boolean verifyOnly = args.length > 1 && "--verify".equals(args[1]);
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbLocation)) {
+            CatalogSchema.upgrade(connection);
+            if (verifyOnly) {
+                int problems = CurrentState.verify(connection);
+                System.out.println("Rows of current_state that don't match file_events: " + problems);
+                if (problems > 0) {
+                    System.exit(1);
+                }
+            } else {
+                long start = System.currentTimeMillis();
+                int rows = CurrentState.rebuild(connection);
+                System.out.println("Rebuilt current_state with " + rows + " files in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            }
+        }
+    }
+}
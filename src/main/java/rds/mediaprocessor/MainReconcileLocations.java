@@ -0,0 +1,47 @@
+package rds.mediaprocessor;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Reconciles every configured location in one pass and prints each file that needs attention, followed by a count of
+ * files per verdict.
+ * <p>
+ * Usage: MainReconcileLocations [locations.properties]
+ */
+public class MainReconcileLocations {
+    public static void main(String[] args) throws Exception {
+        Path config = args.length > 0 ? Paths.get(args[0]) : Location.DEFAULT_CONFIG;
+        List<Location> locations = Location.load(config);
+        System.out.println("Reconciling " + locations);
+        MultiCatalogReconciler reconciler = new MultiCatalogReconciler(
+                locations, Runtime.getRuntime().availableProcessors(), 1000);
+        long start = System.currentTimeMillis();
+        Map<MultiCatalogReconciler.Verdict, Long> counts = reconciler.reconcile(fileVerdict -> {
+            if (fileVerdict.verdict != MultiCatalogReconciler.Verdict.FULLY_SYNCED
+                    && fileVerdict.verdict != MultiCatalogReconciler.Verdict.DELETED_EVERYWHERE
+                    && fileVerdict.verdict != MultiCatalogReconciler.Verdict.METADATA_ONLY
+                    && fileVerdict.verdict != MultiCatalogReconciler.Verdict.MOVED_HERE) {
+                System.out.println(fileVerdict.verdict + " - " + fileVerdict.key + " - " + describe(locations, fileVerdict));
+            }
+        });
+        System.out.println("Reconciled in " + (System.currentTimeMillis() - start) + " ms: " + counts);
+    }
+
+    private static String describe(List<Location> locations, MultiCatalogReconciler.FileVerdict fileVerdict) {
+        return IntStream.range(0, locations.size())
+                .mapToObj(i -> {
+                    MultiCatalogReconciler.LocationState state = fileVerdict.states.get(i);
+                    if (state == null) {
+                        return locations.get(i).name + ": unknown";
+                    }
+                    return locations.get(i).name + ": " + state.eventType + " " + state.sha1
+                            + (state.isMoved() ? " to " + state.movedTo : "");
+                })
+                .collect(Collectors.joining(", "));
+    }
+}
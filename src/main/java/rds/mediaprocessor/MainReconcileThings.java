@@ -1,31 +1,20 @@
 package rds.mediaprocessor;
 
-import javax.print.attribute.standard.Sides;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Optional;
-import java.util.function.Function;
+import java.util.Set;
 
 import static rds.mediaprocessor.DbNames.*;
 
 public class MainReconcileThings {
-    static class Db {
-        public final String name;
-        public final Path path;
-        private Function<String, String> normalizer;
-
-        public Db(String name, Path path, Function<String, String> normalizer) {
-            this.name = name;
-            this.path = path;
-            this.normalizer = normalizer;
-        }
-    }
+    /**
+     * How many rows the merge reads from each catalog at a time, which is what bounds its memory.
+     */
+    private static final int MERGE_FETCH_SIZE = 1000;
 
     public static void main(String[] args) throws Exception {
         Path catalog1Path = Paths.get("D:\\dev\\projects\\media-processor\\test.db");
@@ -34,23 +23,71 @@ public class MainReconcileThings {
     }
 
     static class Diff {
+        enum Kind {
+            /**
+             * The file is only known to the left hand catalog.
+             */
+            LEFT_ONLY,
+            /**
+             * The file is only known to the right hand catalog.
+             */
+            RIGHT_ONLY,
+            /**
+             * Both catalogs know the file, but they disagree on its state or content.
+             */
+            MISMATCH,
+            /**
+             * Both catalogs agree on the file's state, but at least one of them hasn't hashed it yet, so there's no
+             * telling whether the content matches. It sorts itself out once the checksums are backfilled.
+             */
+            HASH_PENDING,
+            /**
+             * Both catalogs have the file, and their whole-file checksums disagree, but the image or video in it is the
+             * same. Only the metadata differs, like a timestamp that was fixed in one place, so there's nothing to
+             * sync.
+             */
+            METADATA_ONLY,
+            /**
+             * One catalog moved the file somewhere else, and the other still has the same file where it was. It should
+             * be moved to match instead of copied. The diff is for the old path, with the new one in the moved side's
+             * movedTo, and the new path doesn't get a diff of its own.
+             */
+            MOVED
+        }
+
         public final String path;
+        public final Kind kind;
         public Side lhs;
         public Side rhs;
 
-        public Diff(String path, Side lhs, Side rhs) {
+        public Diff(String path, Kind kind, Side lhs, Side rhs) {
             this.path = path;
+            this.kind = kind;
             this.lhs = lhs;
             this.rhs = rhs;
         }
 
         static class Side {
+            /**
+             * The side of a diff for a catalog that doesn't know about the file at all.
+             */
+            public static final Side NONE = new Side("none", "none");
+
             public String state;
             public String sha1;
+            /**
+             * Where the file went, if the state is a move.
+             */
+            public String movedTo;
 
             public Side(String state, String sha1) {
+                this(state, sha1, null);
+            }
+
+            public Side(String state, String sha1, String movedTo) {
                 this.state = state;
                 this.sha1 = sha1;
+                this.movedTo = movedTo;
             }
         }
     }
@@ -77,75 +114,184 @@ public class MainReconcileThings {
         // with any approach, how to know when i've got a quorum?
         // to begin, probably just require a set number of nodes to report in, and report a problem if they don't
 
-        List<Db> knownDbs = List.of(
-                new Db("Amazon",
-                        Paths.get("D:\\dev\\projects\\media-processor\\test.db"),
-                        (db2Path) -> Paths.get("/mnt/d/amazon-drive/Amazon Drive/Backup/DESK/D/archive/pics", db2Path).toString()),
-                new Db("Desk archive",
-                        Paths.get("D:\\dev\\projects\\media-processor\\java-test.db"),
-                        (db1Path) ->
-                                db1Path.replaceAll("^/mnt/d/amazon-drive/Amazon Drive/Backup/DESK/D/archive/pics/", "")
-                                        .replaceAll("/", "\\\\")
-                ));
-        Db db1;
-        Db db2;
-        db1 = knownDbs.stream()
-                .filter(db -> db.path.equals(catalog1Path))
-                .findFirst()
-                .orElse(new Db("lhs", catalog1Path, (s) -> s));
-        db2 = knownDbs.stream()
-                .filter(db -> db.path.equals(catalog2Path))
+        return reconcileCatalogs(knownLocation(catalog1Path, "lhs"), knownLocation(catalog2Path, "rhs"));
+    }
+
+    /**
+     * The location in the known locations with the given catalog, or one made up with the given name if there isn't
+     * one.
+     */
+    static Location knownLocation(Path catalog, String name) {
+        return Location.loadKnown().stream()
+                .filter(db -> db.catalog.equals(catalog))
                 .findFirst()
-                .orElse(new Db("rhs", catalog2Path, (s) -> s));
-        try (final Connection connection1 = DriverManager.getConnection("jdbc:sqlite:" + db1.path);
-             final Connection connection2 = DriverManager.getConnection("jdbc:sqlite:" + db2.path)) {
-            PreparedStatement findFileInDb2Stmt = connection2.prepareStatement(
-                    "select * from file_events where file_path = ? order by time desc limit 1");
-            ResultSet resultSet1 = connection1.createStatement().executeQuery("select * from file_events");
-            final List<Diff> result = new ArrayList<>();
-            while (resultSet1.next()) {
-                String filePath1 = resultSet1.getString(FileEventTable.file_path);
-                String filePath2 = db2.normalizer.apply(filePath1);
-                findFileInDb2Stmt.setString(1, filePath2);
-                ResultSet resultSet2 = findFileInDb2Stmt.executeQuery();
-                String db1FileState = resultSet1.getString(FileEventTable.event_type);
-                String db1FileSha1 = resultSet1.getString((FileEventTable.sha1));
-                if (resultSet2.next()) {
-                    String db2FileState = resultSet2.getString(FileEventTable.event_type);
-                    String db2FileSha1 = resultSet2.getString((FileEventTable.sha1));
-                    Diff diff = new Diff(filePath1,
-                            new Diff.Side(db1FileState, db1FileSha1),
-                            new Diff.Side(db2FileState, db2FileSha1));
-                    if (db1FileState.equals(db2FileState)) {
-                        if (db1FileSha1.equals(db2FileSha1)) {
-                            System.out.println("Files are an exact match in both db's - " + filePath2);
-                        } else {
-                            System.out.println("File checksums don't match - " + filePath2);
-                            result.add(diff);
-                        }
-                    } else if (db1FileState.equals(EventTypes.delete)) {
-                        System.out.println("File should be deleted from " + db2.name + " - " + filePath2);
-                        result.add(diff);
-                    } else if (db2FileState.equals(EventTypes.delete)) {
-                        System.out.println("File should be deleted from " + db1.name + " - " + filePath1);
-                        result.add(diff);
-                    } else if (db1FileState.equals(EventTypes.create)) {
-                        System.out.println("File is updated in " + db2.name + " but not " + db1.name + " - " + filePath1);
-                        result.add(diff);
-                    } else if (db2FileState.equals(EventTypes.create)) {
-                        System.out.println("File is updated in " + db1.name + " but not " + db2.name + " - " + filePath2);
-                        result.add(diff);
-                    } else {
-                        throw new IllegalStateException("Shouldn't be able to get here. What happened?");
-                    }
+                .orElse(new Location(name, catalog, null, false, false));
+    }
+
+    public static List<Diff> reconcileCatalogs(Location db1, Location db2) throws Exception {
+        CatalogSchema.requireCurrent(db1.catalog);
+        CatalogSchema.requireCurrent(db2.catalog);
+        ContentChecksums contentChecksums = new ContentChecksums();
+        List<Diff> result;
+        try (CatalogCursor cursor1 = new CatalogCursor(db1.catalog, db1.normalizer, MERGE_FETCH_SIZE);
+             CatalogCursor cursor2 = new CatalogCursor(db2.catalog, db2.normalizer, MERGE_FETCH_SIZE)) {
+            result = merge(db1, cursor1, db2, cursor2, contentChecksums);
+        }
+        contentChecksums.save();
+        dropMoveTargets(result);
+        return result;
+    }
+
+    /**
+     * Reconciles two locations from snapshots of their catalogs, which skips sqlite altogether; see
+     * {@link CatalogSnapshot}. They have to have been taken with the same normalizers as the locations have, or their
+     * keys won't line up. Content checksums that get worked out still go to the locations' catalogs.
+     */
+    public static List<Diff> reconcileSnapshots(Location db1, Path snapshot1, Location db2, Path snapshot2)
+            throws Exception {
+        ContentChecksums contentChecksums = new ContentChecksums();
+        List<Diff> result;
+        try (CatalogSnapshot catalogSnapshot1 = CatalogSnapshot.open(snapshot1);
+             CatalogSnapshot catalogSnapshot2 = CatalogSnapshot.open(snapshot2)) {
+            result = merge(db1, catalogSnapshot1.cursor(), db2, catalogSnapshot2.cursor(), contentChecksums);
+        }
+        contentChecksums.save();
+        dropMoveTargets(result);
+        return result;
+    }
+
+    /**
+     * Both sides are streamed in order of their normalized paths and merged like the merge step of a merge sort, so
+     * each one is read once, front to back, and only the current row of each is in memory. A file that both sides have
+     * in the same state with the same checksum, which is nearly all of them, is passed over without looking at the rest
+     * of it.
+     */
+    private static List<Diff> merge(Location db1, FileStateCursor cursor1, Location db2, FileStateCursor cursor2,
+                                    ContentChecksums contentChecksums) throws SQLException {
+        List<Diff> result = new ArrayList<>();
+        boolean more1 = cursor1.next();
+        boolean more2 = cursor2.next();
+        while (more1 || more2) {
+            int comparison = !more1 ? 1 : !more2 ? -1 : cursor1.compareKey(cursor2);
+            if (comparison < 0) {
+//                System.out.println("File exists in " + db1.name + " but unknown in " + db2.name + " - " + cursor1.path());
+                result.add(new Diff(cursor1.path(), Diff.Kind.LEFT_ONLY,
+                        new Diff.Side(cursor1.eventType(), cursor1.sha1(), cursor1.movedTo()), Diff.Side.NONE));
+                more1 = cursor1.next();
+            } else if (comparison > 0) {
+//                System.out.println("File exists in " + db2.name + " but unknown in " + db1.name + " - " + cursor2.path());
+                result.add(new Diff(cursor2.path(), Diff.Kind.RIGHT_ONLY,
+                        Diff.Side.NONE, new Diff.Side(cursor2.eventType(), cursor2.sha1(), cursor2.movedTo())));
+                more2 = cursor2.next();
+            } else {
+                if (!cursor1.sameStateAndSha1(cursor2)) {
+                    compareFile(db1, cursor1, db2, cursor2, contentChecksums, result);
+                }
+                more1 = cursor1.next();
+                more2 = cursor2.next();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A file that one catalog moved shows up twice in the merge: at its old path, where it's a {@link Diff.Kind#MOVED},
+     * and at its new path, which only that catalog knows. The move says everything there is to say, so the new path's
+     * diff goes, or else it would look like a new file to copy. The two paths can be anywhere in the merge order
+     * relative to each other, so this waits until the end, when every move has been seen.
+     */
+    private static void dropMoveTargets(List<Diff> result) {
+        Set<String> leftTargets = new HashSet<>();
+        Set<String> rightTargets = new HashSet<>();
+        for (Diff diff : result) {
+            if (diff.kind == Diff.Kind.MOVED) {
+                if (EventTypes.move.equals(diff.lhs.state)) {
+                    leftTargets.add(diff.lhs.movedTo);
+                } else {
+                    rightTargets.add(diff.rhs.movedTo);
+                }
+            }
+        }
+        if (leftTargets.isEmpty() && rightTargets.isEmpty()) {
+            return;
+        }
+        result.removeIf(diff -> (diff.kind == Diff.Kind.LEFT_ONLY && leftTargets.contains(diff.path))
+                || (diff.kind == Diff.Kind.RIGHT_ONLY && rightTargets.contains(diff.path)));
+    }
+
+    /**
+     * Compares one file that's known to both catalogs, adding a diff to the result if they don't agree.
+     */
+    private static void compareFile(Location db1, FileStateCursor cursor1, Location db2, FileStateCursor cursor2,
+                                    ContentChecksums contentChecksums, List<Diff> result)
+            throws SQLException {
+        String filePath1 = cursor1.path();
+        String filePath2 = cursor2.path();
+        String db1FileState = cursor1.eventType();
+        String db1FileSha1 = cursor1.sha1();
+        String db2FileState = cursor2.eventType();
+        String db2FileSha1 = cursor2.sha1();
+        Diff diff = new Diff(filePath1, Diff.Kind.MISMATCH,
+                new Diff.Side(db1FileState, db1FileSha1, cursor1.movedTo()),
+                new Diff.Side(db2FileState, db2FileSha1, cursor2.movedTo()));
+        boolean db1Present = EventTypes.isPresent(db1FileState);
+        boolean db2Present = EventTypes.isPresent(db2FileState);
+        if (db1Present && db2Present
+                && db1FileSha1 != null && db2FileSha1 != null && !db1FileSha1.equals(db2FileSha1)) {
+            // Both have the file with different bytes. The content checksums can tell whether it's only metadata.
+            String db1ContentSha1 = contentChecksums.find(db1, filePath1, cursor1.size(), cursor1.mtime(),
+                    cursor1.contentSha1());
+            String db2ContentSha1 = db1ContentSha1 == null ? null : contentChecksums.find(db2, filePath2,
+                    cursor2.size(), cursor2.mtime(), cursor2.contentSha1());
+            if (db1ContentSha1 != null && db1ContentSha1.equals(db2ContentSha1)) {
+                result.add(new Diff(filePath1, Diff.Kind.METADATA_ONLY, diff.lhs, diff.rhs));
+                return;
+            }
+        }
+        if ((db1FileState.equals(EventTypes.move) && db2Present)
+                || (db2FileState.equals(EventTypes.move) && db1Present)) {
+            Location moved = db1Present ? db2 : db1;
+            Location notMoved = db1Present ? db1 : db2;
+            // The move only keeps what the file was, so a pending checksum on either side can't say it changed.
+            if (db1FileSha1 == null || db2FileSha1 == null || db1FileSha1.equals(db2FileSha1)) {
+                String movedTo = db1Present ? diff.rhs.movedTo : diff.lhs.movedTo;
+                System.out.println("File was moved to " + movedTo + " in " + moved.name + " and should be moved in "
+                        + notMoved.name + " too - " + filePath1);
+                result.add(new Diff(filePath1, Diff.Kind.MOVED, diff.lhs, diff.rhs));
+            } else {
+                System.out.println("File was moved in " + moved.name + " but changed in " + notMoved.name + " - "
+                        + filePath1);
+                result.add(diff);
+            }
+        } else if (db1FileState.equals(db2FileState)) {
+            if (db1FileSha1 == null || db2FileSha1 == null) {
+                // Without both checksums, the fingerprints can still show that the files are different.
+                if (Fingerprint.differ(cursor1.size(), cursor1.fingerprint(), cursor2.size(), cursor2.fingerprint())) {
+                    System.out.println("File fingerprints don't match - " + filePath2);
+                    result.add(diff);
                 } else {
-//                    System.out.println("File exists in " + db1.name + " but unknown in " + db2.name + " - " + filePath1);
-                    result.add(new Diff(filePath1,
-                            new Diff.Side(db1FileState, db1FileSha1),
-                            new Diff.Side("none", "none")));
+                    result.add(new Diff(filePath1, Diff.Kind.HASH_PENDING, diff.lhs, diff.rhs));
                 }
+            } else if (!db1FileSha1.equals(db2FileSha1)) {
+                System.out.println("File checksums don't match - " + filePath2);
+                result.add(diff);
             }
-            return result;
+        } else if (db1Present && db2Present && db1FileSha1 != null && db1FileSha1.equals(db2FileSha1)) {
+            // A create on one side and an update on the other, with the same bytes: the update was only a touch.
+        } else if (!db1Present) {
+            System.out.println("File should be deleted from " + db2.name + " - " + filePath2);
+            result.add(diff);
+        } else if (!db2Present) {
+            System.out.println("File should be deleted from " + db1.name + " - " + filePath1);
+            result.add(diff);
+        } else if (db1FileState.equals(EventTypes.create)) {
+            System.out.println("File is updated in " + db2.name + " but not " + db1.name + " - " + filePath1);
+            result.add(diff);
+        } else if (db2FileState.equals(EventTypes.create)) {
+            System.out.println("File is updated in " + db1.name + " but not " + db2.name + " - " + filePath2);
+            result.add(diff);
+        } else {
+            throw new IllegalStateException("Shouldn't be able to get here. What happened?");
         }
     }
 }
@@ -0,0 +1,27 @@
+package rds.mediaprocessor;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Writes a {@link CatalogSnapshot} of a catalog, for reconciling with
+ * {@link MainReconcileThings#reconcileSnapshots} or copying somewhere else to reconcile there. If the catalog is one of
+ * the known locations, its paths are normalized the way that location's are.
+ * <p>
+ * Usage: MainSnapshotCatalog &lt;catalog db&gt; &lt;snapshot file&gt;
+ */
+public class MainSnapshotCatalog {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: MainSnapshotCatalog <catalog db> <snapshot file>");
+            System.exit(1);
+        }
+        Path dbLocation = Paths.get(args[0]);
+        Path snapshot = Paths.get(args[1]);
+        long start = System.currentTimeMillis();
+        int files = CatalogSnapshot.write(MainReconcileThings.knownLocation(dbLocation, "catalog"), snapshot);
+        System.out.println("Wrote a snapshot of " + files + " files, " + Files.size(snapshot) / 1024 + " KB, to "
+                + snapshot + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
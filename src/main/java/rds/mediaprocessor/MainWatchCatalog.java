@@ -0,0 +1,70 @@
+package rds.mediaprocessor;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a catalog up to date until it's stopped. See {@link CatalogWatcher}.
+ * <p>
+ * It starts watching before it runs a build to catch up on whatever changed while nothing was watching, so nothing
+ * falls in between. Events that come in during the build are handled after it, and they mostly turn out to be for
+ * files the build already recorded. With a watch running, the regular build turns into a check that nothing was
+ * missed, and doesn't have to run as often.
+ * <p>
+ * The build writes through the watch's writer, at the time each batch is committed, and it never bulk ingests or
+ * backfills checksums, since those open writers of their own. An empty catalog is better off with a
+ * {@link MainBuildCatalog} first. Stopping the JVM cancels the build if it's still running, and whatever it didn't
+ * get to is left to its checkpoint. How long to wait for it all to stop is set with
+ * "MainWatchCatalog.stopTimeoutSeconds" (30).
+ * <p>
+ * Usage: MainWatchCatalog &lt;root dir&gt; &lt;catalog db&gt; [debounce millis]
+ */
+public class MainWatchCatalog {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: MainWatchCatalog <root dir> <catalog db> [debounce millis]");
+            System.exit(1);
+        }
+        Path rootDir = Paths.get(args[0]);
+        Path dbLocation = Paths.get(args[1]);
+        Map<String, String> settings = new HashMap<>();
+        if (args.length > 2) {
+            settings.put("CatalogWatcher.debounceMillis", args[2]);
+        }
+        ScanMetrics metrics = new ScanMetrics();
+        long stopTimeoutSeconds = Long.parseLong(settings.getOrDefault("MainWatchCatalog.stopTimeoutSeconds", "30"));
+        CountDownLatch stopped = new CountDownLatch(1);
+        // Events are recorded when they're committed, not at one time for everything, like a build does.
+        try (CatalogDatabase database = CatalogDatabase.open(dbLocation, settings);
+             CatalogWriter writer = new CatalogWriter(database.writer(), null, metrics, settings);
+             CatalogWatcher watcher = new CatalogWatcher(rootDir, database.readers(), writer, metrics, settings)) {
+            // The build to catch up writes through the watch's writer, so there's only one writer on the catalog.
+            RenameDetector renameDetector = new RenameDetector(writer, settings);
+            FileSystemScanner scanner = new FileSystemScanner(database.readers(), renameDetector, metrics, settings);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    scanner.cancel();
+                    watcher.close();
+                    // Let the files being hashed or the batch being handled finish, and the writer commit them, but
+                    // don't hold up the JVM forever over a huge file on a slow disk.
+                    if (!stopped.await(stopTimeoutSeconds, TimeUnit.SECONDS)) {
+                        System.out.println("Gave up waiting for the watch to stop after " + stopTimeoutSeconds + " s");
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }));
+            if (MainBuildCatalog.scan(rootDir, database, renameDetector, scanner, System.currentTimeMillis(), metrics,
+                    settings)) {
+                watcher.run();
+            }
+        } finally {
+            System.out.println(metrics.summary());
+            stopped.countDown();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package rds.mediaprocessor;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * What sort of media a file is, going by its extension. Locations can be authoritative for some kinds and not others,
+ * like Amazon, which is where photos live for good but videos only pass through.
+ */
+public enum MediaKind {
+    PHOTO,
+    VIDEO,
+    /**
+     * Anything that isn't recognizably a photo or video. These follow the same rules as photos.
+     */
+    OTHER;
+
+    private static final Set<String> PHOTO_EXTENSIONS = Set.of(
+            "jpg", "jpeg", "png", "gif", "heic", "heif", "tif", "tiff", "bmp", "webp", "cr2", "nef", "arw", "dng");
+    private static final Set<String> VIDEO_EXTENSIONS = Set.of(
+            "mp4", "mov", "m4v", "avi", "mkv", "mts", "m2ts", "3gp", "wmv", "mpg", "mpeg");
+
+    public static MediaKind of(String path) {
+        String extension = extensionOf(path);
+        if (PHOTO_EXTENSIONS.contains(extension)) {
+            return PHOTO;
+        } else if (VIDEO_EXTENSIONS.contains(extension)) {
+            return VIDEO;
+        }
+        return OTHER;
+    }
+
+    /**
+     * @return the file's extension in lower case, or "" if it doesn't have one
+     */
+    static String extensionOf(String path) {
+        int dot = path.lastIndexOf('.');
+        if (dot == -1 || dot < Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'))) {
+            return "";
+        }
+        return path.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,122 @@
+package rds.mediaprocessor;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Makes a build's {@link ScanMetrics} visible while it runs: registered with JMX, so jconsole or VisualVM can watch it
+ * live, and appended to a snapshot file every so often, so there's a record to look at afterward.
+ * <p>
+ * Settings:
+ * <ul>
+ *     <li>MetricsPublisher.snapshotFile: where snapshots go, or "none" to not write any. A file ending in .csv gets a
+ *     header and a row per snapshot; anything else gets a JSON object per line. It's appended to, not replaced.</li>
+ *     <li>MetricsPublisher.periodSeconds: how often to take a snapshot (5)</li>
+ *     <li>MetricsPublisher.jmx: whether to register with JMX (true)</li>
+ * </ul>
+ */
+public class MetricsPublisher implements AutoCloseable {
+    private final ScanMetrics metrics;
+    private final Path snapshotFile;
+    private final ScheduledExecutorService scheduler;
+    private ObjectName objectName;
+
+    /**
+     * @param name            what to call the metrics in JMX, like the path of the catalog being built
+     * @param defaultSnapshot where snapshots go if the settings don't say
+     */
+    public MetricsPublisher(ScanMetrics metrics, String name, Path defaultSnapshot, Map<String, String> settings) {
+        this.metrics = metrics;
+        String snapshotSetting = settings.getOrDefault("MetricsPublisher.snapshotFile", defaultSnapshot.toString());
+        snapshotFile = "none".equals(snapshotSetting) ? null : Paths.get(snapshotSetting);
+        long periodSeconds = Long.parseLong(settings.getOrDefault("MetricsPublisher.periodSeconds", "5"));
+        if (Boolean.parseBoolean(settings.getOrDefault("MetricsPublisher.jmx", "true"))) {
+            register(name);
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (snapshotFile != null) {
+            scheduler.scheduleWithFixedDelay(this::writeSnapshotQuietly, periodSeconds, periodSeconds,
+                    TimeUnit.SECONDS);
+        }
+    }
+
+    private void register(String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            objectName = new ObjectName("rds.mediaprocessor:type=ScanMetrics,name=" + ObjectName.quote(name));
+            server.registerMBean(metrics, objectName);
+        } catch (InstanceAlreadyExistsException e) {
+            // Two builds of the same catalog at once. The other one's metrics stay visible and these don't.
+            System.out.println("Metrics for " + name + " are already registered with JMX");
+            objectName = null;
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register metrics with JMX", e);
+        }
+    }
+
+    private void writeSnapshotQuietly() {
+        try {
+            writeSnapshot();
+        } catch (RuntimeException e) {
+            // Losing a snapshot isn't worth failing a build over, and an exception would stop the schedule.
+            System.out.println("Failed to write metrics snapshot: " + e);
+        }
+    }
+
+    private synchronized void writeSnapshot() {
+        Map<String, Number> snapshot = metrics.snapshot();
+        StringBuilder lines = new StringBuilder();
+        try {
+            if (snapshotFile.toString().endsWith(".csv")) {
+                if (!Files.exists(snapshotFile) || Files.size(snapshotFile) == 0) {
+                    lines.append(String.join(",", snapshot.keySet())).append('\n');
+                }
+                lines.append(snapshot.values().stream().map(String::valueOf).collect(Collectors.joining(",")));
+            } else {
+                lines.append(snapshot.entrySet().stream()
+                        .map(entry -> "\"" + entry.getKey() + "\":" + entry.getValue())
+                        .collect(Collectors.joining(",", "{", "}")));
+            }
+            lines.append('\n');
+            Files.writeString(snapshotFile, lines, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write metrics snapshot to " + snapshotFile, e);
+        }
+    }
+
+    /**
+     * Stops publishing, after writing one last snapshot, and takes the metrics out of JMX.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        if (snapshotFile != null) {
+            writeSnapshotQuietly();
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                System.out.println("Failed to unregister metrics from JMX: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package rds.mediaprocessor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Hashes the media in an MP4 or QuickTime file, which is the payload of its mdat boxes. Everything else is skipped over
+ * by box size without being read: the moov box, with creation times, GPS and the sample tables, udta, meta, free space
+ * and so on. Rewriting a video's metadata usually rewrites moov and sometimes moves it, but it leaves the media data
+ * alone.
+ */
+class Mp4ContentHasher extends ContentHasher {
+    private static final int MDAT = 0x6D646174;
+
+    @Override
+    protected boolean digestContent(FileChannel channel, MessageDigest digest, ByteBuffer buffer)
+            throws IOException {
+        long size = channel.size();
+        long position = 0;
+        boolean foundMedia = false;
+        while (position + 8 <= size) {
+            ByteBuffer header = read(channel, position, 8, buffer);
+            long boxSize = header.getInt() & 0xFFFFFFFFL;
+            int type = header.getInt();
+            if (!isBoxType(type)) {
+                return false;
+            }
+            int headerSize = 8;
+            if (boxSize == 1) {
+                // The real size is a 64 bit one after the type
+                if (position + 16 > size) {
+                    return false;
+                }
+                boxSize = read(channel, position + 8, 8, buffer).getLong();
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                // The box runs to the end of the file
+                boxSize = size - position;
+            }
+            if (boxSize < headerSize || position + boxSize > size) {
+                return false;
+            }
+            if (type == MDAT) {
+                digestRange(channel, position + headerSize, boxSize - headerSize, digest, buffer);
+                foundMedia = true;
+            }
+            position += boxSize;
+        }
+        return foundMedia;
+    }
+
+    /**
+     * Box types are four printable characters. Anything else means this isn't really an MP4, or it's damaged.
+     */
+    private static boolean isBoxType(int type) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            int character = (type >>> shift) & 0xFF;
+            if (character < 0x20 || character > 0x7E) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
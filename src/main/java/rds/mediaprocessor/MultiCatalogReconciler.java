@@ -0,0 +1,362 @@
+package rds.mediaprocessor;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static rds.mediaprocessor.DbNames.*;
+
+/**
+ * Reconciles any number of locations at once and gives every file a single verdict. Comparing locations two at a time
+ * takes a pass per pair, so it grows with the square of the number of locations. This takes one pass over each catalog.
+ * <p>
+ * The key space is split into partitions by hash, and partitions are reconciled in parallel. Each partition streams its
+ * slice of every catalog in key order with a {@link CatalogCursor} and merges them N ways, the same way two-way
+ * reconciling does.
+ */
+public class MultiCatalogReconciler {
+    public enum Verdict {
+        /**
+         * Every location has the file, and they all agree on its content.
+         */
+        FULLY_SYNCED,
+        /**
+         * Some locations have the file and agree on its content, and the rest haven't heard of it yet. It's on its way
+         * through the pipeline.
+         */
+        PENDING_PROPAGATION,
+        /**
+         * The file was deleted from a location that's authoritative for its kind, so it should be deleted everywhere
+         * it's still present.
+         */
+        DELETED_UPSTREAM,
+        /**
+         * The file was deleted from a location that isn't authoritative for it, like a video that's been pruned from
+         * Amazon. Nothing needs to happen.
+         */
+        PRUNED,
+        /**
+         * The file was deleted from everywhere that knows about it.
+         */
+        DELETED_EVERYWHERE,
+        /**
+         * Locations that have the file disagree about its content.
+         */
+        CONTENT_DRIFT,
+        /**
+         * Some location has the file but hasn't hashed it yet, so there's no telling whether it agrees with the others.
+         */
+        HASH_PENDING,
+        /**
+         * Every location has the file, and their whole-file checksums disagree, but the image or video in it is the
+         * same everywhere. Only the metadata differs, so nothing needs to happen.
+         */
+        METADATA_ONLY,
+        /**
+         * Some location moved the file somewhere else, and others still have the same file here. They should move it
+         * too, rather than copy it to its new path and delete it here.
+         */
+        MOVED,
+        /**
+         * The file got here by a move that other locations haven't made yet. It's not new, so there's nothing to copy;
+         * the file's old path has the {@link #MOVED} verdict that says what to do.
+         */
+        MOVED_HERE
+    }
+
+    /**
+     * What one location knows about a file.
+     */
+    public static class LocationState {
+        public final String path;
+        public final String eventType;
+        public final String sha1;
+        /**
+         * What the catalog has for the file, which is used to find its content checksum if whole-file checksums
+         * disagree.
+         */
+        public final Long size;
+        public final Long mtime;
+        public final String contentSha1;
+        public final String fingerprint;
+        /**
+         * Where the file went, if it was moved.
+         */
+        public final String movedTo;
+
+        public LocationState(String path, String eventType, String sha1) {
+            this(path, eventType, sha1, null, null, null, null, null);
+        }
+
+        public LocationState(String path, String eventType, String sha1, Long size, Long mtime, String contentSha1,
+                             String fingerprint, String movedTo) {
+            this.path = path;
+            this.eventType = eventType;
+            this.sha1 = sha1;
+            this.size = size;
+            this.mtime = mtime;
+            this.contentSha1 = contentSha1;
+            this.fingerprint = fingerprint;
+            this.movedTo = movedTo;
+        }
+
+        public boolean isPresent() {
+            return EventTypes.isPresent(eventType);
+        }
+
+        public boolean isMoved() {
+            return EventTypes.move.equals(eventType);
+        }
+    }
+
+    public static class FileVerdict {
+        public final String key;
+        public final MediaKind kind;
+        public final Verdict verdict;
+        /**
+         * Indexed the same as the reconciler's locations. Null where a location has never heard of the file.
+         */
+        public final List<LocationState> states;
+
+        public FileVerdict(String key, MediaKind kind, Verdict verdict, List<LocationState> states) {
+            this.key = key;
+            this.kind = kind;
+            this.verdict = verdict;
+            this.states = states;
+        }
+    }
+
+    private final List<Location> locations;
+    private final int partitions;
+    private final int fetchSize;
+    private final ContentChecksums contentChecksums = new ContentChecksums();
+
+    /**
+     * @param partitions how many slices to split the key space into, which is also how many run at once
+     * @param fetchSize  how many rows each cursor reads from sqlite at a time
+     */
+    public MultiCatalogReconciler(List<Location> locations, int partitions, int fetchSize) {
+        if (locations.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one location to reconcile");
+        }
+        this.locations = List.copyOf(locations);
+        this.partitions = partitions;
+        this.fetchSize = fetchSize;
+    }
+
+    public List<Location> getLocations() {
+        return locations;
+    }
+
+    /**
+     * Reconciles all the locations.
+     *
+     * <p>
+     * A moved file's new path only turns out to be {@link Verdict#MOVED_HERE} once its old path is reconciled, which
+     * can be in any partition. So the new paths of moves are held back, and get their verdicts at the end. There's one
+     * per move, which is few enough to keep.
+     *
+     * @param sink receives the verdict for every file; it's called from several threads at once, and it sees files in
+     *             key order within a partition but in no particular order overall
+     * @return how many files got each verdict
+     */
+    public Map<Verdict, Long> reconcile(Consumer<FileVerdict> sink) throws Exception {
+        Map<Verdict, AtomicLong> counts = new EnumMap<>(Verdict.class);
+        for (Verdict verdict : Verdict.values()) {
+            counts.put(verdict, new AtomicLong());
+        }
+        for (Location location : locations) {
+            CatalogSchema.requireCurrent(location.catalog);
+        }
+        Set<String> moveTargets = new HashSet<>();
+        for (Location location : locations) {
+            moveTargets.addAll(CatalogCursor.moveTargets(location.catalog, location.normalizer));
+        }
+        Set<String> confirmedMoveTargets = ConcurrentHashMap.newKeySet();
+        Queue<FileVerdict> heldBack = new ConcurrentLinkedQueue<>();
+        Consumer<FileVerdict> countingSink = verdict -> {
+            counts.get(verdict.verdict).incrementAndGet();
+            sink.accept(verdict);
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(partitions);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int partition = 0; partition < partitions; partition++) {
+                int thisPartition = partition;
+                results.add(executor.submit(() -> {
+                    reconcilePartition(thisPartition, verdict -> {
+                        if (verdict.verdict == Verdict.MOVED) {
+                            confirmedMoveTargets.addAll(movedToKeys(verdict.states));
+                        }
+                        if (verdict.verdict == Verdict.PENDING_PROPAGATION && moveTargets.contains(verdict.key)) {
+                            heldBack.add(verdict);
+                        } else {
+                            countingSink.accept(verdict);
+                        }
+                    });
+                    return null;
+                }));
+            }
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Failed to reconcile a partition", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        for (FileVerdict verdict : heldBack) {
+            countingSink.accept(confirmedMoveTargets.contains(verdict.key)
+                    ? new FileVerdict(verdict.key, verdict.kind, Verdict.MOVED_HERE, verdict.states)
+                    : verdict);
+        }
+        contentChecksums.save();
+        Map<Verdict, Long> result = new EnumMap<>(Verdict.class);
+        counts.forEach((verdict, count) -> result.put(verdict, count.get()));
+        return result;
+    }
+
+    private void reconcilePartition(int partition, Consumer<FileVerdict> sink) throws SQLException {
+        List<CatalogCursor> cursors = new ArrayList<>();
+        try {
+            for (Location location : locations) {
+                CatalogCursor cursor = new CatalogCursor(
+                        location.catalog, location.normalizer, fetchSize, partition, partitions);
+                cursors.add(cursor);
+                cursor.next();
+            }
+            while (true) {
+                String minKey = null;
+                for (CatalogCursor cursor : cursors) {
+                    if (cursor.key() != null && (minKey == null || CatalogCursor.compareKeys(cursor.key(), minKey) < 0)) {
+                        minKey = cursor.key();
+                    }
+                }
+                if (minKey == null) {
+                    break;
+                }
+                List<LocationState> states = new ArrayList<>(cursors.size());
+                for (CatalogCursor cursor : cursors) {
+                    if (minKey.equals(cursor.key())) {
+                        states.add(new LocationState(cursor.path(), cursor.eventType(), cursor.sha1(), cursor.size(),
+                                cursor.mtime(), cursor.contentSha1(), cursor.fingerprint(), cursor.movedTo()));
+                        cursor.next();
+                    } else {
+                        states.add(null);
+                    }
+                }
+                MediaKind kind = MediaKind.of(minKey);
+                sink.accept(new FileVerdict(minKey, kind, verdictFor(kind, states), states));
+            }
+        } finally {
+            for (CatalogCursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    Verdict verdictFor(MediaKind kind, List<LocationState> states) {
+        Set<String> presentSha1s = new HashSet<>();
+        boolean unknownSomewhere = false;
+        boolean deletedSomewhere = false;
+        boolean deletedByAuthority = false;
+        // What the file was everywhere it's still present or was moved from, leaving out checksums that are pending
+        Set<String> knownSha1s = new HashSet<>();
+        boolean movedSomewhere = false;
+        for (int i = 0; i < states.size(); i++) {
+            LocationState state = states.get(i);
+            if (state == null) {
+                unknownSomewhere = true;
+            } else if (state.isPresent()) {
+                presentSha1s.add(state.sha1);
+                if (state.sha1 != null) {
+                    knownSha1s.add(state.sha1);
+                }
+            } else if (state.isMoved()) {
+                movedSomewhere = true;
+                if (state.sha1 != null) {
+                    knownSha1s.add(state.sha1);
+                }
+            } else {
+                deletedSomewhere = true;
+                deletedByAuthority |= locations.get(i).isAuthoritativeFor(kind);
+            }
+        }
+        if (presentSha1s.isEmpty()) {
+            return Verdict.DELETED_EVERYWHERE;
+        } else if (deletedByAuthority) {
+            return Verdict.DELETED_UPSTREAM;
+        } else if (movedSomewhere) {
+            return knownSha1s.size() > 1 ? Verdict.CONTENT_DRIFT : Verdict.MOVED;
+        } else if (presentSha1s.contains(null)) {
+            return fingerprintsDiffer(states) ? Verdict.CONTENT_DRIFT : Verdict.HASH_PENDING;
+        } else if (presentSha1s.size() > 1 && !sameContent(states)) {
+            return Verdict.CONTENT_DRIFT;
+        } else if (unknownSomewhere) {
+            return Verdict.PENDING_PROPAGATION;
+        } else if (deletedSomewhere) {
+            return Verdict.PRUNED;
+        }
+        return presentSha1s.size() > 1 ? Verdict.METADATA_ONLY : Verdict.FULLY_SYNCED;
+    }
+
+    /**
+     * The keys of the paths that the locations which moved a file moved it to.
+     */
+    private List<String> movedToKeys(List<LocationState> states) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < states.size(); i++) {
+            LocationState state = states.get(i);
+            if (state != null && state.isMoved() && state.movedTo != null) {
+                java.util.function.Function<String, String> normalizer = locations.get(i).normalizer;
+                keys.add(normalizer == null ? state.movedTo : normalizer.apply(state.movedTo));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Whether any two locations that have the file are known to have different versions of it, going by size and
+     * fingerprint. It's how drift shows up before every location has checksummed the file.
+     */
+    private static boolean fingerprintsDiffer(List<LocationState> states) {
+        for (int i = 0; i < states.size(); i++) {
+            LocationState state = states.get(i);
+            if (state == null || !state.isPresent()) {
+                continue;
+            }
+            for (int j = i + 1; j < states.size(); j++) {
+                LocationState other = states.get(j);
+                if (other != null && other.isPresent()
+                        && Fingerprint.differ(state.size, state.fingerprint, other.size, other.fingerprint)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether every location that has the file has the same image or video in it, going by content checksums.
+     */
+    private boolean sameContent(List<LocationState> states) {
+        String contentSha1 = null;
+        for (int i = 0; i < states.size(); i++) {
+            LocationState state = states.get(i);
+            if (state == null || !state.isPresent()) {
+                continue;
+            }
+            String found = contentChecksums.find(locations.get(i), state.path, state.size, state.mtime,
+                    state.contentSha1);
+            if (found == null || (contentSha1 != null && !contentSha1.equals(found))) {
+                return false;
+            }
+            contentSha1 = found;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,277 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.dbcp.BasicDataSource;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over every path in a catalog's file_state, so that looking up a file the catalog has never had can be
+ * answered without asking sqlite. When a new folder of photos is scanned, that's every file in it, and each of those
+ * lookups would otherwise be a trip down the primary key index to find nothing. The filter can say a path might be
+ * there when it isn't, about 1% of the time, and then the lookup happens anyway. It never says a path isn't there when
+ * it is.
+ * <p>
+ * It lives in the catalog, in path_filter, as of the catalog's generation: a count of changes that the file_events
+ * trigger adds one to for every event, and anything else that changes file_state adds to as well. A filter whose
+ * generation isn't the catalog's might be missing paths, so it isn't used, and gets rebuilt from file_state the next
+ * time a {@link CatalogWriter} needs it.
+ * <p>
+ * The writer adds every path it writes before it commits it, so the filter always has at least what the catalog has.
+ * Before each batch, it checks that nothing else has written to the catalog since its last one, like the scripts or
+ * another build, and if something has, it loads or rebuilds the filter. In the batch, it checks again that the
+ * generation only moved by the events it wrote, in case something got in between. The filter is saved when the writer
+ * closes.
+ * <p>
+ * It's safe to use from several threads at once.
+ */
+public class PathFilter {
+    static final String TABLE = "create table if not exists path_filter (" +
+            "id integer primary key check (id = 0), " +
+            "generation integer not null, " +
+            "capacity integer not null, " +
+            "entries integer not null, " +
+            "hash_count integer not null, " +
+            "bits blob not null)";
+    private static final String GENERATION = "coalesce((select generation from catalog_changes), 0)";
+    /**
+     * About a 1% false positive rate, with the matching number of hashes, as long as it's not over capacity.
+     */
+    private static final int BITS_PER_PATH = 10;
+    private static final int HASH_COUNT = 7;
+    /**
+     * A rebuilt filter has room for twice the paths the catalog has, so it doesn't need rebuilding again as soon as it
+     * grows. Once it's over capacity, it's rebuilt bigger.
+     */
+    private static final int GROWTH = 2;
+    private static final long MIN_CAPACITY = 1 << 16;
+
+    private final AtomicLongArray bits;
+    private final long mask;
+    private final long capacity;
+    /**
+     * Roughly how many paths it has. A path that's added again doesn't count, unless it's one of the rare ones that
+     * looked like it was already there.
+     */
+    private final AtomicLong entries;
+    private volatile long generation;
+    /**
+     * False once something other than this filter's writer has changed the catalog.
+     */
+    private volatile boolean current = true;
+
+    private PathFilter(long capacity, long[] words, long entries, long generation) {
+        this.capacity = capacity;
+        bits = new AtomicLongArray(words);
+        mask = words.length * 64L - 1;
+        this.entries = new AtomicLong(entries);
+        this.generation = generation;
+    }
+
+    private PathFilter(long capacity, long generation) {
+        // Rounded up to a power of two, so a hash picks a bit with a mask.
+        this(capacity, new long[(int) (Long.highestOneBit(capacity * BITS_PER_PATH - 1) * 2 / 64)], 0, generation);
+    }
+
+    /**
+     * Loads the catalog's filter, or rebuilds and saves it if it's missing or out of date.
+     */
+    public static PathFilter open(BasicDataSource dataSource) {
+        try (Connection connection = dataSource.getConnection()) {
+            return open(connection);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to open path filter", e);
+        }
+    }
+
+    private static PathFilter open(Connection connection) throws SQLException {
+        PathFilter filter = load(connection);
+        if (filter == null) {
+            long start = System.currentTimeMillis();
+            filter = build(connection);
+            filter.save(connection);
+            System.out.println("Built a path filter of " + filter.entries.get() + " files in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+        return filter;
+    }
+
+    /**
+     * Checks whether something other than this filter's writer has changed the catalog since the filter was last
+     * brought up to date. If it has, this filter says "might be there" for everything from now on, and the saved one,
+     * if something saved one since, or else a rebuilt one, takes its place. It's called outside of a transaction.
+     *
+     * @return the filter to use from now on
+     */
+    PathFilter refresh(Connection connection) throws SQLException {
+        if (current && generation(connection) == generation) {
+            return this;
+        }
+        current = false;
+        return open(connection);
+    }
+
+    /**
+     * @return the saved filter, or null if there isn't one that's up to date
+     */
+    static PathFilter load(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select generation, capacity, entries, hash_count, bits, "
+                     + GENERATION + " from path_filter")) {
+            if (!resultSet.next()) {
+                return null;
+            }
+            long generation = resultSet.getLong(1);
+            long capacity = resultSet.getLong(2);
+            long entries = resultSet.getLong(3);
+            if (generation != resultSet.getLong(6) || entries > capacity || resultSet.getInt(4) != HASH_COUNT) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(resultSet.getBytes(5)).order(ByteOrder.LITTLE_ENDIAN);
+            long[] words = new long[buffer.remaining() / 8];
+            buffer.asLongBuffer().get(words);
+            return new PathFilter(capacity, words, entries, generation);
+        }
+    }
+
+    /**
+     * Builds a filter from file_state. It's read in one transaction, so the generation goes with what's read.
+     */
+    static PathFilter build(Connection connection) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            long generation;
+            long files;
+            try (ResultSet resultSet = statement.executeQuery(
+                    "select " + GENERATION + ", (select count(*) from file_state)")) {
+                resultSet.next();
+                generation = resultSet.getLong(1);
+                files = resultSet.getLong(2);
+            }
+            PathFilter filter = new PathFilter(Math.max(MIN_CAPACITY, files * GROWTH), generation);
+            try (ResultSet resultSet = statement.executeQuery("select file_path from file_state")) {
+                while (resultSet.next()) {
+                    filter.add(resultSet.getString(1));
+                }
+            }
+            connection.commit();
+            return filter;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Saves the filter, unless the catalog has changed since it was last brought up to date, since then it might be
+     * missing paths.
+     *
+     * @return whether it was saved
+     */
+    public boolean save(Connection connection) throws SQLException {
+        if (!current) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(bits.length() * 8).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < bits.length(); i++) {
+            buffer.putLong(bits.get(i));
+        }
+        // One statement, so nothing can change the catalog between checking the generation and saving.
+        try (PreparedStatement statement = connection.prepareStatement("insert or replace into path_filter(" +
+                "id, generation, capacity, entries, hash_count, bits) select 0, ?, ?, ?, ?, ? " +
+                "where " + GENERATION + " = ?")) {
+            statement.setLong(1, generation);
+            statement.setLong(2, capacity);
+            statement.setLong(3, entries.get());
+            statement.setInt(4, HASH_COUNT);
+            statement.setBytes(5, buffer.array());
+            statement.setLong(6, generation);
+            return statement.executeUpdate() == 1;
+        }
+    }
+
+    /**
+     * @return false if the catalog definitely has no file with this path, and true if it might
+     */
+    public boolean mightContain(String relPath) {
+        if (!current) {
+            return true;
+        }
+        long hash = hash(relPath);
+        long step = Long.rotateLeft(hash, 32) | 1;
+        for (int i = 0; i < HASH_COUNT; i++, hash += step) {
+            long bit = hash & mask;
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void add(String relPath) {
+        long hash = hash(relPath);
+        long step = Long.rotateLeft(hash, 32) | 1;
+        boolean added = false;
+        for (int i = 0; i < HASH_COUNT; i++, hash += step) {
+            long bit = hash & mask;
+            int word = (int) (bit >>> 6);
+            long wordMask = 1L << bit;
+            if ((bits.get(word) & wordMask) == 0) {
+                bits.getAndAccumulate(word, wordMask, (value, set) -> value | set);
+                added = true;
+            }
+        }
+        if (added) {
+            entries.incrementAndGet();
+        }
+    }
+
+    /**
+     * Tells the filter that its writer has just inserted some events, and hasn't committed them yet.
+     *
+     * @param generation the catalog's generation after the inserts, from the same transaction
+     * @param events     how many events were inserted
+     */
+    void written(long generation, int events) {
+        if (current && generation - events != this.generation) {
+            current = false;
+        }
+        this.generation = generation;
+    }
+
+    /**
+     * The catalog's generation. It can only be compared with what a writer expects inside a transaction that's written
+     * to the catalog, or outside of one.
+     */
+    static long generation(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select " + GENERATION)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    /**
+     * FNV-1a over the path's chars, with murmur3's finalizer on the end, since FNV's low bits are weak and those are
+     * the ones the mask keeps.
+     */
+    private static long hash(String relPath) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < relPath.length(); i++) {
+            hash = (hash ^ relPath.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,46 @@
+package rds.mediaprocessor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Hashes the image in a PNG, which is its critical chunks: IHDR, PLTE, IDAT and IEND. Ancillary chunks, like tEXt,
+ * iTXt, eXIf and tIME, are skipped over without being read. PNG marks a chunk as ancillary with a lower case first
+ * letter in its type, so chunk types this doesn't know about are handled the same way.
+ */
+class PngContentHasher extends ContentHasher {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int IEND = 0x49454E44;
+
+    @Override
+    protected boolean digestContent(FileChannel channel, MessageDigest digest, ByteBuffer buffer)
+            throws IOException {
+        long size = channel.size();
+        if (size < SIGNATURE.length || !read(channel, 0, SIGNATURE.length, buffer).equals(ByteBuffer.wrap(SIGNATURE))) {
+            return false;
+        }
+        long position = SIGNATURE.length;
+        while (position + 12 <= size) {
+            ByteBuffer header = read(channel, position, 8, buffer);
+            long length = header.getInt() & 0xFFFFFFFFL;
+            int type = header.getInt();
+            // Length and type, then the data, then a CRC
+            long chunkEnd = position + 12 + length;
+            if (chunkEnd > size) {
+                return false;
+            }
+            boolean critical = (type & 0x20000000) == 0;
+            if (critical) {
+                // The type and data. The CRC is only a check on them, so it adds nothing.
+                digestRange(channel, position + 4, 4 + length, digest, buffer);
+            }
+            if (type == IEND) {
+                return true;
+            }
+            position = chunkEnd;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,167 @@
+package rds.mediaprocessor;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prints a line every so often about how a scan is going: files and bytes done, how fast, and, if the size of the tree
+ * is known, how far along it is and when it'll finish. A file is done once it's been hashed, or once it's been found
+ * unchanged and skipped. It prints on a schedule, not per file, so a fast scan doesn't pay for it.
+ * <p>
+ * Knowing the size of the tree takes a pass over it first, which {@link #count} does. It's only a walk of the
+ * directories with no files opened, so it's quick on a local disk, but it's a second walk, which isn't free on a NAS.
+ * <p>
+ * Settings:
+ * <ul>
+ *     <li>ProgressReporter.countFirst: whether to count the tree before scanning, for percent done and an ETA
+ *     (false)</li>
+ *     <li>ProgressReporter.intervalSeconds: how often to print (10)</li>
+ * </ul>
+ */
+public class ProgressReporter implements AutoCloseable {
+    /**
+     * How much weight the latest interval's rate gets in the rate used for the ETA. The rest comes from the intervals
+     * before, so one slow interval, like a big video, doesn't throw the ETA way off.
+     */
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private final ScanMetrics metrics;
+    private final Totals totals;
+    private final ScheduledExecutorService scheduler;
+    private final long startNanos = System.nanoTime();
+    private long lastNanos = startNanos;
+    private long lastBytes;
+    private double smoothedBytesPerSecond = -1;
+
+    /**
+     * How big a tree is.
+     */
+    public static class Totals {
+        public final long files;
+        public final long bytes;
+
+        public Totals(long files, long bytes) {
+            this.files = files;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Counts the files in a tree and adds up their sizes, without reading any of them.
+     */
+    public static Totals count(Path root) throws IOException {
+        long start = System.currentTimeMillis();
+        long[] filesAndBytes = new long[2];
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile()) {
+                    filesAndBytes[0]++;
+                    filesAndBytes[1] += attributes.size();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // The scan will run into it too and deal with it then. The count is only an estimate anyway.
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        System.out.println("Counted " + filesAndBytes[0] + " files, " + formatBytes(filesAndBytes[1]) + ", in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return new Totals(filesAndBytes[0], filesAndBytes[1]);
+    }
+
+    /**
+     * Starts reporting on a scan, counting the tree first if the settings say to.
+     */
+    public static ProgressReporter start(Path root, ScanMetrics metrics, Map<String, String> settings)
+            throws IOException {
+        boolean countFirst = Boolean.parseBoolean(settings.getOrDefault("ProgressReporter.countFirst", "false"));
+        long intervalSeconds = Long.parseLong(settings.getOrDefault("ProgressReporter.intervalSeconds", "10"));
+        return new ProgressReporter(metrics, countFirst ? count(root) : null, intervalSeconds);
+    }
+
+    /**
+     * @param totals the size of the tree being scanned, or null if it isn't known
+     */
+    public ProgressReporter(ScanMetrics metrics, Totals totals, long intervalSeconds) {
+        this.metrics = metrics;
+        this.totals = totals;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "progress-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> System.out.println(progress()),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    synchronized String progress() {
+        long now = System.nanoTime();
+        long files = metrics.getFilesHashed() + metrics.getFilesSkipped();
+        long bytes = metrics.getBytesRead() + metrics.getBytesSkipped();
+        double elapsedSeconds = (now - startNanos) / 1e9;
+        double intervalSeconds = (now - lastNanos) / 1e9;
+        if (intervalSeconds > 0) {
+            double bytesPerSecond = (bytes - lastBytes) / intervalSeconds;
+            smoothedBytesPerSecond = smoothedBytesPerSecond < 0 ? bytesPerSecond
+                    : RATE_SMOOTHING * bytesPerSecond + (1 - RATE_SMOOTHING) * smoothedBytesPerSecond;
+        }
+        lastNanos = now;
+        lastBytes = bytes;
+        StringBuilder line = new StringBuilder("Progress: ").append(files);
+        if (totals != null) {
+            line.append("/").append(totals.files);
+        }
+        line.append(" files, ").append(formatBytes(bytes));
+        if (totals != null) {
+            line.append("/").append(formatBytes(totals.bytes))
+                    .append(String.format(" (%.1f%%)", totals.bytes == 0 ? 100.0 : 100.0 * bytes / totals.bytes));
+        }
+        line.append(String.format(", %.0f files/s, %s/s", files / elapsedSeconds, formatBytes(metrics.getBytesRead()
+                / elapsedSeconds)));
+        if (totals != null && smoothedBytesPerSecond > 0) {
+            long remaining = Math.max(0, totals.bytes - bytes);
+            line.append(", ETA ").append(formatDuration((long) (remaining / smoothedBytesPerSecond)));
+        }
+        return line.toString();
+    }
+
+    static String formatBytes(double bytes) {
+        String[] units = {"B", "KB", "MB", "GB", "TB"};
+        int unit = 0;
+        while (bytes >= 1024 && unit < units.length - 1) {
+            bytes /= 1024;
+            unit++;
+        }
+        return unit == 0 ? String.format("%.0f %s", bytes, units[unit]) : String.format("%.1f %s", bytes, units[unit]);
+    }
+
+    static String formatDuration(long seconds) {
+        if (seconds >= 3600) {
+            return seconds / 3600 + "h " + seconds % 3600 / 60 + "m";
+        } else if (seconds >= 60) {
+            return seconds / 60 + "m " + seconds % 60 + "s";
+        }
+        return seconds + "s";
+    }
+
+    /**
+     * Stops reporting, after one last line.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        System.out.println(progress());
+    }
+}
@@ -0,0 +1,226 @@
+package rds.mediaprocessor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+
+import static rds.mediaprocessor.DbNames.*;
+
+/**
+ * Notices files that moved during a scan. Without it, reorganizing a folder looks like every file in it was deleted
+ * and brand new files appeared somewhere else, and anything downstream copies all of them again.
+ * <p>
+ * It sits between a {@link FileSystemScanner} and the real {@link FileEventInserter}, passing every event through and
+ * remembering the creates. When the {@link DatabaseScanner} finds a file that's gone, it asks here for a create with
+ * the same content, and if there is one, the old path is recorded as a move to the new one instead of a delete.
+ * Content is matched by checksum when both sides have one, and otherwise by size and {@link Fingerprint}, which is what
+ * a scan with "FileSystemScanner.checksums" set to "later" has. Empty files are never matched, since they all have the
+ * same content.
+ * <p>
+ * A scan that resumes a checkpoint doesn't see again the files it created before it was interrupted, so those are read
+ * back from the catalog with {@link #rememberCreatedSince}, and a file that moved into a directory that was done by
+ * then is still a move.
+ * <p>
+ * Creates are indexed by key in hash tables, so matching a whole tree of moved files is one lookup per file. Each key
+ * chains its creates through an array, since identical copies of a file share a key. When there's a choice, a create
+ * with the same file name wins, so that moving a folder that has duplicates in it pairs each file with its own copy.
+ * <p>
+ * Settings:
+ * <ul>
+ *     <li>RenameDetector.enabled: whether to look for moves at all; without it, every missing file is a delete
+ *     (true)</li>
+ * </ul>
+ */
+public class RenameDetector implements FileEventInserter {
+    /**
+     * How far down a key's chain to look for a create with the same file name before settling for the first one. It
+     * keeps a key shared by thousands of identical files from making every match walk all of them.
+     */
+    private static final int NAME_MATCH_WINDOW = 16;
+    private static final int NONE = -1;
+
+    private final FileEventInserter delegate;
+    private final boolean enabled;
+    /**
+     * The path of every create, by the create's ordinal.
+     */
+    private final Utf8KeyTable created = new Utf8KeyTable();
+    private final Utf8KeyTable sha1Keys = new Utf8KeyTable();
+    private final Utf8KeyTable fingerprintKeys = new Utf8KeyTable();
+    /**
+     * The first create with each key, by the key's ordinal, and then the next create with the same key, by the
+     * create's ordinal.
+     */
+    private int[] firstBySha1 = new int[1024];
+    private int[] nextBySha1 = new int[1024];
+    private int[] firstByFingerprint = new int[1024];
+    private int[] nextByFingerprint = new int[1024];
+    /**
+     * Creates that have already been matched to a missing file, by ordinal.
+     */
+    private final BitSet claimed = new BitSet();
+
+    public RenameDetector(FileEventInserter delegate, Map<String, String> settings) {
+        this.delegate = delegate;
+        enabled = Boolean.parseBoolean(settings.getOrDefault("RenameDetector.enabled", "true"));
+    }
+
+    @Override
+    public void addToBatch(MainBuildCatalog.FileEvent event) {
+        if (enabled && EventTypes.create.equals(event.eventType) && event.size != null && event.size > 0) {
+            remember(event);
+        }
+        delegate.addToBatch(event);
+    }
+
+    @Override
+    public int getCurrentQueuedInserts() {
+        return delegate.getCurrentQueuedInserts();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return delegate.getQueueCapacity();
+    }
+
+    @Override
+    public void flush() {
+        delegate.flush();
+    }
+
+    @Override
+    public PathFilter pathFilter() {
+        return delegate.pathFilter();
+    }
+
+    /**
+     * Remembers the creates already in the catalog from a scan that's being resumed, as if they'd just been emitted.
+     *
+     * @param since when that scan started, which is the time its events were recorded at
+     */
+    public void rememberCreatedSince(Connection connection, long since) throws SQLException {
+        if (!enabled) {
+            return;
+        }
+        int remembered = 0;
+        try (PreparedStatement select = connection.prepareStatement("select file_path, sha1, size, mtime, " +
+                "fingerprint from current_state where event_type = ? and time >= ? and size > 0")) {
+            select.setString(1, EventTypes.create);
+            select.setLong(2, since);
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    remember(new MainBuildCatalog.FileEvent(EventTypes.create, new MainBuildCatalog.FileInfo(
+                            resultSet.getString(1), resultSet.getString(2), resultSet.getLong(3),
+                            resultSet.getLong(4), null, resultSet.getString(5))));
+                    remembered++;
+                }
+            }
+        }
+        System.out.println("Remembered " + remembered + " creates from before the scan was resumed");
+    }
+
+    /**
+     * The hashing workers all emit events at once, so this is the one place that needs a lock.
+     */
+    private synchronized void remember(MainBuildCatalog.FileEvent event) {
+        int ordinal = created.add(event.relPath);
+        if (ordinal == nextBySha1.length) {
+            nextBySha1 = Arrays.copyOf(nextBySha1, ordinal * 2);
+            nextByFingerprint = Arrays.copyOf(nextByFingerprint, ordinal * 2);
+        }
+        nextBySha1[ordinal] = NONE;
+        nextByFingerprint[ordinal] = NONE;
+        // Files that couldn't be read all have the same placeholder, which says nothing about what's in them.
+        if (CatalogStorage.isChecksum(event.sha1Hex)) {
+            firstBySha1 = chain(sha1Keys, event.sha1Hex, ordinal, firstBySha1, nextBySha1);
+        }
+        if (event.fingerprint != null) {
+            firstByFingerprint = chain(fingerprintKeys, fingerprintKey(event.size, event.fingerprint), ordinal,
+                    firstByFingerprint, nextByFingerprint);
+        }
+    }
+
+    /**
+     * Puts a create at the front of its key's chain.
+     *
+     * @return the array of first creates, which might have had to grow
+     */
+    private static int[] chain(Utf8KeyTable keys, String key, int ordinal, int[] first, int[] next) {
+        int before = keys.size();
+        int keyOrdinal = keys.add(key);
+        if (keyOrdinal == first.length) {
+            first = Arrays.copyOf(first, keyOrdinal * 2);
+        }
+        next[ordinal] = keyOrdinal == before ? NONE : first[keyOrdinal];
+        first[keyOrdinal] = ordinal;
+        return first;
+    }
+
+    /**
+     * Finds a file created in this scan that has the same content as a file that's gone, and claims it, so no other
+     * missing file can be matched to it.
+     *
+     * @param relPath     the path of the missing file
+     * @param sha1Hex     its last known checksum, if any
+     * @param size        its last known size, if any
+     * @param fingerprint its last known fingerprint, if any
+     * @return the path the file moved to, or null if it doesn't look like it moved
+     */
+    public synchronized String claim(String relPath, String sha1Hex, Long size, String fingerprint) {
+        if (!enabled || created.size() == 0 || (size != null && size == 0)) {
+            return null;
+        }
+        int match = NONE;
+        if (CatalogStorage.isChecksum(sha1Hex)) {
+            match = claim(sha1Keys, sha1Hex, firstBySha1, nextBySha1, relPath);
+        }
+        if (match == NONE && size != null && fingerprint != null) {
+            match = claim(fingerprintKeys, fingerprintKey(size, fingerprint), firstByFingerprint, nextByFingerprint,
+                    relPath);
+        }
+        return match == NONE ? null : created.key(match);
+    }
+
+    private int claim(Utf8KeyTable keys, String key, int[] first, int[] next, String relPath) {
+        int keyOrdinal = keys.find(key);
+        if (keyOrdinal == -1) {
+            return NONE;
+        }
+        // Claimed creates at the front of the chain are dropped for good, so they're only ever walked past once.
+        int head = first[keyOrdinal];
+        while (head != NONE && claimed.get(head)) {
+            head = next[head];
+        }
+        first[keyOrdinal] = head;
+        if (head == NONE) {
+            return NONE;
+        }
+        String name = fileName(relPath);
+        int match = head;
+        int looked = 0;
+        for (int ordinal = head; ordinal != NONE && looked < NAME_MATCH_WINDOW; ordinal = next[ordinal]) {
+            if (claimed.get(ordinal)) {
+                continue;
+            }
+            looked++;
+            if (fileName(created.key(ordinal)).equals(name)) {
+                match = ordinal;
+                break;
+            }
+        }
+        claimed.set(match);
+        return match;
+    }
+
+    private static String fingerprintKey(long size, String fingerprint) {
+        return size + ":" + fingerprint;
+    }
+
+    private static String fileName(String relPath) {
+        return relPath.substring(Math.max(relPath.lastIndexOf('/'), relPath.lastIndexOf('\\')) + 1);
+    }
+}
@@ -0,0 +1,423 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.dbcp.BasicDataSource;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records how far a scan has gotten, so that a scan that dies partway, because the JVM was killed, the laptop went to
+ * sleep or the NAS dropped, can pick up where it left off instead of starting over.
+ * <p>
+ * The scanner walks directories in a fixed order, sorted by name, depth first, and finishes every file of a directory
+ * before this counts the directory as done. Every so often, the writer is flushed, so everything that's been emitted is
+ * committed, and the last directory in walk order that's done, with everything before it also done, is recorded in
+ * scan_checkpoints. The names of the files in those directories go in scan_checkpoint_files in the same transaction,
+ * since working out deletes needs every path the scan saw, including the ones a resumed scan doesn't walk again. See
+ * {@link #encodeFileNames} for how they're kept.
+ * <p>
+ * A scan with the same scan id as a checkpoint resumes it. Directories at or before the checkpoint in walk order are
+ * done, and whole subtrees of them are skipped. Files changed in them since the checkpoint aren't noticed until the
+ * next scan, which is why a checkpoint that's too old is thrown away instead. Once the walk is done, the checkpoint
+ * says so, and a scan that resumes it only has the deletes left to work out, which it does from the recorded paths.
+ * When the build finishes, the checkpoint is deleted.
+ * <p>
+ * A {@link BulkCatalogLoader} holds a write transaction open between flushes, so a checkpoint for a bulk load goes in
+ * that transaction, on the loader's connection, along with the staged events it covers.
+ * <p>
+ * Settings:
+ * <ul>
+ *     <li>ScanCheckpoint.enabled: whether to record checkpoints and resume from them (true)</li>
+ *     <li>ScanCheckpoint.scanId: which checkpoint to record to and resume from (the root's absolute path)</li>
+ *     <li>ScanCheckpoint.intervalSeconds: how often to record one (60)</li>
+ *     <li>ScanCheckpoint.maxAgeHours: how old a checkpoint can be and still be resumed (48)</li>
+ * </ul>
+ */
+public class ScanCheckpoint {
+    private final BasicDataSource dataSource;
+    private final String scanId;
+    private final long intervalMillis;
+    /**
+     * When the scan that started the checkpoint started, which is this one, unless it resumed one.
+     */
+    private final long started;
+    /**
+     * The last directory done as of the checkpoint this scan resumed, or null if it didn't resume one.
+     */
+    private final Path resumedThrough;
+    private final boolean resumedWalkComplete;
+    /**
+     * Directories that have been walked or are being walked, in walk order, that aren't in a checkpoint yet. Only the
+     * walker thread touches it.
+     */
+    private final Deque<Directory> pending = new ArrayDeque<>();
+    private long lastCheckpointMillis = System.currentTimeMillis();
+
+    /**
+     * One directory's worth of files on their way through a scan.
+     */
+    public static class Directory {
+        private final Path relDir;
+        private final List<String> fileNames = new ArrayList<>();
+        /**
+         * Files that have been handed to the lookup stage and aren't done yet, plus one until the walker has handed
+         * them all over.
+         */
+        private final AtomicInteger outstanding = new AtomicInteger(1);
+
+        private Directory(Path relDir) {
+            this.relDir = relDir;
+        }
+
+        /**
+         * Called by the walker for each file, before handing it to the lookup stage.
+         */
+        public void fileFound(String fileName) {
+            fileNames.add(fileName);
+            outstanding.incrementAndGet();
+        }
+
+        /**
+         * Called once a file's event has been emitted, or once it's known not to need one.
+         */
+        public void fileDone() {
+            outstanding.decrementAndGet();
+        }
+
+        private boolean isDone() {
+            return outstanding.get() == 0;
+        }
+    }
+
+    private ScanCheckpoint(BasicDataSource dataSource, String scanId, long intervalMillis, long started,
+                           Path resumedThrough, boolean resumedWalkComplete) {
+        this.dataSource = dataSource;
+        this.scanId = scanId;
+        this.intervalMillis = intervalMillis;
+        this.started = started;
+        this.resumedThrough = resumedThrough;
+        this.resumedWalkComplete = resumedWalkComplete;
+    }
+
+    /**
+     * Finds the checkpoint for the scan, if there is one, or starts a new one.
+     *
+     * @param started when the scan started, which a scan that resumes the checkpoint gets from {@link #started()}
+     * @return the checkpoint, or null if checkpoints are turned off
+     */
+    public static ScanCheckpoint open(BasicDataSource dataSource, Path root, long started,
+                                      Map<String, String> settings) throws SQLException {
+        return open(dataSource, root, started, true, settings);
+    }
+
+    /**
+     * @param resume false to start a new checkpoint even if there's one to resume, like when what it covered is gone
+     */
+    public static ScanCheckpoint open(BasicDataSource dataSource, Path root, long started, boolean resume,
+                                      Map<String, String> settings) throws SQLException {
+        if (!Boolean.parseBoolean(settings.getOrDefault("ScanCheckpoint.enabled", "true"))) {
+            return null;
+        }
+        String scanId = settings.getOrDefault("ScanCheckpoint.scanId", root.toAbsolutePath().toString());
+        long intervalMillis = TimeUnit.SECONDS.toMillis(
+                Long.parseLong(settings.getOrDefault("ScanCheckpoint.intervalSeconds", "60")));
+        long maxAgeMillis = TimeUnit.HOURS.toMillis(
+                Long.parseLong(settings.getOrDefault("ScanCheckpoint.maxAgeHours", "48")));
+        try (Connection connection = dataSource.getConnection()) {
+            try (PreparedStatement select = connection.prepareStatement(
+                    "select last_directory, walk_complete, updated, started from scan_checkpoints where scan_id = ?")) {
+                select.setString(1, scanId);
+                try (ResultSet resultSet = select.executeQuery()) {
+                    if (resultSet.next()) {
+                        String lastDirectory = resultSet.getString(1);
+                        boolean walkComplete = resultSet.getBoolean(2);
+                        long updated = resultSet.getLong(3);
+                        if (resume && lastDirectory != null
+                                && System.currentTimeMillis() - updated <= maxAgeMillis) {
+                            System.out.println("Resuming scan " + scanId + " after "
+                                    + (lastDirectory.isEmpty() ? "the top directory" : lastDirectory)
+                                    + (walkComplete ? ", with the walk done" : ""));
+                            return new ScanCheckpoint(dataSource, scanId, intervalMillis, resultSet.getLong(4),
+                                    Paths.get(lastDirectory), walkComplete);
+                        }
+                        if (resume && lastDirectory != null) {
+                            System.out.println("Not resuming scan " + scanId + "; its checkpoint is too old");
+                        }
+                    }
+                }
+            }
+            delete(connection, scanId);
+            try (PreparedStatement insert = connection.prepareStatement("insert into scan_checkpoints" +
+                    "(scan_id, started, last_directory, walk_complete, updated) values(?, ?, null, 0, ?)")) {
+                insert.setString(1, scanId);
+                insert.setLong(2, started);
+                insert.setLong(3, System.currentTimeMillis());
+                insert.executeUpdate();
+            }
+        }
+        return new ScanCheckpoint(dataSource, scanId, intervalMillis, started, null, false);
+    }
+
+    /**
+     * @return whether the walk finished before, so there's nothing to walk this time
+     */
+    public boolean isWalkComplete() {
+        return resumedWalkComplete;
+    }
+
+    /**
+     * @return when the scan that started the checkpoint started, which for a resumed one is the time of the events it
+     * recorded before it was interrupted
+     */
+    public long started() {
+        return started;
+    }
+
+    /**
+     * @return whether this resumes a checkpoint that got somewhere
+     */
+    public boolean isResuming() {
+        return resumedThrough != null;
+    }
+
+    /**
+     * @return every directory with files in it that was done as of the checkpoint that's being resumed, in the same
+     * form as {@link CatalogStorage#directoryOf}
+     */
+    public Set<String> resumedDirectories() throws SQLException {
+        Set<String> directories = new HashSet<>();
+        if (resumedThrough == null) {
+            return directories;
+        }
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement select = connection.prepareStatement(
+                     "select directory from scan_checkpoint_files where scan_id = ?")) {
+            select.setString(1, scanId);
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    // Any file will do, since only its directory is kept.
+                    directories.add(CatalogStorage.directoryOf(
+                            Paths.get(resultSet.getString(1)).resolve("file").toString()));
+                }
+            }
+        }
+        return directories;
+    }
+
+    /**
+     * Adds the path of every file the checkpoint says has been seen.
+     */
+    public void addSeenPaths(Utf8KeyTable seenPaths) throws SQLException {
+        if (resumedThrough == null) {
+            return;
+        }
+        int added = 0;
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement select = connection.prepareStatement(
+                     "select directory, file_names from scan_checkpoint_files where scan_id = ?")) {
+            select.setString(1, scanId);
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    Path relDir = Paths.get(resultSet.getString(1));
+                    for (String fileName : decodeFileNames(resultSet.getString(2))) {
+                        seenPaths.add(relDir.resolve(fileName).toString());
+                        added++;
+                    }
+                }
+            }
+        }
+        System.out.println("Checkpoint already covers " + added + " files");
+    }
+
+    /**
+     * Whether the files directly in a directory were all done as of the checkpoint that's being resumed.
+     */
+    public boolean skipsFiles(Path relDir) {
+        return resumedThrough != null && compareInWalkOrder(relDir, resumedThrough) <= 0;
+    }
+
+    /**
+     * Whether everything under a directory was done as of the checkpoint that's being resumed, which it is if it comes
+     * before the checkpoint in walk order and the checkpoint isn't inside it.
+     */
+    public boolean skipsSubtree(Path relDir) {
+        return resumedWalkComplete
+                || (skipsFiles(relDir) && nameCount(relDir) > 0 && !resumedThrough.startsWith(relDir));
+    }
+
+    /**
+     * Starts tracking a directory, which the walker does before handing over any of its files.
+     */
+    public Directory directoryStarted(Path relDir) {
+        Directory directory = new Directory(relDir);
+        pending.addLast(directory);
+        return directory;
+    }
+
+    /**
+     * Called by the walker once it's handed over every file in a directory. Records a checkpoint if it's been long
+     * enough since the last one.
+     *
+     * @param writer what the scan's events go to, which gets flushed first, so that the checkpoint never claims a
+     *               file is done before its event is committed
+     */
+    public void directoryWalked(Directory directory, FileEventInserter writer) throws SQLException {
+        directory.fileDone();
+        if (System.currentTimeMillis() - lastCheckpointMillis >= intervalMillis) {
+            record(writer, false);
+        }
+    }
+
+    /**
+     * Records that the walk is done, once every file has gone through the pipeline. A scan that resumes after this goes
+     * straight to working out deletes.
+     */
+    public void walkComplete(FileEventInserter writer) throws SQLException {
+        record(writer, true);
+    }
+
+    /**
+     * Deletes the checkpoint, once the scan is done with it.
+     */
+    public void finish() throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            delete(connection, scanId);
+        }
+    }
+
+    private void record(FileEventInserter writer, boolean walkComplete) throws SQLException {
+        lastCheckpointMillis = System.currentTimeMillis();
+        // Taken before the flush, so everything they emitted is committed by the time it returns.
+        List<Directory> done = new ArrayList<>();
+        while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+            done.add(pending.removeFirst());
+        }
+        if (done.isEmpty() && !walkComplete) {
+            return;
+        }
+        if (writer instanceof BulkCatalogLoader) {
+            ((BulkCatalogLoader) writer).commitWith(connection -> save(connection, done, walkComplete));
+            return;
+        }
+        writer.flush();
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                save(connection, done, walkComplete);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private void save(Connection connection, List<Directory> done, boolean walkComplete) throws SQLException {
+        try (PreparedStatement insertFiles = connection.prepareStatement(
+                "insert or replace into scan_checkpoint_files(scan_id, directory, file_names) values(?, ?, ?)");
+             PreparedStatement update = connection.prepareStatement("update scan_checkpoints " +
+                     "set last_directory = coalesce(?, last_directory), walk_complete = ?, updated = ? " +
+                     "where scan_id = ?")) {
+            for (Directory directory : done) {
+                if (directory.fileNames.isEmpty()) {
+                    continue;
+                }
+                insertFiles.setString(1, scanId);
+                insertFiles.setString(2, directory.relDir.toString());
+                insertFiles.setString(3, encodeFileNames(directory.fileNames));
+                insertFiles.addBatch();
+            }
+            insertFiles.executeBatch();
+            update.setString(1, done.isEmpty() ? null : done.get(done.size() - 1).relDir.toString());
+            update.setBoolean(2, walkComplete);
+            update.setLong(3, System.currentTimeMillis());
+            update.setString(4, scanId);
+            update.executeUpdate();
+        }
+    }
+
+    /**
+     * A file name can have anything in it but a slash, newlines included, so each one is its length, a colon, and then
+     * the name.
+     */
+    static String encodeFileNames(List<String> fileNames) {
+        StringBuilder encoded = new StringBuilder();
+        for (String fileName : fileNames) {
+            encoded.append(fileName.length()).append(':').append(fileName);
+        }
+        return encoded.toString();
+    }
+
+    static List<String> decodeFileNames(String encoded) {
+        List<String> fileNames = new ArrayList<>();
+        int start = 0;
+        while (start < encoded.length()) {
+            int colon = encoded.indexOf(':', start);
+            int end = colon < 0 ? -1 : colon + 1 + parseLength(encoded.substring(start, colon));
+            if (end <= colon || end > encoded.length()) {
+                // From before names were encoded this way, when they were separated by newlines.
+                return List.of(encoded.split("\n"));
+            }
+            fileNames.add(encoded.substring(colon + 1, end));
+            start = end;
+        }
+        return fileNames;
+    }
+
+    /**
+     * @return the length, or -1 if it isn't one
+     */
+    private static int parseLength(String length) {
+        if (length.isEmpty() || length.length() > 9 || !length.chars().allMatch(Character::isDigit)) {
+            return -1;
+        }
+        return Integer.parseInt(length);
+    }
+
+    private static void delete(Connection connection, String scanId) throws SQLException {
+        for (String table : List.of("scan_checkpoint_files", "scan_checkpoints")) {
+            try (PreparedStatement delete = connection.prepareStatement(
+                    "delete from " + table + " where scan_id = ?")) {
+                delete.setString(1, scanId);
+                delete.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Compares directories in the order the scanner walks them: a directory comes before everything inside it, and
+     * directories with the same parent are in order of their names.
+     */
+    static int compareInWalkOrder(Path a, Path b) {
+        int names = Math.min(nameCount(a), nameCount(b));
+        for (int i = 0; i < names; i++) {
+            int comparison = a.getName(i).toString().compareTo(b.getName(i).toString());
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return Integer.compare(nameCount(a), nameCount(b));
+    }
+
+    /**
+     * The empty path, which is the top of the tree, still has one name, the empty one, as far as Path is concerned.
+     */
+    private static int nameCount(Path relDir) {
+        return relDir.toString().isEmpty() ? 0 : relDir.getNameCount();
+    }
+}
@@ -0,0 +1,45 @@
+package rds.mediaprocessor;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which messages about individual files get printed during a scan. A scan of the whole archive finds hundreds
+ * of thousands of files, and printing a line for each one costs real time, especially on a Windows console, and buries
+ * everything else. Progress is reported separately, by {@link ProgressReporter}.
+ * <p>
+ * "ScanLog.mode" is one of:
+ * <ul>
+ *     <li>quiet, the default: nothing per file</li>
+ *     <li>sample: one message out of every "ScanLog.sampleEvery" (1000), to show what kind of thing is happening</li>
+ *     <li>verbose: every message</li>
+ * </ul>
+ * Errors aren't per-file chatter, and they're printed no matter what.
+ */
+public class ScanLog {
+    private final String mode;
+    private final long sampleEvery;
+    private final AtomicLong messages = new AtomicLong();
+
+    public ScanLog(Map<String, String> settings) {
+        mode = settings.getOrDefault("ScanLog.mode", "quiet");
+        sampleEvery = Long.parseLong(settings.getOrDefault("ScanLog.sampleEvery", "1000"));
+        if (!"quiet".equals(mode) && !"sample".equals(mode) && !"verbose".equals(mode)) {
+            throw new IllegalStateException("Unknown scan log mode: " + mode);
+        }
+    }
+
+    /**
+     * A message about one file, like that it was updated.
+     */
+    public void file(String message) {
+        if ("verbose".equals(mode)) {
+            System.out.println(message);
+        } else if ("sample".equals(mode)) {
+            long count = messages.incrementAndGet();
+            if (count % sampleEvery == 1 || sampleEvery == 1) {
+                System.out.println(message + " [" + count + " so far]");
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package rds.mediaprocessor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Everything measured about one build of a catalog. Each build gets its own, so nothing carries over from one build to
+ * the next, or from one test to the next. Times are in microseconds.
+ * <ul>
+ *     <li>lookupMicros: finding the last event of a file</li>
+ *     <li>hashMicros: reading and hashing a file</li>
+ *     <li>queueWaitMicros: how long an event waited to be committed</li>
+ *     <li>batchSize: how many events went into each commit</li>
+ *     <li>commitMicros: how long each commit took</li>
+ * </ul>
+ * {@link MetricsPublisher} makes it visible while the build is running.
+ */
+public class ScanMetrics implements ScanMetricsMXBean {
+    public final LongAdder filesVisited = new LongAdder();
+    public final LongAdder filesHashed = new LongAdder();
+    public final LongAdder bytesRead = new LongAdder();
+    /**
+     * Files that weren't read because their size and mtime hadn't changed, and how big they are.
+     */
+    public final LongAdder filesSkipped = new LongAdder();
+    public final LongAdder bytesSkipped = new LongAdder();
+    /**
+     * Files that weren't looked up in the db because the path filter said the catalog has never had them.
+     */
+    public final LongAdder lookupsFiltered = new LongAdder();
+    public final LongAdder eventsQueued = new LongAdder();
+    public final LongAdder eventsCommitted = new LongAdder();
+    public final Histogram lookupMicros = new Histogram();
+    public final Histogram hashMicros = new Histogram();
+    public final Histogram queueWaitMicros = new Histogram();
+    public final Histogram batchSize = new Histogram();
+    public final Histogram commitMicros = new Histogram();
+    private volatile IntSupplier queueDepth = () -> 0;
+    private volatile int queueCapacity;
+
+    /**
+     * Tells the metrics where to look to see how full the writer's queue is.
+     */
+    public void watchQueue(IntSupplier queueDepth, int queueCapacity) {
+        this.queueDepth = queueDepth;
+        this.queueCapacity = queueCapacity;
+    }
+
+    @Override
+    public long getFilesVisited() {
+        return filesVisited.sum();
+    }
+
+    @Override
+    public long getFilesHashed() {
+        return filesHashed.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getFilesSkipped() {
+        return filesSkipped.sum();
+    }
+
+    @Override
+    public long getBytesSkipped() {
+        return bytesSkipped.sum();
+    }
+
+    @Override
+    public long getLookupsFiltered() {
+        return lookupsFiltered.sum();
+    }
+
+    @Override
+    public long getEventsQueued() {
+        return eventsQueued.sum();
+    }
+
+    @Override
+    public long getEventsCommitted() {
+        return eventsCommitted.sum();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.getAsInt();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @Override
+    public Histogram.Snapshot getLookupMicros() {
+        return lookupMicros.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getHashMicros() {
+        return hashMicros.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getQueueWaitMicros() {
+        return queueWaitMicros.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getBatchSize() {
+        return batchSize.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getCommitMicros() {
+        return commitMicros.snapshot();
+    }
+
+    /**
+     * Everything at once, flattened, with histograms as "name.p99" and so on. The keys are always the same and in the
+     * same order, so they work as CSV columns.
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> snapshot = new LinkedHashMap<>();
+        snapshot.put("time", System.currentTimeMillis());
+        snapshot.put("filesVisited", getFilesVisited());
+        snapshot.put("filesHashed", getFilesHashed());
+        snapshot.put("bytesRead", getBytesRead());
+        snapshot.put("filesSkipped", getFilesSkipped());
+        snapshot.put("bytesSkipped", getBytesSkipped());
+        snapshot.put("lookupsFiltered", getLookupsFiltered());
+        snapshot.put("eventsQueued", getEventsQueued());
+        snapshot.put("eventsCommitted", getEventsCommitted());
+        snapshot.put("queueDepth", getQueueDepth());
+        snapshot.put("queueCapacity", getQueueCapacity());
+        putHistogram(snapshot, "lookupMicros", getLookupMicros());
+        putHistogram(snapshot, "hashMicros", getHashMicros());
+        putHistogram(snapshot, "queueWaitMicros", getQueueWaitMicros());
+        putHistogram(snapshot, "batchSize", getBatchSize());
+        putHistogram(snapshot, "commitMicros", getCommitMicros());
+        return snapshot;
+    }
+
+    private static void putHistogram(Map<String, Number> snapshot, String name, Histogram.Snapshot histogram) {
+        snapshot.put(name + ".count", histogram.getCount());
+        snapshot.put(name + ".mean", histogram.getMean());
+        snapshot.put(name + ".p50", histogram.getP50());
+        snapshot.put(name + ".p90", histogram.getP90());
+        snapshot.put(name + ".p99", histogram.getP99());
+        snapshot.put(name + ".p999", histogram.getP999());
+        snapshot.put(name + ".max", histogram.getMax());
+    }
+
+    /**
+     * A line or two for the end of a build.
+     */
+    public String summary() {
+        Histogram.Snapshot commits = getCommitMicros();
+        Histogram.Snapshot queueWait = getQueueWaitMicros();
+        return getFilesVisited() + " files visited, " + getFilesHashed() + " hashed, " + getFilesSkipped()
+                + " unchanged, " + getBytesRead() / (1024 * 1024) + " MB read, " + getEventsCommitted()
+                + " events committed\n"
+                + commits.getCount() + " commits: p50 " + commits.getP50() / 1000 + " ms, p99 "
+                + commits.getP99() / 1000 + " ms, max " + commits.getMax() / 1000 + " ms; queue wait p99 "
+                + queueWait.getP99() / 1000 + " ms";
+    }
+}
@@ -0,0 +1,36 @@
+package rds.mediaprocessor;
+
+/**
+ * What a build looks like from JMX, while it's running. See {@link ScanMetrics}.
+ */
+public interface ScanMetricsMXBean {
+    long getFilesVisited();
+
+    long getFilesHashed();
+
+    long getBytesRead();
+
+    long getFilesSkipped();
+
+    long getBytesSkipped();
+
+    long getLookupsFiltered();
+
+    long getEventsQueued();
+
+    long getEventsCommitted();
+
+    int getQueueDepth();
+
+    int getQueueCapacity();
+
+    Histogram.Snapshot getLookupMicros();
+
+    Histogram.Snapshot getHashMicros();
+
+    Histogram.Snapshot getQueueWaitMicros();
+
+    Histogram.Snapshot getBatchSize();
+
+    Histogram.Snapshot getCommitMicros();
+}
@@ -0,0 +1,144 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Computes SHA-1 checksums of files straight off a {@link FileChannel}. Small and medium files are read into large,
+ * direct buffers that are shared between threads through a pool, so there's no copying through streams and no new
+ * buffer per file. Files at or above the mapping threshold are memory-mapped a region at a time instead, which lets the
+ * OS page them in without any read calls at all. Each thread keeps its own {@link MessageDigest}, since getting a new
+ * one for every file isn't free.
+ * <p>
+ * Instances are thread safe.
+ */
+public class Sha1Hasher {
+    public static final int DIGEST_LENGTH = 20;
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    public static final long DEFAULT_MAP_THRESHOLD = 64L << 20;
+    /**
+     * Mapped regions are kept well under 2GB, which is the most a single MappedByteBuffer can cover.
+     */
+    private static final long MAP_REGION_SIZE = 256L << 20;
+
+    /**
+     * The default hasher, which is the one the scanners use.
+     */
+    public static final Sha1Hasher DEFAULT = new Sha1Hasher(DEFAULT_BUFFER_SIZE, DEFAULT_MAP_THRESHOLD);
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM is supposed to have SHA-1", e);
+        }
+    });
+
+    private final int bufferSize;
+    private final long mapThreshold;
+    private final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param bufferSize   size of the direct buffers used to read files
+     * @param mapThreshold files this size or bigger are memory-mapped instead of read; use {@link Long#MAX_VALUE} to
+     *                     never map anything
+     */
+    public Sha1Hasher(int bufferSize, long mapThreshold) {
+        this.bufferSize = bufferSize;
+        this.mapThreshold = mapThreshold;
+    }
+
+    /**
+     * Hashes a file into a caller-supplied array, so a caller hashing lots of files doesn't have to allocate anything
+     * per file.
+     *
+     * @param out receives the 20 bytes of the digest, starting at index 0
+     */
+    public void hash(Path path, byte[] out) throws IOException {
+        hash(path, out, null);
+    }
+
+    /**
+     * Hashes a file, and shows everything that's read to a fingerprint sampler on the way, so the file doesn't have to
+     * be read again for its fingerprint.
+     *
+     * @param sampler started on the file here, or null if there's no fingerprint wanted
+     */
+    public void hash(Path path, byte[] out, Fingerprint.Sampler sampler) throws IOException {
+        MessageDigest digest = DIGESTS.get();
+        digest.reset();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (sampler != null) {
+                sampler.start(size);
+            }
+            if (size >= mapThreshold) {
+                updateMapped(digest, channel, size, sampler);
+            } else {
+                updateBuffered(digest, channel, sampler);
+            }
+        }
+        try {
+            digest.digest(out, 0, DIGEST_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException("Need " + DIGEST_LENGTH + " bytes to put the digest in", e);
+        }
+    }
+
+    public String hashHex(Path path) throws IOException {
+        return hashHex(path, null);
+    }
+
+    public String hashHex(Path path, Fingerprint.Sampler sampler) throws IOException {
+        byte[] out = new byte[DIGEST_LENGTH];
+        hash(path, out, sampler);
+        return Hex.encodeHexString(out);
+    }
+
+    private void updateBuffered(MessageDigest digest, FileChannel channel, Fingerprint.Sampler sampler)
+            throws IOException {
+        ByteBuffer buffer = borrowBuffer();
+        try {
+            long position = 0;
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                if (sampler != null) {
+                    sampler.update(buffer, position);
+                }
+                position += buffer.remaining();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            buffer.clear();
+            bufferPool.offer(buffer);
+        }
+    }
+
+    private static void updateMapped(MessageDigest digest, FileChannel channel, long size,
+                                     Fingerprint.Sampler sampler) throws IOException {
+        for (long position = 0; position < size; position += MAP_REGION_SIZE) {
+            long length = Math.min(MAP_REGION_SIZE, size - position);
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            if (sampler != null) {
+                sampler.update(region, position);
+            }
+            digest.update(region);
+        }
+    }
+
+    private ByteBuffer borrowBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+    }
+}
@@ -0,0 +1,129 @@
+package rds.mediaprocessor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A compact set of strings, stored as UTF-8 bytes packed end to end in one big array, with an open-addressing hash
+ * table over them. Each key gets an ordinal, in the order keys were added, that callers can use to index into their own
+ * arrays of values. There's no removal.
+ * <p>
+ * This exists because a catalog can have hundreds of thousands of paths, and a HashMap of Strings spends several times
+ * more memory on object headers and pointers than on the paths themselves.
+ * <p>
+ * Not thread safe.
+ */
+public class Utf8KeyTable {
+    private byte[] arena = new byte[1 << 16];
+    private int arenaUsed;
+    private int[] keyOffsets = new int[1024];
+    private int[] keyLengths = new int[1024];
+    private int[] keyHashes = new int[1024];
+    /**
+     * Hash slots holding ordinal + 1, so that 0 can mean empty. Always a power of two in size, and never more than half
+     * full.
+     */
+    private int[] slots = new int[2048];
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    public int find(String key) {
+        return find(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the ordinal of the key, or -1 if it isn't in the table
+     */
+    public int find(byte[] key) {
+        int hash = hash(key);
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int ordinal = slots[slot] - 1;
+            if (keyHashes[ordinal] == hash && keyEquals(ordinal, key)) {
+                return ordinal;
+            }
+        }
+        return -1;
+    }
+
+    public int add(String key) {
+        return add(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Adds a key if it isn't already present.
+     *
+     * @return the ordinal of the key, whether it was just added or not
+     */
+    public int add(byte[] key) {
+        int hash = hash(key);
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        for (; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int ordinal = slots[slot] - 1;
+            if (keyHashes[ordinal] == hash && keyEquals(ordinal, key)) {
+                return ordinal;
+            }
+        }
+        int ordinal = size;
+        if (ordinal == keyOffsets.length) {
+            int newLength = keyOffsets.length * 2;
+            keyOffsets = Arrays.copyOf(keyOffsets, newLength);
+            keyLengths = Arrays.copyOf(keyLengths, newLength);
+            keyHashes = Arrays.copyOf(keyHashes, newLength);
+        }
+        if (arenaUsed + key.length > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaUsed + key.length));
+        }
+        System.arraycopy(key, 0, arena, arenaUsed, key.length);
+        keyOffsets[ordinal] = arenaUsed;
+        keyLengths[ordinal] = key.length;
+        keyHashes[ordinal] = hash;
+        arenaUsed += key.length;
+        slots[slot] = ordinal + 1;
+        size++;
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return ordinal;
+    }
+
+    public String key(int ordinal) {
+        return new String(arena, keyOffsets[ordinal], keyLengths[ordinal], StandardCharsets.UTF_8);
+    }
+
+    private boolean keyEquals(int ordinal, byte[] key) {
+        int offset = keyOffsets[ordinal];
+        return Arrays.equals(arena, offset, offset + keyLengths[ordinal], key, 0, key.length);
+    }
+
+    private void rehash(int newLength) {
+        int[] newSlots = new int[newLength];
+        int mask = newLength - 1;
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            int slot = keyHashes[ordinal] & mask;
+            while (newSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newSlots[slot] = ordinal + 1;
+        }
+        slots = newSlots;
+    }
+
+    private static int hash(byte[] key) {
+        int hash = 0x811c9dc5;
+        for (byte b : key) {
+            hash = (hash ^ b) * 0x01000193;
+        }
+        // FNV alone leaves the low bits, which pick the slot, a bit weak. Finish with murmur3's mixer.
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
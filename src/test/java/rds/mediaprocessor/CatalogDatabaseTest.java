@@ -0,0 +1,93 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CatalogDatabaseTest {
+    private static final String INSERT = "insert into file_events(event_type, file_path, time, storage_location) " +
+            "values('create', 'photo', 1, 'here')";
+
+    private Path tempDirectory;
+    private Path dbLocation;
+
+    @BeforeEach
+    public void createTempDir() throws Exception {
+        tempDirectory = Files.createTempDirectory("mediaprocessor-database-");
+        dbLocation = tempDirectory.resolve("db");
+    }
+
+    @AfterEach
+    public void deleteTempDir() throws Exception {
+        FileUtils.forceDelete(tempDirectory.toFile());
+    }
+
+    @Test
+    void readersCanReadWhileAWriteIsInProgress() throws Exception {
+        try (CatalogDatabase database = CatalogDatabase.open(dbLocation, Map.of());
+             Connection writer = database.writer().getConnection();
+             Connection reader = database.readers().getConnection()) {
+            // Given the writer has written something and not committed it yet
+            writer.setAutoCommit(false);
+            try (Statement statement = writer.createStatement()) {
+                statement.execute(INSERT);
+            }
+
+            // Then a reader isn't held up, and sees what was there before
+            assertThat(count(reader), equalTo(0));
+
+            // And once it's committed, sees that
+            writer.commit();
+            assertThat(count(reader), equalTo(1));
+        }
+    }
+
+    @Test
+    void readersCantWrite() throws Exception {
+        try (CatalogDatabase database = CatalogDatabase.open(dbLocation, Map.of());
+             Connection reader = database.readers().getConnection();
+             Statement statement = reader.createStatement()) {
+            SQLException e = assertThrows(SQLException.class, () -> statement.execute(INSERT));
+            assertThat(e.getMessage(), containsString("readonly"));
+        }
+    }
+
+    @Test
+    void closingLeavesNoWriteAheadLog() throws Exception {
+        // Given the catalog's had something written to it
+        try (CatalogDatabase database = CatalogDatabase.open(dbLocation, Map.of());
+             Connection writer = database.writer().getConnection();
+             Statement statement = writer.createStatement()) {
+            statement.execute(INSERT);
+            assertThat(Files.exists(Path.of(dbLocation + "-wal")), is(true));
+        }
+
+        // Then once it's closed, it's all in the db, and the log is gone
+        assertThat(Files.exists(Path.of(dbLocation + "-wal")), is(false));
+        try (CatalogDatabase database = CatalogDatabase.open(dbLocation, Map.of());
+             Connection reader = database.readers().getConnection()) {
+            assertThat(count(reader), equalTo(1));
+        }
+    }
+
+    private static int count(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select count(*) from file_state")) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+}
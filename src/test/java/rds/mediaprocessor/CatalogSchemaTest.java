@@ -0,0 +1,92 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class CatalogSchemaTest {
+    private Path tempDirectory;
+
+    @BeforeEach
+    public void createTempDir() throws Exception {
+        tempDirectory = Files.createTempDirectory("mediaprocessor-schema-");
+    }
+
+    @AfterEach
+    public void deleteTempDir() throws Exception {
+        FileUtils.forceDelete(tempDirectory.toFile());
+    }
+
+    /**
+     * The schema is written out twice, once in create-schema.sql for the scripts, and once in the upgrades, so this
+     * checks that they say the same thing.
+     */
+    @Test
+    void aCatalogFromTheScriptIsTheSameAsAnUpgradedOne() throws Exception {
+        String script = FileUtils.readFileToString(new File("create-schema.sql"), "UTF-8");
+        try (Connection created = DriverManager.getConnection("jdbc:sqlite:" + tempDirectory.resolve("created"));
+             Connection upgraded = DriverManager.getConnection("jdbc:sqlite:" + tempDirectory.resolve("upgraded"))) {
+            try (Statement statement = created.createStatement()) {
+                // The whole script, rather than only its first statement
+                statement.executeUpdate(script);
+            }
+            CatalogSchema.upgrade(upgraded);
+
+            assertThat(userVersion(created), equalTo(CatalogSchema.CURRENT_VERSION));
+            assertThat(userVersion(upgraded), equalTo(CatalogSchema.CURRENT_VERSION));
+            Map<String, String> schema = schema(created);
+            assertThat(schema.keySet(), hasItems("table events", "view file_events", "trigger file_events_insert",
+                    "index file_state_pending", "table scan_checkpoints"));
+            assertThat(schema(upgraded), equalTo(schema));
+        }
+    }
+
+    /**
+     * @return the sql of everything in sqlite_master, by type and name, without the comments, spacing and "if not
+     * exists" that don't change what it creates
+     */
+    private static Map<String, String> schema(Connection connection) throws SQLException {
+        Map<String, String> schema = new TreeMap<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select type, name, tbl_name, sql from sqlite_master")) {
+            while (resultSet.next()) {
+                String sql = resultSet.getString(4);
+                schema.put(resultSet.getString(1) + " " + resultSet.getString(2),
+                        resultSet.getString(3) + ": " + (sql == null ? "" : normalize(sql)));
+            }
+        }
+        return schema;
+    }
+
+    private static String normalize(String sql) {
+        return sql.replaceAll("--[^\n]*", "")
+                .toLowerCase()
+                .replace(" if not exists", "")
+                .replaceAll("\\s+", " ")
+                .replaceAll(" ?([(),;]) ?", "$1")
+                .trim();
+    }
+
+    private static int userVersion(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("pragma user_version")) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+}
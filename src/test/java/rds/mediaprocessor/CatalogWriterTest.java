@@ -0,0 +1,246 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static rds.mediaprocessor.DbNames.*;
+
+public class CatalogWriterTest {
+    private static final String CHECKSUM_1 = "5a6df720540c20d95d530d3fd6885511223d5d20";
+    private static final String CHECKSUM_2 = "0b9c2625dc21ef05f6ad4ddf47c5f203837aa32c";
+
+    private Path tempDirectory;
+    private Path dbLocation;
+    private CatalogDatabase database;
+
+    @BeforeEach
+    public void openCatalog() throws Exception {
+        tempDirectory = Files.createTempDirectory("mediaprocessor-writer-");
+        dbLocation = tempDirectory.resolve("db");
+        database = CatalogDatabase.open(dbLocation, Map.of());
+    }
+
+    @AfterEach
+    public void deleteTempDir() throws Exception {
+        database.close();
+        FileUtils.forceDelete(tempDirectory.toFile());
+    }
+
+    @Test
+    void aFullQueueHoldsUpWhoeverIsAdding() throws Exception {
+        try (CatalogWriter writer = writer(null, Map.of("CatalogWriter.queueCapacity", "1"))) {
+            CompletableFuture<Void> third;
+            try (Connection blocker = holdWriteLock()) {
+                // Given the writer is stuck committing the first event, and the second one fills the queue
+                writer.addToBatch(created("a/photo", CHECKSUM_1));
+                waitForEmptyQueue(writer);
+                writer.addToBatch(created("b/photo", CHECKSUM_1));
+
+                // When a third one is added
+                third = CompletableFuture.runAsync(() -> writer.addToBatch(created("c/photo", CHECKSUM_1)));
+
+                // Then it waits for room
+                assertThrows(TimeoutException.class, () -> third.get(500, TimeUnit.MILLISECONDS));
+            }
+            // And goes in once the writer can get on with it
+            third.get(10, TimeUnit.SECONDS);
+        }
+        assertThat(count("select count(*) from file_state"), equalTo(3));
+    }
+
+    @Test
+    void flushReturnsOnceEverythingBeforeItIsCommitted() throws Exception {
+        try (CatalogWriter writer = writer(null, Map.of())) {
+            CompletableFuture<Void> flushed;
+            try (Connection blocker = holdWriteLock()) {
+                writer.addToBatch(created("a/photo", CHECKSUM_1));
+                writer.addToBatch(created("b/photo", CHECKSUM_1));
+
+                flushed = CompletableFuture.runAsync(writer::flush);
+
+                // Not while the events can't be committed
+                assertThrows(TimeoutException.class, () -> flushed.get(500, TimeUnit.MILLISECONDS));
+            }
+            flushed.get(10, TimeUnit.SECONDS);
+            // And as soon as it returns, anybody else can see them
+            assertThat(count("select count(*) from file_state"), equalTo(2));
+        }
+    }
+
+    @Test
+    void closeWritesEverythingThatsQueued() throws Exception {
+        CatalogWriter writer = writer(null, Map.of());
+        for (int i = 0; i < 1000; i++) {
+            writer.addToBatch(created("folder" + i / 100 + "/photo" + i, CHECKSUM_1));
+        }
+
+        writer.close();
+
+        assertThat(count("select count(*) from file_state"), equalTo(1000));
+        assertThat(count("select count(*) from events"), equalTo(1000));
+    }
+
+    @Test
+    void aWriterThatFailedFailsTheNextAdd() throws Exception {
+        CatalogWriter writer = failedWriter(null);
+
+        assertThrows(IllegalStateException.class, () -> writer.addToBatch(created("b/photo", CHECKSUM_1)));
+        assertThrows(IllegalStateException.class, writer::close);
+    }
+
+    @Test
+    void aWriterThatFailedFailsTheNextFlush() throws Exception {
+        CatalogWriter writer = failedWriter(null);
+
+        assertThrows(IllegalStateException.class, writer::flush);
+    }
+
+    @Test
+    void aWriterThatFailedFailsClose() throws Exception {
+        CatalogWriter writer = failedWriter(null);
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, writer::close);
+        assertThat(e.getCause(), instanceOf(SQLException.class));
+    }
+
+    @Test
+    void withAFixedTimeTheLaterEventForAFileReplacesTheEarlierOne() throws Exception {
+        try (CatalogWriter writer = writer(1000L, Map.of())) {
+            // Given a file with an event that's already committed at the writer's time
+            writer.addToBatch(created("a/photo", CHECKSUM_1));
+            writer.flush();
+
+            // When it has another, and one more in the same batch after that
+            writer.addToBatch(new MainBuildCatalog.FileEvent(EventTypes.update,
+                    new MainBuildCatalog.FileInfo("a/photo", CHECKSUM_1, 3, 1)));
+            writer.addToBatch(new MainBuildCatalog.FileEvent(EventTypes.update,
+                    new MainBuildCatalog.FileInfo("a/photo", CHECKSUM_2, 4, 1)));
+            writer.flush();
+        }
+
+        // Then the writer carries on, and the last one is what's recorded
+        assertThat(count("select count(*) from events"), equalTo(1));
+        assertThat(count("select count(*) from file_events where sha1 = '" + CHECKSUM_2 + "' and size = 4"),
+                equalTo(1));
+        assertThat(count("select count(*) from current_state where sha1 = '" + CHECKSUM_2 + "' and size = 4"),
+                equalTo(1));
+    }
+
+    @Test
+    void withAFixedTimeOnlyACollisionIsRetried() throws Exception {
+        CatalogWriter writer = failedWriter(1000L);
+
+        // The failure is the first one, with nothing replaced after it
+        IllegalStateException e = assertThrows(IllegalStateException.class, writer::close);
+        assertThat(e.getCause().getMessage(), containsString("because it is a view"));
+        assertThat(e.getCause().getSuppressed(), emptyArray());
+    }
+
+    @Test
+    void aWriterThatNothingAsksForAPathFilterDoesntKeepOne() throws Exception {
+        try (CatalogWriter writer = writer(null, Map.of())) {
+            writer.addToBatch(created("a/photo", CHECKSUM_1));
+        }
+
+        assertThat(count("select count(*) from path_filter"), equalTo(0));
+    }
+
+    @Test
+    void aPathFilterAskedForPartwayHasEverythingTheWriterWrote() throws Exception {
+        // Given a writer that's part of the way through writing events
+        CatalogWriter writer = writer(null, Map.of("CatalogWriter.initialBatchSize", "10",
+                "CatalogWriter.minBatchSize", "10", "CatalogWriter.maxBatchSize", "10"));
+        for (int i = 0; i < 500; i++) {
+            writer.addToBatch(created("folder/photo" + i, CHECKSUM_1));
+        }
+
+        // When something asks for the path filter, and the writer carries on
+        PathFilter filter = writer.pathFilter();
+        for (int i = 500; i < 1000; i++) {
+            writer.addToBatch(created("folder/photo" + i, CHECKSUM_1));
+        }
+        writer.close();
+
+        // Then it has every path, and it's up to date, so it's saved
+        filter = writer.pathFilter();
+        for (int i = 0; i < 1000; i++) {
+            assertThat(filter.mightContain("folder/photo" + i), is(true));
+        }
+        assertThat(count("select count(*) from path_filter"), equalTo(1));
+    }
+
+    private CatalogWriter writer(Long insertTimestamp, Map<String, String> settings) {
+        return new CatalogWriter(database.writer(), insertTimestamp, new ScanMetrics(), settings);
+    }
+
+    /**
+     * A writer that's failed with an SQL error, once it's written one event, because the trigger it writes through has
+     * gone.
+     */
+    private CatalogWriter failedWriter(Long insertTimestamp) throws Exception {
+        CatalogWriter writer = writer(insertTimestamp, Map.of());
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbLocation);
+             Statement statement = connection.createStatement()) {
+            statement.execute("drop trigger file_events_insert");
+        }
+        try {
+            writer.addToBatch(created("a/photo", CHECKSUM_1));
+        } catch (IllegalStateException e) {
+            // It can fail before this add has even returned.
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!writer.hasFailed()) {
+            assertThat("Writer didn't fail", System.currentTimeMillis(), lessThan(deadline));
+            Thread.sleep(10);
+        }
+        return writer;
+    }
+
+    /**
+     * Takes the catalog's write lock, so the writer can't commit until it's closed, for a good while shorter than the
+     * writer's busy timeout.
+     */
+    private Connection holdWriteLock() throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbLocation);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("begin immediate");
+        }
+        return connection;
+    }
+
+    private static void waitForEmptyQueue(CatalogWriter writer) throws InterruptedException {
+        while (writer.getCurrentQueuedInserts() > 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    private int count(String query) throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbLocation);
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(query)) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+
+    private static MainBuildCatalog.FileEvent created(String relPath, String sha1Hex) {
+        return new MainBuildCatalog.FileEvent(EventTypes.create, new MainBuildCatalog.FileInfo(relPath, sha1Hex, 2, 1));
+    }
+}
@@ -0,0 +1,126 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Each format gets a tiny, hand-built file in three versions: the original, one with different metadata, and one with
+ * different content. Only the content should change the content checksum. The files aren't real images, but they have
+ * the structure the hashers walk.
+ */
+public class ContentHasherTest {
+    private Path tempDirectory;
+
+    @BeforeEach
+    public void createTempDir() throws Exception {
+        tempDirectory = Files.createTempDirectory("mediaprocessor-content-");
+    }
+
+    @AfterEach
+    public void deleteTempDir() throws Exception {
+        FileUtils.forceDelete(tempDirectory.toFile());
+    }
+
+    @Test
+    void jpegIgnoresAppSegmentsAndComments() throws Exception {
+        String original = hash("a.jpg", jpeg("2001:01:01", "pixels"));
+        assertThat(original, notNullValue());
+        assertThat(hash("b.jpg", jpeg("2024:12:31 with a longer timestamp", "pixels")), equalTo(original));
+        assertThat(hash("c.jpg", jpeg("2001:01:01", "other pixels")), not(equalTo(original)));
+    }
+
+    @Test
+    void pngIgnoresAncillaryChunks() throws Exception {
+        String original = hash("a.png", png("Title", "pixels"));
+        assertThat(original, notNullValue());
+        assertThat(hash("b.png", png("A different title", "pixels")), equalTo(original));
+        assertThat(hash("c.png", png("Title", "other pixels")), not(equalTo(original)));
+    }
+
+    @Test
+    void mp4OnlyHashesMediaData() throws Exception {
+        String original = hash("a.mp4", mp4("created 2001", "frames"));
+        assertThat(original, notNullValue());
+        assertThat(hash("b.mov", mp4("created 2024 somewhere else", "frames")), equalTo(original));
+        assertThat(hash("c.mp4", mp4("created 2001", "other frames")), not(equalTo(original)));
+    }
+
+    @Test
+    void filesThatArentWhatTheySayHaveNoContentChecksum() throws Exception {
+        assertThat(hash("fake.jpg", "not a jpeg".getBytes(StandardCharsets.UTF_8)), nullValue());
+        assertThat(hash("truncated.png", ByteBuffer.allocate(12).put(png("Title", "pixels"), 0, 12).array()),
+                nullValue());
+        assertThat(hash("notes.txt", "text".getBytes(StandardCharsets.UTF_8)), nullValue());
+    }
+
+    private String hash(String name, byte[] content) throws Exception {
+        Path file = tempDirectory.resolve(name);
+        Files.write(file, content);
+        return ContentHasher.contentSha1(file);
+    }
+
+    static byte[] jpeg(String exif, String scanData) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(new byte[]{(byte) 0xFF, (byte) 0xD8});
+        segment(out, 0xE1, exif);
+        segment(out, 0xDB, "quantization table");
+        segment(out, 0xFE, "a comment");
+        segment(out, 0xDA, "scan header");
+        out.writeBytes(scanData.getBytes(StandardCharsets.UTF_8));
+        out.writeBytes(new byte[]{(byte) 0xFF, (byte) 0xD9});
+        return out.toByteArray();
+    }
+
+    private static void segment(ByteArrayOutputStream out, int marker, String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        out.write(0xFF);
+        out.write(marker);
+        out.writeBytes(ByteBuffer.allocate(2).putShort((short) (bytes.length + 2)).array());
+        out.writeBytes(bytes);
+    }
+
+    private static byte[] png(String title, String imageData) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+        chunk(out, "IHDR", "header");
+        chunk(out, "tEXt", title);
+        chunk(out, "IDAT", imageData);
+        chunk(out, "IEND", "");
+        return out.toByteArray();
+    }
+
+    private static void chunk(ByteArrayOutputStream out, String type, String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        out.writeBytes(ByteBuffer.allocate(4).putInt(bytes.length).array());
+        out.writeBytes(type.getBytes(StandardCharsets.US_ASCII));
+        out.writeBytes(bytes);
+        // Not a real CRC, but nothing checks it
+        out.writeBytes(new byte[4]);
+    }
+
+    private static byte[] mp4(String metadata, String mediaData) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        box(out, "ftyp", "isom");
+        box(out, "moov", metadata);
+        box(out, "mdat", mediaData);
+        return out.toByteArray();
+    }
+
+    private static void box(ByteArrayOutputStream out, String type, String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        out.writeBytes(ByteBuffer.allocate(4).putInt(bytes.length + 8).array());
+        out.writeBytes(type.getBytes(StandardCharsets.US_ASCII));
+        out.writeBytes(bytes);
+    }
+}
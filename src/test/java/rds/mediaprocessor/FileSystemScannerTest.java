@@ -0,0 +1,155 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+public class FileSystemScannerTest {
+    private static final String LAST_FILE = "folder3/folder3/folder3/folder3/photo2";
+
+    private Path tempDirectory;
+    private Path tree;
+
+    @BeforeEach
+    public void createTempDir() throws Exception {
+        tempDirectory = Files.createTempDirectory("mediaprocessor-scanner-");
+        // Four levels of four folders, with a couple of files in each, and some at the top
+        tree = Files.createDirectory(tempDirectory.resolve("tree"));
+        addFolders(tree, 4);
+    }
+
+    @AfterEach
+    public void deleteTempDir() throws Exception {
+        FileUtils.forceDelete(tempDirectory.toFile());
+    }
+
+    @Test
+    void listingAheadOfTheWalkerDoesntChangeTheOrderFilesAreFoundIn() throws Exception {
+        // Given a scan that lists each folder when it gets there
+        List<String> inOrder = paths(scan(Map.of("DirectoryLister.threads", "0")));
+        assertThat(inOrder, hasSize(2 * (1 + 4 + 16 + 64 + 256)));
+
+        // Then ones that list ahead of it, a little way or a long way, find the same files in the same order
+        assertThat(paths(scan(Map.of("DirectoryLister.threads", "8", "DirectoryLister.maxPrefetched", "3"))),
+                equalTo(inOrder));
+        assertThat(paths(scan(Map.of("DirectoryLister.threads", "8"))), equalTo(inOrder));
+    }
+
+    @Test
+    void hashingOnSeveralThreadsEmitsTheSameEventsAsOnOne() throws Exception {
+        List<String> onOne = sorted(scan(Map.of()));
+
+        assertThat(sorted(scan(Map.of("FileSystemScanner.hashThreads", "4"))), equalTo(onOne));
+    }
+
+    @Test
+    void aHashingWorkerThatFailsFailsTheScan() {
+        // Given the queues are as small as they go, so the walker is held up by the workers
+        Map<String, String> settings = Map.of("FileSystemScanner.lookupMode", "none",
+                "FileSystemScanner.hashThreads", "4", "FileSystemScanner.queueCapacity", "1");
+        FileEventInserter failing = collecting(event -> {
+            if (event.relPath.equals("folder1/photo1")) {
+                throw new IllegalStateException("Failed to write an event");
+            }
+        });
+
+        // Then the scan fails when a worker does, rather than waiting forever for it
+        assertTimeoutPreemptively(Duration.ofMinutes(1), () -> assertThrows(IllegalStateException.class,
+                () -> new FileSystemScanner(null, failing, new ScanMetrics(), settings).scan(tree)));
+    }
+
+    @Test
+    void aLookupThatFailsFailsTheScan() throws Exception {
+        // Given a catalog with a file that can't be looked up, near the end of the walk
+        try (CatalogDatabase database = CatalogDatabase.open(tempDirectory.resolve("db"), Map.of())) {
+            try (Connection connection = database.writer().getConnection();
+                 Statement statement = connection.createStatement()) {
+                statement.execute("insert into file_events(event_type, file_path, time, storage_location, sha1) " +
+                        "values('create', '" + LAST_FILE + "', 1, 'here', 42)");
+            }
+            Map<String, String> settings = Map.of("FileSystemScanner.lookupMode", "query",
+                    "FileSystemScanner.hashThreads", "4", "FileSystemScanner.queueCapacity", "1");
+            FileSystemScanner scanner = new FileSystemScanner(database.readers(), collecting(event -> {
+            }), new ScanMetrics(), settings);
+
+            // Then the scan fails when the lookup does
+            assertTimeoutPreemptively(Duration.ofMinutes(1),
+                    () -> assertThrows(IllegalStateException.class, () -> scanner.scan(tree)));
+        }
+    }
+
+    private static List<String> paths(List<MainBuildCatalog.FileEvent> events) {
+        return events.stream().map(event -> event.relPath).collect(Collectors.toList());
+    }
+
+    private static List<String> sorted(List<MainBuildCatalog.FileEvent> events) {
+        return events.stream().map(event -> event.eventType + " " + event.relPath + " " + event.sha1Hex + " "
+                + event.size + " " + event.mtime + " " + event.fingerprint).sorted().collect(Collectors.toList());
+    }
+
+    /**
+     * @return the events the scan emitted, in the order it emitted them, which with one hashing thread is the order the
+     * walker found the files in
+     */
+    private List<MainBuildCatalog.FileEvent> scan(Map<String, String> settings) throws Exception {
+        Map<String, String> scanSettings = new HashMap<>(settings);
+        scanSettings.put("FileSystemScanner.lookupMode", "none");
+        scanSettings.putIfAbsent("FileSystemScanner.hashThreads", "1");
+        List<MainBuildCatalog.FileEvent> emitted = Collections.synchronizedList(new ArrayList<>());
+        new FileSystemScanner(null, collecting(emitted::add), new ScanMetrics(), scanSettings).scan(tree);
+        return emitted;
+    }
+
+    private static FileEventInserter collecting(Consumer<MainBuildCatalog.FileEvent> emitted) {
+        return new FileEventInserter() {
+            @Override
+            public void addToBatch(MainBuildCatalog.FileEvent event) {
+                emitted.accept(event);
+            }
+
+            @Override
+            public int getCurrentQueuedInserts() {
+                return 0;
+            }
+
+            @Override
+            public int getQueueCapacity() {
+                return 1;
+            }
+
+            @Override
+            public void flush() {
+            }
+        };
+    }
+
+    private static void addFolders(Path directory, int depth) throws Exception {
+        FileUtils.writeStringToFile(directory.resolve("photo1").toFile(), "v1", "UTF-8");
+        FileUtils.writeStringToFile(directory.resolve("photo2").toFile(), "v2", "UTF-8");
+        if (depth == 0) {
+            return;
+        }
+        for (int i = 0; i < 4; i++) {
+            addFolders(Files.createDirectory(directory.resolve("folder" + i)), depth - 1);
+        }
+    }
+}
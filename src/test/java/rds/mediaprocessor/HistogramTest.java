@@ -0,0 +1,41 @@
+package rds.mediaprocessor;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class HistogramTest {
+    @Test
+    void everyValueLandsInABucketThatHoldsIt() {
+        for (long value : new long[]{0, 1, 15, 16, 17, 31, 32, 33, 1000, 123_456_789, Long.MAX_VALUE}) {
+            int bucket = Histogram.bucketOf(value);
+            assertThat(value + " fits its bucket", Histogram.highestValueIn(bucket), greaterThanOrEqualTo(value));
+            if (bucket > 0) {
+                assertThat(value + " doesn't fit the one before", Histogram.highestValueIn(bucket - 1), lessThan(value));
+            }
+        }
+    }
+
+    @Test
+    void percentilesAreCloseToTheRealOnes() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 10_000; value++) {
+            histogram.record(value);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount(), equalTo(10_000L));
+        assertThat(snapshot.getMean(), closeTo(5000.5, 0.001));
+        assertThat((double) snapshot.getP50(), closeTo(5000, 5000 * 0.07));
+        assertThat((double) snapshot.getP99(), closeTo(9900, 9900 * 0.07));
+        assertThat(snapshot.getMax(), equalTo(10_000L));
+    }
+
+    @Test
+    void anEmptyHistogramReportsZeros() {
+        Histogram.Snapshot snapshot = new Histogram().snapshot();
+        assertThat(snapshot.getCount(), equalTo(0L));
+        assertThat(snapshot.getP99(), equalTo(0L));
+        assertThat(snapshot.getMean(), equalTo(0.0));
+    }
+}
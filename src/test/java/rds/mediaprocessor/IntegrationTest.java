@@ -8,15 +8,21 @@ import org.junit.jupiter.api.Test;
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.Statement;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static rds.mediaprocessor.DbNames.*;
 
 public class IntegrationTest {
@@ -53,8 +59,8 @@ public class IntegrationTest {
      * time or fail because they run too fast.
      */
     private final Map<String, String> settings = Map.of(
-            // The batcher queues db inserts for this long, and it makes the tests run as slow as this timeout is
-            "FileEventBatcher.queuePollTimeoutMillis", "5"
+            // The test trees are tiny, so there's no point in spinning up a hasher per core for each scan
+            "FileSystemScanner.hashThreads", "2"
     );
 
     /**
@@ -195,4 +201,726 @@ public class IntegrationTest {
         assertThat(diff.rhs.state, equalTo(EventTypes.delete));
         assertThat(diff.rhs.sha1, equalTo(CHECKSUM_OF_V1));
     }
+
+    @Test
+    void sameSizeAndMtimeSkipsHashingUnlessParanoid() throws Exception {
+        // Given I've cataloged both locations in their initial states.
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        MainBuildCatalog.buildCatalog(location2, location2Db, settings);
+
+        // When I change a file's content without changing its size or mtime and re-catalog it
+        FileTime originalMtime = Files.getLastModifiedTime(testFile11);
+        FileUtils.writeStringToFile(testFile11.toFile(), "v2", "UTF-8");
+        Files.setLastModifiedTime(testFile11, originalMtime);
+        ScanMetrics metrics = MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+
+        // Then the file isn't read, so the change isn't seen
+        assertThat(metrics.getFilesVisited(), equalTo(2L));
+        assertThat(metrics.getFilesHashed(), equalTo(0L));
+        assertThat(MainReconcileThings.reconcileCatalogs(location1Db, location2Db), hasSize(0));
+
+        // But when I re-catalog in paranoid mode, the change is noted
+        Map<String, String> paranoidSettings = new HashMap<>(settings);
+        paranoidSettings.put("FileSystemScanner.paranoid", "true");
+        metrics = MainBuildCatalog.buildCatalog(location1, location1Db, paranoidSettings);
+        assertThat(metrics.getFilesHashed(), equalTo(2L));
+        assertThat(metrics.getEventsCommitted(), equalTo(1L));
+        List<MainReconcileThings.Diff> diffs = MainReconcileThings.reconcileCatalogs(location1Db, location2Db);
+        assertThat(diffs, hasSize(1));
+        assertThat(diffs.get(0).lhs.state, equalTo(EventTypes.update));
+        assertThat(diffs.get(0).lhs.sha1, equalTo(CHECKSUM_OF_V2));
+    }
+
+    @Test
+    void aFileThatWasOnlyTouchedIsReadOnceAndNotAgain() throws Exception {
+        // Given both locations are cataloged
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        MainBuildCatalog.buildCatalog(location2, location2Db, settings);
+        long mtime = Files.getLastModifiedTime(testFile11).toMillis();
+
+        // When a file's mtime changes but its content doesn't, and it's re-cataloged
+        FileTime touched = FileTime.fromMillis(mtime + 60000);
+        Files.setLastModifiedTime(testFile11, touched);
+        ScanMetrics metrics = MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+
+        // Then it's read to find out, and recorded as an update with the checksum it already had, leaving the event it
+        // already had alone
+        assertThat(metrics.getFilesHashed(), equalTo(1L));
+        assertThat(metrics.getEventsCommitted(), equalTo(1L));
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + location1Db);
+             ResultSet resultSet = connection.createStatement().executeQuery(
+                     "select event_type, sha1, mtime, fingerprint from file_events where file_path = 'file1' " +
+                             "order by time")) {
+            assertThat(resultSet.next(), is(true));
+            assertThat(resultSet.getString(1), equalTo(EventTypes.create));
+            assertThat(resultSet.getLong(3), equalTo(mtime));
+            String fingerprint = resultSet.getString(4);
+            assertThat(resultSet.next(), is(true));
+            assertThat(resultSet.getString(1), equalTo(EventTypes.update));
+            assertThat(resultSet.getString(2), equalTo(CHECKSUM_OF_V1));
+            assertThat(resultSet.getLong(3), equalTo(touched.toMillis()));
+            assertThat(resultSet.getString(4), equalTo(fingerprint));
+            assertThat(resultSet.next(), is(false));
+            assertThat(CurrentState.verify(connection), equalTo(0));
+        }
+
+        // And it still matches the copy that wasn't touched
+        assertThat(MainReconcileThings.reconcileCatalogs(location1Db, location2Db), hasSize(0));
+
+        // And the next build doesn't read it again
+        metrics = MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        assertThat(metrics.getFilesHashed(), equalTo(0L));
+    }
+
+    @Test
+    void queryLookupModeNoticesTheSameChangesAsPreloading() throws Exception {
+        // Given I've cataloged both locations in their initial states, looking up files one at a time.
+        Map<String, String> querySettings = new HashMap<>(settings);
+        querySettings.put("FileSystemScanner.lookupMode", "query");
+        MainBuildCatalog.buildCatalog(location1, location1Db, querySettings);
+        MainBuildCatalog.buildCatalog(location2, location2Db, querySettings);
+
+        // When I update a file on the left hand side and re-catalog it
+        FileUtils.writeStringToFile(testFile11.toFile(), "v2", "UTF-8");
+        MainBuildCatalog.buildCatalog(location1, location1Db, querySettings);
+
+        // Then the difference is noted
+        List<MainReconcileThings.Diff> diffs = MainReconcileThings.reconcileCatalogs(location1Db, location2Db);
+        assertThat(diffs, hasSize(1));
+        assertThat(diffs.get(0).lhs.state, equalTo(EventTypes.update));
+        assertThat(diffs.get(0).lhs.sha1, equalTo(CHECKSUM_OF_V2));
+    }
+
+    @Test
+    void thePathFilterSkipsLookingUpNewFilesButNotOnesSomethingElseRecorded() throws Exception {
+        // Given I've cataloged a location twice, looking up files one at a time, so it has a path filter
+        Map<String, String> querySettings = new HashMap<>(settings);
+        querySettings.put("FileSystemScanner.lookupMode", "query");
+        MainBuildCatalog.buildCatalog(location1, location1Db, querySettings);
+        ScanMetrics metrics = MainBuildCatalog.buildCatalog(location1, location1Db, querySettings);
+        assertThat(metrics.getLookupsFiltered(), equalTo(0L));
+
+        // When a new file shows up, and a script records another one that the catalog didn't have before
+        FileUtils.writeStringToFile(location1.resolve("new").toFile(), "v1", "UTF-8");
+        FileUtils.writeStringToFile(location1.resolve("scripted").toFile(), "v2", "UTF-8");
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + location1Db)) {
+            connection.createStatement().execute("insert into file_events(event_type, file_path, time, " +
+                    "storage_location, sha1) values('create', 'scripted', 1, 'script', '" + CHECKSUM_OF_V1 + "')");
+        }
+        metrics = MainBuildCatalog.buildCatalog(location1, location1Db, querySettings);
+
+        // Then only the new file skips its lookup, and the scripted one is found and seen to have changed
+        assertThat(metrics.getLookupsFiltered(), equalTo(1L));
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + location1Db)) {
+            Map<String, String> states = new HashMap<>();
+            ResultSet resultSet = connection.createStatement().executeQuery(
+                    "select file_path, event_type from current_state");
+            while (resultSet.next()) {
+                states.put(resultSet.getString(1), resultSet.getString(2));
+            }
+            assertThat(states, equalTo(Map.of("file1", EventTypes.create, "file2", EventTypes.create,
+                    "new", EventTypes.create, "scripted", EventTypes.update)));
+        }
+    }
+
+    @Test
+    void currentStateMatchesEventsAndCanBeRebuilt() throws Exception {
+        // Given I've cataloged a location, then updated and deleted files and re-cataloged it
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        FileUtils.writeStringToFile(testFile11.toFile(), "v2", "UTF-8");
+        FileUtils.delete(testFile12.toFile());
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + location1Db)) {
+            // Then the batcher kept the current state in line with the events
+            assertThat(CurrentState.verify(connection), equalTo(0));
+
+            // And when the cache is damaged, verifying notices, and rebuilding fixes it
+            connection.createStatement().execute("delete from file_state where file_path = 'file1'");
+            connection.createStatement().execute("update file_state set event_type = 'create'");
+            assertThat(CurrentState.verify(connection), equalTo(3));
+            assertThat(CurrentState.rebuild(connection), equalTo(2));
+            assertThat(CurrentState.verify(connection), equalTo(0));
+        }
+    }
+
+    @Test
+    void aLegacyCatalogIsMovedToTheCompactLayout() throws Exception {
+        // Given a catalog from before the compact layout, with a file that was updated and one that couldn't be read
+        Path legacyDb = tempDirectory.resolve("legacy.db");
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + legacyDb)) {
+            Statement statement = connection.createStatement();
+            statement.execute("create table file_events (file_path text not null, time integer not null, " +
+                    "event_type text not null, storage_location text not null, sha1 text, size integer, " +
+                    "mtime integer, primary key (file_path, time))");
+            statement.execute("insert into file_events values " +
+                    "('photos/a.jpg', 1, 'create', 'Desk archive', '" + CHECKSUM_OF_V1 + "', 2, 10), " +
+                    "('photos/a.jpg', 2, 'update', 'Desk archive', '" + CHECKSUM_OF_V2 + "', 2, 20), " +
+                    "('top.jpg', 1, 'create', 'Desk archive', 'Failed to get checksum; file corrupt?', null, null)");
+            statement.execute("pragma user_version = 1");
+        }
+
+        // When it's compacted, after a script records another event the way the scripts do
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + legacyDb)) {
+            CatalogSchema.upgrade(connection);
+            connection.createStatement().execute("insert into file_events(event_type, file_path, time, " +
+                    "storage_location, sha1) values('create', 'photos/b.jpg', 3, 'Amazon', '" + CHECKSUM_OF_V1 + "')");
+        }
+        MainCompactCatalog.main(new String[]{legacyDb.toString()});
+
+        // Then the events and current state read the same as before, and are stored compactly
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + legacyDb)) {
+            Statement statement = connection.createStatement();
+            Map<String, String> sha1s = new HashMap<>();
+            ResultSet resultSet = statement.executeQuery("select file_path, sha1 from current_state");
+            while (resultSet.next()) {
+                sha1s.put(resultSet.getString(1), resultSet.getString(2));
+            }
+            assertThat(sha1s, equalTo(Map.of("photos/a.jpg", CHECKSUM_OF_V2, "photos/b.jpg", CHECKSUM_OF_V1,
+                    "top.jpg", "Failed to get checksum; file corrupt?")));
+            resultSet = statement.executeQuery("select (select count(*) from file_events), " +
+                    "(select count(*) from directories), (select count(*) from locations), " +
+                    "(select count(*) from events where typeof(sha1) = 'blob')");
+            resultSet.next();
+            assertThat(resultSet.getInt(1), equalTo(4));
+            assertThat(resultSet.getInt(2), equalTo(2));
+            assertThat(resultSet.getInt(3), equalTo(2));
+            assertThat(resultSet.getInt(4), equalTo(3));
+            assertThat(CurrentState.verify(connection), equalTo(0));
+        }
+    }
+
+    @Test
+    void bulkIngestRecordsTheSameCatalogAsAnIncrementalScan() throws Exception {
+        // Given one location is cataloged the incremental way and the other, identical one is bulk ingested
+        Map<String, String> incremental = new HashMap<>(settings);
+        incremental.put("MainBuildCatalog.bulkIngest", "never");
+        MainBuildCatalog.buildCatalog(location1, location1Db, incremental);
+        MainBuildCatalog.buildCatalog(location2, location2Db, settings);
+
+        // When I re-catalog the bulk ingested one, which is no longer empty, so it's incremental
+        MainBuildCatalog.buildCatalog(location2, location2Db, settings);
+
+        // Then the two catalogs agree, and the bulk ingest left nothing behind
+        assertThat(MainReconcileThings.reconcileCatalogs(location1Db, location2Db), hasSize(0));
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + location2Db)) {
+            Statement statement = connection.createStatement();
+            ResultSet resultSet = statement.executeQuery(
+                    "select (select count(*) from file_events), " +
+                            "(select count(*) from sqlite_master where name = 'bulk_file_events')");
+            resultSet.next();
+            assertThat(resultSet.getInt(1), equalTo(2));
+            assertThat(resultSet.getInt(2), equalTo(0));
+            assertThat(CurrentState.verify(connection), equalTo(0));
+        }
+    }
+
+    @Test
+    void metadataOnlyBuildIsUsableRightAwayAndBackfillsLater() throws Exception {
+        // Given the left location is cataloged without checksums
+        Map<String, String> later = new HashMap<>(settings);
+        later.put("FileSystemScanner.checksums", "later");
+        ScanMetrics metrics = MainBuildCatalog.buildCatalog(location1, location1Db, later);
+        MainBuildCatalog.buildCatalog(location2, location2Db, settings);
+
+        // Then nothing was read, and reconcile knows the files but can't vouch for their content yet
+        assertThat(metrics.getFilesHashed(), equalTo(0L));
+        List<MainReconcileThings.Diff> diffs = MainReconcileThings.reconcileCatalogs(location1Db, location2Db);
+        assertThat(diffs, hasSize(2));
+        assertThat(diffs.get(0).kind, equalTo(MainReconcileThings.Diff.Kind.HASH_PENDING));
+        assertThat(diffs.get(0).lhs.sha1, nullValue());
+
+        // And when the checksums are backfilled, the catalogs agree
+        try (CatalogDatabase database = CatalogDatabase.open(location1Db, later)) {
+            int filled = new ChecksumBackfiller(location1, database.writer(), new ScanMetrics(), later).backfill();
+            assertThat(filled, equalTo(2));
+        }
+        assertThat(MainReconcileThings.reconcileCatalogs(location1Db, location2Db), hasSize(0));
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + location1Db)) {
+            assertThat(ChecksumBackfiller.countPending(connection), equalTo(0));
+            assertThat(CurrentState.verify(connection), equalTo(0));
+        }
+
+        // And a later change is caught by a metadata-only build too, and a normal build fills it in
+        FileUtils.writeStringToFile(testFile11.toFile(), "v2", "UTF-8");
+        MainBuildCatalog.buildCatalog(location1, location1Db, later);
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        diffs = MainReconcileThings.reconcileCatalogs(location1Db, location2Db);
+        assertThat(diffs, hasSize(1));
+        assertThat(diffs.get(0).lhs.state, equalTo(EventTypes.update));
+        assertThat(diffs.get(0).lhs.sha1, equalTo(CHECKSUM_OF_V2));
+    }
+
+    @Test
+    void fingerprintsShowAMismatchBeforeTheChecksumsAreIn() throws Exception {
+        // Given one file differs between the locations, and the left is cataloged without checksums
+        FileUtils.writeStringToFile(testFile11.toFile(), "v2", "UTF-8");
+        Map<String, String> later = new HashMap<>(settings);
+        later.put("FileSystemScanner.checksums", "later");
+        ScanMetrics metrics = MainBuildCatalog.buildCatalog(location1, location1Db, later);
+        MainBuildCatalog.buildCatalog(location2, location2Db, settings);
+
+        // Then reconciling already knows the changed file is a mismatch, and only the other one is pending
+        assertThat(metrics.getFilesHashed(), equalTo(0L));
+        List<MainReconcileThings.Diff> diffs = MainReconcileThings.reconcileCatalogs(location1Db, location2Db);
+        assertThat(diffs, hasSize(2));
+        assertThat(diffs.get(0).path, equalTo("file1"));
+        assertThat(diffs.get(0).kind, equalTo(MainReconcileThings.Diff.Kind.MISMATCH));
+        assertThat(diffs.get(1).kind, equalTo(MainReconcileThings.Diff.Kind.HASH_PENDING));
+    }
+
+    @Test
+    void photoWithOnlyItsMetadataChangedIsNotAMismatch() throws Exception {
+        // Given both locations have the same photo
+        Files.write(location1.resolve("photo.jpg"), ContentHasherTest.jpeg("2001:01:01", "pixels"));
+        Files.write(location2.resolve("photo.jpg"), ContentHasherTest.jpeg("2001:01:01", "pixels"));
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        MainBuildCatalog.buildCatalog(location2, location2Db, settings);
+
+        // When its timestamp is fixed on the left, and the left is re-cataloged
+        Files.write(location1.resolve("photo.jpg"), ContentHasherTest.jpeg("2001:01:01 12:34:56", "pixels"));
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+
+        // Then reconciling sees that only the metadata differs, once it can look at the right hand file
+        Location left = new Location("left", location1Db, null, false, false, location1);
+        Location right = new Location("right", location2Db, null, false, false, location2);
+        List<MainReconcileThings.Diff> diffs = MainReconcileThings.reconcileCatalogs(left, right);
+        assertThat(diffs, hasSize(1));
+        assertThat(diffs.get(0).kind, equalTo(MainReconcileThings.Diff.Kind.METADATA_ONLY));
+
+        // And it remembers the content checksum it worked out, so it doesn't need the file next time
+        Location rightWithoutFiles = new Location("right", location2Db, null, false, false);
+        diffs = MainReconcileThings.reconcileCatalogs(left, rightWithoutFiles);
+        assertThat(diffs.get(0).kind, equalTo(MainReconcileThings.Diff.Kind.METADATA_ONLY));
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + location2Db)) {
+            assertThat(CurrentState.verify(connection), equalTo(0));
+        }
+    }
+
+    @Test
+    void snapshotsReconcileTheSameAsTheirCatalogs() throws Exception {
+        // Given the locations have diverged: an update, a move, and a file only the left has
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        MainBuildCatalog.buildCatalog(location2, location2Db, settings);
+        FileUtils.writeStringToFile(testFile21.toFile(), "v2", "UTF-8");
+        FileUtils.delete(testFile22.toFile());
+        FileUtils.writeStringToFile(location1.resolve("extra.jpg").toFile(), "v1", "UTF-8");
+        FileUtils.writeStringToFile(location2.resolve("folder").resolve("new").toFile(), "v1", "UTF-8");
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        MainBuildCatalog.buildCatalog(location2, location2Db, settings);
+
+        // When I take snapshots of both catalogs
+        Location left = new Location("left", location1Db, null, false, false);
+        Location right = new Location("right", location2Db, null, false, false);
+        Path leftSnapshot = tempDirectory.resolve("left.snapshot");
+        Path rightSnapshot = tempDirectory.resolve("right.snapshot");
+        assertThat(CatalogSnapshot.write(left, leftSnapshot), equalTo(3));
+        assertThat(CatalogSnapshot.write(right, rightSnapshot), equalTo(3));
+
+        // Then reconciling them finds exactly what reconciling the catalogs does
+        List<String> fromCatalogs = MainReconcileThings.reconcileCatalogs(left, right).stream()
+                .map(IntegrationTest::describe).toList();
+        List<String> fromSnapshots = MainReconcileThings.reconcileSnapshots(left, leftSnapshot, right, rightSnapshot)
+                .stream().map(IntegrationTest::describe).toList();
+        assertThat(fromCatalogs, hasSize(3));
+        assertThat(fromSnapshots, equalTo(fromCatalogs));
+        try (CatalogSnapshot snapshot = CatalogSnapshot.open(rightSnapshot)) {
+            assertThat(snapshot.scanTime(), greaterThan(0L));
+        }
+    }
+
+    private static String describe(MainReconcileThings.Diff diff) {
+        return diff.path + " " + diff.kind + " " + diff.lhs.state + " " + diff.lhs.sha1 + " " + diff.rhs.state + " "
+                + diff.rhs.sha1;
+    }
+
+    @Test
+    void movingAFileIsRecordedAsAMoveAndReconciledAsOne() throws Exception {
+        // Given I've cataloged both locations in their initial states.
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        MainBuildCatalog.buildCatalog(location2, location2Db, settings);
+
+        // When I move a file into a folder on the left hand side and re-catalog it
+        Path movedFile = location1.resolve("folder").resolve("file1");
+        Files.createDirectories(movedFile.getParent());
+        Files.move(testFile11, movedFile);
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+
+        // Then the old path is recorded as moved to the new one, instead of deleted
+        String newPath = location1.relativize(movedFile).toString();
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + location1Db);
+             ResultSet resultSet = connection.createStatement().executeQuery(
+                     "select event_type, moved_to from current_state where file_path = 'file1'")) {
+            resultSet.next();
+            assertThat(resultSet.getString(1), equalTo(EventTypes.move));
+            assertThat(resultSet.getString(2), equalTo(newPath));
+        }
+
+        // And reconciling says to move it on the right, with nothing to copy
+        List<MainReconcileThings.Diff> diffs = MainReconcileThings.reconcileCatalogs(location1Db, location2Db);
+        assertThat(diffs, hasSize(1));
+        assertThat(diffs.get(0).kind, equalTo(MainReconcileThings.Diff.Kind.MOVED));
+        assertThat(diffs.get(0).path, equalTo("file1"));
+        assertThat(diffs.get(0).lhs.movedTo, equalTo(newPath));
+        Map<String, MultiCatalogReconciler.Verdict> verdicts = new ConcurrentHashMap<>();
+        new MultiCatalogReconciler(List.of(new Location("one", location1Db, null, true, true),
+                new Location("two", location2Db, null, false, false)), 2, 10)
+                .reconcile(fileVerdict -> verdicts.put(fileVerdict.key, fileVerdict.verdict));
+        assertThat(verdicts, equalTo(Map.of(
+                "file1", MultiCatalogReconciler.Verdict.MOVED,
+                newPath, MultiCatalogReconciler.Verdict.MOVED_HERE,
+                "file2", MultiCatalogReconciler.Verdict.FULLY_SYNCED)));
+
+        // And a metadata-only build matches a move by fingerprint, once the right side makes the same move
+        Path movedFile2 = location2.resolve("folder").resolve("file1");
+        Files.createDirectories(movedFile2.getParent());
+        Files.move(testFile21, movedFile2);
+        Map<String, String> later = new HashMap<>(settings);
+        later.put("FileSystemScanner.checksums", "later");
+        MainBuildCatalog.buildCatalog(location2, location2Db, later);
+        diffs = MainReconcileThings.reconcileCatalogs(location1Db, location2Db);
+        assertThat(diffs, hasSize(1));
+        assertThat(diffs.get(0).path, equalTo(newPath));
+        assertThat(diffs.get(0).kind, equalTo(MainReconcileThings.Diff.Kind.HASH_PENDING));
+    }
+
+    @Test
+    void aScanThatDiedPartwayResumesFromItsCheckpoint() throws Exception {
+        // Given a location with a couple of folders, cataloged once
+        Path photoA = location1.resolve("a").resolve("photo");
+        Path photoB = location1.resolve("b").resolve("photo");
+        FileUtils.writeStringToFile(photoA.toFile(), "v1", "UTF-8");
+        FileUtils.writeStringToFile(photoB.toFile(), "v1", "UTF-8");
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+
+        // When a photo changes in each folder, and a scan dies after it's done with the top folder and "a"
+        FileUtils.writeStringToFile(photoA.toFile(), "v2", "UTF-8");
+        FileUtils.writeStringToFile(photoB.toFile(), "v2", "UTF-8");
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + location1Db);
+             Statement statement = connection.createStatement()) {
+            statement.execute("insert into scan_checkpoints values('" + location1.toAbsolutePath() + "', 1, 'a', 0, "
+                    + System.currentTimeMillis() + ")");
+            statement.execute("insert into scan_checkpoint_files values('" + location1.toAbsolutePath()
+                    + "', '', 'file1' || char(10) || 'file2'), ('" + location1.toAbsolutePath() + "', 'a', 'photo')");
+        }
+        ScanMetrics metrics = MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+
+        // Then the scan picks up after "a", and doesn't take the files it skipped for deleted
+        assertThat(metrics.getFilesVisited(), equalTo(1L));
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + location1Db);
+             Statement statement = connection.createStatement()) {
+            Map<String, String> sha1s = new HashMap<>();
+            try (ResultSet resultSet = statement.executeQuery(
+                    "select file_path, sha1 from current_state where event_type != 'delete'")) {
+                while (resultSet.next()) {
+                    sha1s.put(resultSet.getString(1), resultSet.getString(2));
+                }
+            }
+            assertThat(sha1s, equalTo(Map.of("file1", CHECKSUM_OF_V1, "file2", CHECKSUM_OF_V1,
+                    location1.relativize(photoA).toString(), CHECKSUM_OF_V1,
+                    location1.relativize(photoB).toString(), CHECKSUM_OF_V2)));
+            // And once it's finished, the checkpoint is gone, so the next scan covers everything again
+            try (ResultSet resultSet = statement.executeQuery("select count(*) from scan_checkpoints")) {
+                resultSet.next();
+                assertThat(resultSet.getInt(1), equalTo(0));
+            }
+        }
+        metrics = MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        assertThat(metrics.getFilesVisited(), equalTo(4L));
+        assertThat(metrics.getEventsCommitted(), equalTo(1L));
+    }
+
+    @Test
+    void aBulkIngestThatDiedPartwayResumesFromItsCheckpoint() throws Exception {
+        // Given a location with a folder of photos for every letter up to "h"
+        for (char folder = 'a'; folder <= 'h'; folder++) {
+            FileUtils.writeStringToFile(location1.resolve(folder + "").resolve("photo").toFile(), "v1", "UTF-8");
+        }
+
+        // When a bulk ingest that checkpoints after every folder dies on the last one. With one file in flight at a
+        // time, or near enough, the first few folders are checkpointed by then, and the ones after them are staged.
+        Map<String, String> dying = new HashMap<>(settings);
+        dying.put("FileSystemScanner.hashThreads", "1");
+        dying.put("FileSystemScanner.queueCapacity", "1");
+        dying.put("FileSystemScanner.lookupMode", "none");
+        dying.put("ScanCheckpoint.intervalSeconds", "0");
+        dying.put("BulkCatalogLoader.transactionSize", "1");
+        ScanMetrics metrics = new ScanMetrics();
+        try (CatalogDatabase database = CatalogDatabase.open(location1Db, dying)) {
+            ScanCheckpoint checkpoint = ScanCheckpoint.open(database.writer(), location1, 1, dying);
+            try (BulkCatalogLoader loader = new BulkCatalogLoader(location1Db, 1, metrics, dying, checkpoint) {
+                @Override
+                public synchronized void addToBatch(MainBuildCatalog.FileEvent event) {
+                    if (event.relPath.startsWith("h")) {
+                        throw new IllegalStateException("Killed");
+                    }
+                    super.addToBatch(event);
+                }
+            }) {
+                FileSystemScanner scanner = new FileSystemScanner(null, loader, metrics, dying);
+                assertThrows(IllegalStateException.class, () -> scanner.scan(location1, checkpoint));
+            }
+        }
+
+        // Then building again picks up where it left off, and every file ends up in the catalog exactly once
+        metrics = MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        assertThat(metrics.getFilesVisited(), lessThan(10L));
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + location1Db);
+             Statement statement = connection.createStatement()) {
+            Map<String, String> sha1s = new HashMap<>();
+            try (ResultSet resultSet = statement.executeQuery("select file_path, sha1 from current_state")) {
+                while (resultSet.next()) {
+                    sha1s.put(resultSet.getString(1), resultSet.getString(2));
+                }
+            }
+            assertThat(sha1s.keySet(), hasSize(10));
+            assertThat(sha1s, hasEntry(location1.relativize(location1.resolve("h").resolve("photo")).toString(),
+                    CHECKSUM_OF_V1));
+            assertThat(Set.copyOf(sha1s.values()), equalTo(Set.of(CHECKSUM_OF_V1)));
+            try (ResultSet resultSet = statement.executeQuery("select (select count(*) from file_events), " +
+                    "(select count(*) from sqlite_master where name = 'bulk_file_events'), " +
+                    "(select count(*) from scan_checkpoints)")) {
+                resultSet.next();
+                assertThat(resultSet.getInt(1), equalTo(10));
+                assertThat(resultSet.getInt(2), equalTo(0));
+                assertThat(resultSet.getInt(3), equalTo(0));
+            }
+        }
+    }
+
+    @Test
+    void aFileMovedIntoWhatAResumedScanAlreadyDidIsStillAMove() throws Exception {
+        // Given a cataloged location, where a file then moves into a new folder
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        Path movedFile = location1.resolve("a").resolve("file1");
+        Files.createDirectories(movedFile.getParent());
+        Files.move(testFile11, movedFile);
+        String newPath = location1.relativize(movedFile).toString();
+
+        // When a scan records the top folder and the new one, and the create in it, and is interrupted
+        long started = System.currentTimeMillis();
+        Map<String, String> checkpointEveryFolder = new HashMap<>(settings);
+        checkpointEveryFolder.put("ScanCheckpoint.intervalSeconds", "0");
+        try (CatalogDatabase database = CatalogDatabase.open(location1Db, settings)) {
+            ScanCheckpoint checkpoint = ScanCheckpoint.open(database.writer(), location1, started,
+                    checkpointEveryFolder);
+            try (CatalogWriter writer = new CatalogWriter(database.writer(), started, new ScanMetrics(), settings)) {
+                writer.addToBatch(new MainBuildCatalog.FileEvent(EventTypes.create, new MainBuildCatalog.FileInfo(
+                        newPath, CHECKSUM_OF_V1, 2, Files.getLastModifiedTime(movedFile).toMillis())));
+                ScanCheckpoint.Directory top = checkpoint.directoryStarted(Paths.get(""));
+                top.fileFound("file2");
+                top.fileDone();
+                checkpoint.directoryWalked(top, writer);
+                ScanCheckpoint.Directory a = checkpoint.directoryStarted(Paths.get("a"));
+                a.fileFound("file1");
+                a.fileDone();
+                checkpoint.directoryWalked(a, writer);
+            }
+        }
+
+        // Then the build that resumes it still matches the file that's gone to where it went
+        ScanMetrics metrics = MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        assertThat(metrics.getFilesVisited(), equalTo(0L));
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + location1Db);
+             ResultSet resultSet = connection.createStatement().executeQuery(
+                     "select event_type, moved_to from current_state where file_path = 'file1'")) {
+            resultSet.next();
+            assertThat(resultSet.getString(1), equalTo(EventTypes.move));
+            assertThat(resultSet.getString(2), equalTo(newPath));
+        }
+    }
+
+    @Test
+    void aWatchRecordsChangesWithoutABuild() throws Exception {
+        // Given a cataloged location with a watch on it
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        Map<String, String> watchSettings = new HashMap<>(settings);
+        watchSettings.put("CatalogWatcher.debounceMillis", "300");
+        watchSettings.put("CatalogWatcher.pollMillis", "50");
+        ScanMetrics metrics = new ScanMetrics();
+        try (CatalogDatabase database = CatalogDatabase.open(location1Db, watchSettings);
+             CatalogWriter writer = new CatalogWriter(database.writer(), null, metrics, watchSettings);
+             CatalogWatcher watcher = new CatalogWatcher(location1, database.readers(), writer, metrics,
+                     watchSettings)) {
+            Thread watching = new Thread(watcher::run);
+            watching.start();
+
+            // When a file is changed, and a new folder shows up with a new file in it and another one moved into it
+            FileUtils.writeStringToFile(testFile11.toFile(), "v2", "UTF-8");
+            Path folder = location1.resolve("folder");
+            FileUtils.writeStringToFile(folder.resolve("new").toFile(), "v3", "UTF-8");
+            Files.move(testFile12, folder.resolve("file2"));
+
+            // Then the catalog catches up on its own
+            String newPath = location1.relativize(folder.resolve("new")).toString();
+            String movedPath = location1.relativize(folder.resolve("file2")).toString();
+            Map<String, String> expected = Map.of(
+                    "file1", EventTypes.update,
+                    "file2", EventTypes.move + " to " + movedPath,
+                    movedPath, EventTypes.create,
+                    newPath, EventTypes.create);
+            Map<String, String> states = Map.of();
+            for (long deadline = System.currentTimeMillis() + 10000;
+                 !states.equals(expected) && System.currentTimeMillis() < deadline; Thread.sleep(100)) {
+                states = currentStates(location1Db);
+            }
+            assertThat(states, equalTo(expected));
+
+            // And when the folder is deleted, everything in it is too
+            FileUtils.deleteDirectory(folder.toFile());
+            expected = Map.of(
+                    "file1", EventTypes.update,
+                    "file2", EventTypes.move + " to " + movedPath,
+                    movedPath, EventTypes.delete,
+                    newPath, EventTypes.delete);
+            for (long deadline = System.currentTimeMillis() + 10000;
+                 !states.equals(expected) && System.currentTimeMillis() < deadline; Thread.sleep(100)) {
+                states = currentStates(location1Db);
+            }
+            assertThat(states, equalTo(expected));
+            watcher.close();
+            watching.join();
+        }
+    }
+
+    @Test
+    void aCancelledCatchUpBuildDoesntTakeWhatItDidntSeeForDeleted() throws Exception {
+        // Given a cataloged location with a file deleted since
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        Files.delete(testFile12);
+
+        // When a catch-up build through a watch's writer is cancelled before it gets anywhere
+        ScanMetrics metrics = new ScanMetrics();
+        boolean finished;
+        try (CatalogDatabase database = CatalogDatabase.open(location1Db, settings);
+             CatalogWriter writer = new CatalogWriter(database.writer(), null, metrics, settings)) {
+            RenameDetector renameDetector = new RenameDetector(writer, settings);
+            FileSystemScanner scanner = new FileSystemScanner(database.readers(), renameDetector, metrics, settings);
+            scanner.cancel();
+            finished = MainBuildCatalog.scan(location1, database, renameDetector, scanner, System.currentTimeMillis(),
+                    metrics, settings);
+        }
+
+        // Then it says so, and nothing is recorded as deleted
+        assertThat(finished, equalTo(false));
+        assertThat(metrics.getEventsCommitted(), equalTo(0L));
+        assertThat(currentStates(location1Db), equalTo(Map.of("file1", EventTypes.create, "file2", EventTypes.create)));
+    }
+
+    /**
+     * @return the event type of each file in current_state, and where it went, for a move
+     */
+    private static Map<String, String> currentStates(Path db) throws Exception {
+        Map<String, String> states = new HashMap<>();
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + db);
+             ResultSet resultSet = connection.createStatement().executeQuery(
+                     "select file_path, event_type, moved_to from current_state")) {
+            while (resultSet.next()) {
+                states.put(resultSet.getString(1), resultSet.getString(2)
+                        + (resultSet.getString(3) == null ? "" : " to " + resultSet.getString(3)));
+            }
+        }
+        return states;
+    }
+
+    @Test
+    void deletingAFileAgainAfterItWasReCreatedIsNoticed() throws Exception {
+        // Given I've cataloged both locations, then deleted a file on the left and re-created it
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        MainBuildCatalog.buildCatalog(location2, location2Db, settings);
+        FileUtils.delete(testFile11.toFile());
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        FileUtils.writeStringToFile(testFile11.toFile(), "v1", "UTF-8");
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+
+        // When I delete it a second time and re-catalog
+        FileUtils.delete(testFile11.toFile());
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+
+        // Then the second delete is noted too
+        List<MainReconcileThings.Diff> diffs = MainReconcileThings.reconcileCatalogs(location1Db, location2Db);
+        assertThat(diffs, hasSize(1));
+        assertThat(diffs.get(0).lhs.state, equalTo(EventTypes.delete));
+        assertThat(diffs.get(0).rhs.state, equalTo(EventTypes.create));
+    }
+
+    @Test
+    void filesKnownToOnlyOneSideAreNoticedOnBothSides() throws Exception {
+        // Given each location has a file that the other doesn't
+        Path leftOnly = location1.resolve("left-only");
+        Path rightOnly = location2.resolve("right-only");
+        FileUtils.writeStringToFile(leftOnly.toFile(), "v1", "UTF-8");
+        FileUtils.writeStringToFile(rightOnly.toFile(), "v2", "UTF-8");
+
+        // When I catalog both and compare them
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        MainBuildCatalog.buildCatalog(location2, location2Db, settings);
+        List<MainReconcileThings.Diff> diffs = MainReconcileThings.reconcileCatalogs(location1Db, location2Db);
+
+        // Then both are reported, in path order
+        assertThat(diffs, hasSize(2));
+        assertThat(diffs.get(0).path, equalTo("left-only"));
+        assertThat(diffs.get(0).kind, equalTo(MainReconcileThings.Diff.Kind.LEFT_ONLY));
+        assertThat(diffs.get(0).lhs.sha1, equalTo(CHECKSUM_OF_V1));
+        assertThat(diffs.get(1).path, equalTo("right-only"));
+        assertThat(diffs.get(1).kind, equalTo(MainReconcileThings.Diff.Kind.RIGHT_ONLY));
+        assertThat(diffs.get(1).rhs.sha1, equalTo(CHECKSUM_OF_V2));
+    }
+
+    @Test
+    void multiCatalogReconcileGivesEveryFileAVerdict() throws Exception {
+        // Given three locations, where only the first is authoritative
+        Path location3 = tempDirectory.resolve("test-files-3");
+        Path location3Db = tempDirectory.resolve("db3");
+        FileUtils.writeStringToFile(location3.resolve("file1").toFile(), "v1", "UTF-8");
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + location3Db)) {
+            connection.createStatement().execute(FileUtils.readFileToString(new File("create-schema.sql"), "UTF-8"));
+        }
+        List<Location> locations = List.of(
+                new Location("one", location1Db, null, true, true),
+                new Location("two", location2Db, null, false, false),
+                new Location("three", location3Db, null, false, false));
+
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        MainBuildCatalog.buildCatalog(location2, location2Db, settings);
+        MainBuildCatalog.buildCatalog(location3, location3Db, settings);
+
+        // When the first location deletes file1, a new file shows up in the second, and both are re-cataloged
+        FileUtils.delete(testFile11.toFile());
+        FileUtils.writeStringToFile(location2.resolve("file3").toFile(), "v1", "UTF-8");
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        MainBuildCatalog.buildCatalog(location2, location2Db, settings);
+        Map<String, MultiCatalogReconciler.Verdict> verdicts = new ConcurrentHashMap<>();
+        Map<MultiCatalogReconciler.Verdict, Long> counts = new MultiCatalogReconciler(locations, 2, 10)
+                .reconcile(fileVerdict -> verdicts.put(fileVerdict.key, fileVerdict.verdict));
+
+        // Then each file is judged across all three at once
+        assertThat(verdicts, equalTo(Map.of(
+                "file1", MultiCatalogReconciler.Verdict.DELETED_UPSTREAM,
+                "file2", MultiCatalogReconciler.Verdict.PENDING_PROPAGATION,
+                "file3", MultiCatalogReconciler.Verdict.PENDING_PROPAGATION)));
+        assertThat(counts.get(MultiCatalogReconciler.Verdict.PENDING_PROPAGATION), equalTo(2L));
+    }
+
+    @Test
+    void reconcilingACatalogThatNeedsUpgradingFailsWithoutUpgradingIt() throws Exception {
+        // Given one location is cataloged, and the other's catalog is still at the oldest schema
+        MainBuildCatalog.buildCatalog(location1, location1Db, settings);
+        List<Location> locations = List.of(
+                new Location("one", location1Db, null, true, true),
+                new Location("two", location2Db, null, false, false));
+
+        // When I reconcile them
+        IllegalStateException failure = assertThrows(IllegalStateException.class,
+                () -> new MultiCatalogReconciler(locations, 4, 10).reconcile(fileVerdict -> {
+                }));
+
+        // Then it says which catalog needs upgrading, and leaves it alone
+        assertThat(failure.getMessage(), containsString(location2Db + " is at schema version 0"));
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + location2Db);
+             ResultSet resultSet = connection.createStatement().executeQuery("pragma user_version")) {
+            resultSet.next();
+            assertThat(resultSet.getInt(1), equalTo(0));
+        }
+    }
 }
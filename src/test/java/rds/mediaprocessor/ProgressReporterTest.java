@@ -0,0 +1,32 @@
+package rds.mediaprocessor;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ProgressReporterTest {
+    @Test
+    void progressCountsSkippedFilesAsDoneAndEstimatesTheRestFromTheTotals() throws Exception {
+        ScanMetrics metrics = new ScanMetrics();
+        try (ProgressReporter reporter = new ProgressReporter(metrics, new ProgressReporter.Totals(4, 4096), 3600)) {
+            metrics.filesHashed.increment();
+            metrics.bytesRead.add(1024);
+            metrics.filesSkipped.increment();
+            metrics.bytesSkipped.add(1024);
+            Thread.sleep(10);
+
+            String progress = reporter.progress();
+
+            assertThat(progress, startsWith("Progress: 2/4 files, 2"));
+            assertThat(progress, containsString("ETA "));
+        }
+    }
+
+    @Test
+    void durationsReadLikeAPersonWouldSayThem() {
+        assertThat(ProgressReporter.formatDuration(42), equalTo("42s"));
+        assertThat(ProgressReporter.formatDuration(125), equalTo("2m 5s"));
+        assertThat(ProgressReporter.formatDuration(3 * 3600 + 20 * 60 + 7), equalTo("3h 20m"));
+    }
+}
@@ -0,0 +1,65 @@
+package rds.mediaprocessor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static rds.mediaprocessor.DbNames.*;
+
+public class RenameDetectorTest {
+    private static final String CHECKSUM = "5a6df720540c20d95d530d3fd6885511223d5d20";
+    private static final String UNREADABLE = "Failed to get checksum; file corrupt?";
+
+    private final List<MainBuildCatalog.FileEvent> written = new ArrayList<>();
+    private final RenameDetector renameDetector = new RenameDetector(new FileEventInserter() {
+        @Override
+        public void addToBatch(MainBuildCatalog.FileEvent event) {
+            written.add(event);
+        }
+
+        @Override
+        public int getCurrentQueuedInserts() {
+            return 0;
+        }
+
+        @Override
+        public int getQueueCapacity() {
+            return 1;
+        }
+
+        @Override
+        public void flush() {
+        }
+    }, Map.of());
+
+    @Test
+    void aFileThatTurnedUpWithTheSameChecksumIsAMove() {
+        renameDetector.addToBatch(created("new/photo", CHECKSUM, 2));
+
+        assertThat(renameDetector.claim("old/photo", CHECKSUM, 2L, null), equalTo("new/photo"));
+        // And once it's claimed, nothing else can be matched to it
+        assertThat(renameDetector.claim("other/photo", CHECKSUM, 2L, null), nullValue());
+        assertThat(written, hasSize(1));
+    }
+
+    @Test
+    void twoDifferentFilesThatCouldntBeReadArentAMove() {
+        // Given an unreadable file showed up in this scan
+        renameDetector.addToBatch(created("new/broken", UNREADABLE, 100));
+
+        // When a different unreadable file is gone
+        String movedTo = renameDetector.claim("old/other-broken", UNREADABLE, 200L, null);
+
+        // Then it's a delete, since the placeholder isn't a checksum
+        assertThat(movedTo, nullValue());
+    }
+
+    private static MainBuildCatalog.FileEvent created(String relPath, String sha1Hex, long size) {
+        return new MainBuildCatalog.FileEvent(EventTypes.create,
+                new MainBuildCatalog.FileInfo(relPath, sha1Hex, size, 1));
+    }
+}
@@ -0,0 +1,85 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ScanCheckpointTest {
+    private static final List<String> FILE_NAMES = List.of("photo", "two\nlines", "3:with a colon");
+
+    private Path tempDirectory;
+
+    @BeforeEach
+    public void createTempDir() throws Exception {
+        tempDirectory = Files.createTempDirectory("mediaprocessor-checkpoint-");
+    }
+
+    @AfterEach
+    public void deleteTempDir() throws Exception {
+        FileUtils.forceDelete(tempDirectory.toFile());
+    }
+
+    @Test
+    void fileNamesComeBackTheWayTheyWent() {
+        assertThat(ScanCheckpoint.decodeFileNames(ScanCheckpoint.encodeFileNames(FILE_NAMES)), equalTo(FILE_NAMES));
+        // Including the way they used to go
+        assertThat(ScanCheckpoint.decodeFileNames("photo1\nphoto2"), equalTo(List.of("photo1", "photo2")));
+    }
+
+    @Test
+    void aResumedScanHasSeenEveryFileInTheCheckpointWhateverItsName() throws Exception {
+        Path root = tempDirectory.resolve("root");
+        Map<String, String> settings = Map.of("ScanCheckpoint.intervalSeconds", "0");
+        try (CatalogDatabase database = CatalogDatabase.open(tempDirectory.resolve("db"), settings)) {
+            // Given a checkpoint with a folder whose files include one with a newline in its name
+            ScanCheckpoint checkpoint = ScanCheckpoint.open(database.writer(), root, 1, settings);
+            ScanCheckpoint.Directory folder = checkpoint.directoryStarted(Paths.get("folder"));
+            for (String fileName : FILE_NAMES) {
+                folder.fileFound(fileName);
+                folder.fileDone();
+            }
+            checkpoint.directoryWalked(folder, new FileEventInserter() {
+                @Override
+                public void addToBatch(MainBuildCatalog.FileEvent event) {
+                }
+
+                @Override
+                public int getCurrentQueuedInserts() {
+                    return 0;
+                }
+
+                @Override
+                public int getQueueCapacity() {
+                    return 1;
+                }
+
+                @Override
+                public void flush() {
+                }
+            });
+
+            // When a scan resumes it
+            ScanCheckpoint resumed = ScanCheckpoint.open(database.writer(), root, 2, settings);
+            Utf8KeyTable seenPaths = new Utf8KeyTable();
+            resumed.addSeenPaths(seenPaths);
+
+            // Then it's seen exactly those files, so none of them is taken for deleted
+            assertThat(resumed.isResuming(), is(true));
+            assertThat(seenPaths.size(), equalTo(FILE_NAMES.size()));
+            for (String fileName : FILE_NAMES) {
+                assertThat(fileName, seenPaths.find(Paths.get("folder").resolve(fileName).toString()),
+                        greaterThanOrEqualTo(0));
+            }
+        }
+    }
+}
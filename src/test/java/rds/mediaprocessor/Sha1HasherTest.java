@@ -0,0 +1,77 @@
+package rds.mediaprocessor;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class Sha1HasherTest {
+    private Path tempDirectory;
+
+    /**
+     * A file that's a few buffers plus a bit long, so reads have to wrap around the buffer and the last one is partial.
+     */
+    private Path testFile;
+    private String expectedSha1;
+
+    @BeforeEach
+    public void createTestFile() throws Exception {
+        tempDirectory = Files.createTempDirectory("mediaprocessor-sha1-");
+        testFile = tempDirectory.resolve("file");
+        byte[] content = new byte[3 * 4096 + 17];
+        new Random(1).nextBytes(content);
+        Files.write(testFile, content);
+        expectedSha1 = DigestUtils.sha1Hex(content);
+    }
+
+    @AfterEach
+    public void deleteTempDir() throws Exception {
+        FileUtils.forceDelete(tempDirectory.toFile());
+    }
+
+    @Test
+    void bufferedReadsMatchAPlainChecksum() throws Exception {
+        Sha1Hasher hasher = new Sha1Hasher(4096, Long.MAX_VALUE);
+        assertThat(hasher.hashHex(testFile), equalTo(expectedSha1));
+        // Again, to make sure a pooled buffer and digest come back clean
+        assertThat(hasher.hashHex(testFile), equalTo(expectedSha1));
+    }
+
+    @Test
+    void mappedReadsMatchAPlainChecksum() throws Exception {
+        Sha1Hasher hasher = new Sha1Hasher(4096, 0);
+        assertThat(hasher.hashHex(testFile), equalTo(expectedSha1));
+    }
+
+    @Test
+    void fingerprintsPickedOutOfTheReadMatchOnesOnTheirOwn() throws Exception {
+        // Given a file big enough to be sampled, rather than fingerprinted whole
+        Path bigFile = tempDirectory.resolve("big");
+        byte[] content = new byte[5 << 20];
+        new Random(2).nextBytes(content);
+        Files.write(bigFile, content);
+
+        // Then whichever way it's read, with buffers that don't line up with the samples or mapped, or a small file
+        Fingerprint.Sampler sampler = new Fingerprint.Sampler();
+        for (Sha1Hasher hasher : new Sha1Hasher[]{new Sha1Hasher(4099, Long.MAX_VALUE), new Sha1Hasher(4096, 0)}) {
+            assertThat(hasher.hashHex(bigFile, sampler), equalTo(DigestUtils.sha1Hex(content)));
+            assertThat(sampler.fingerprint(), equalTo(Fingerprint.of(bigFile)));
+            assertThat(hasher.hashHex(testFile, sampler), equalTo(expectedSha1));
+            assertThat(sampler.fingerprint(), equalTo(Fingerprint.of(testFile)));
+        }
+    }
+
+    @Test
+    void emptyFilesHashLikeEmptyInput() throws Exception {
+        Path emptyFile = Files.createFile(tempDirectory.resolve("empty"));
+        assertThat(Sha1Hasher.DEFAULT.hashHex(emptyFile), equalTo(DigestUtils.sha1Hex(new byte[0])));
+    }
+}